@@ -0,0 +1,381 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Пакетные загрузки: несколько ссылок в одном сообщении или плейлист.
+ * Пакет раскладывается на дочерние задачи, которые идут через обычный конвейер
+ * ({@link DownloadScheduler}, {@link InFlightDownloads}); одновременно запущено не больше
+ * {@code parallel} задач пакета. Каждый файл отправляется сразу, как готов, — медленный
+ * ролик не задерживает остальные. Прогресс пакета — одно общее статусное сообщение.
+ * Плейлисты раскрываются на своих потоках: yt-dlp может работать минуту, а поток
+ * обработки обновлений обслуживает и другие чаты.
+ */
+@Component
+public class BatchDownloads {
+
+    public static class Batch {
+        public final long id;
+        public final Long chatId;
+        public final MediaFormat format;
+        final List<String> urls;
+        final InFlightDownloads.Listener listener; // общий статус пакета
+        final List<Long> waiterIds = new ArrayList<>(); // для отмены запущенных задач
+        final List<String> hostedIds = new ArrayList<>(); // файлы, отданные ссылкой, а не в Telegram
+        final Consumer<Batch> onFinished;
+        private int next;
+        private int running;
+        private int delivered;
+        private int failed;
+        private boolean cancelled;
+        private String current; // последняя строка прогресса дочерней задачи
+
+        Batch(long id, Long chatId, MediaFormat format, List<String> urls, InFlightDownloads.Listener listener,
+              Consumer<Batch> onFinished) {
+            this.id = id;
+            this.chatId = chatId;
+            this.format = format;
+            this.urls = urls;
+            this.listener = listener;
+            this.onFinished = onFinished;
+        }
+
+        public int size() {
+            return urls.size();
+        }
+
+        public synchronized List<String> hostedIds() {
+            return List.copyOf(hostedIds);
+        }
+
+        public synchronized boolean cancelled() {
+            return cancelled;
+        }
+
+        synchronized boolean finished() {
+            return running == 0 && (cancelled || next == urls.size());
+        }
+
+        synchronized String summary() {
+            int skipped = urls.size() - delivered - failed - running;
+            StringBuilder sb = new StringBuilder();
+            sb.append(finished() ? "📦 Пакет завершён: " : "📦 Пакет: ")
+                    .append(delivered).append('/').append(urls.size()).append(" готово");
+            if (running > 0) sb.append(" · ⏬ ").append(running).append(" в работе");
+            if (failed > 0) sb.append(" · ❌ ").append(failed);
+            if (cancelled && skipped > 0) sb.append(" · 🚫 ").append(skipped).append(" отменено");
+            if (!finished() && current != null) sb.append('\n').append(current);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Результат раскрытия: ссылки на ролики и плейлисты, список которых получить не удалось
+     */
+    public static class Expansion {
+        public final List<String> items;
+        public final List<String> failed;
+
+        Expansion(List<String> items, List<String> failed) {
+            this.items = items;
+            this.failed = failed;
+        }
+    }
+
+    // Ссылка — последовательность непробельных символов после http(s)://
+    private static final Pattern URL = Pattern.compile("https?://\\S+");
+
+    private final int maxItems;
+    private final int parallel;
+    private final long expandTimeoutSec;
+    private final ToolRegistry toolRegistry;
+    private final BotMetrics metrics;
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, Batch> batches = new LinkedHashMap<>();
+    private final ExecutorService expander;
+
+    @Autowired
+    public BatchDownloads(@Value("${download.batch.max-items:25}") int maxItems,
+                          @Value("${download.batch.parallel:2}") int parallel,
+                          @Value("${download.batch.expand-timeout-sec:60}") long expandTimeoutSec,
+                          @Value("${download.batch.expand-threads:2}") int expandThreads,
+                          ToolRegistry toolRegistry,
+                          BotMetrics metrics) {
+        this.maxItems = Math.max(1, maxItems);
+        this.parallel = Math.max(1, parallel);
+        this.expandTimeoutSec = expandTimeoutSec;
+        this.toolRegistry = toolRegistry;
+        this.metrics = metrics;
+        AtomicInteger n = new AtomicInteger();
+        this.expander = Executors.newFixedThreadPool(Math.max(1, expandThreads), r -> {
+            Thread t = new Thread(r, "batch-expand-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("batch.active", this::active);
+    }
+
+    BatchDownloads(int maxItems, int parallel, long expandTimeoutSec, ToolRegistry toolRegistry, BotMetrics metrics) {
+        this(maxItems, parallel, expandTimeoutSec, 1, toolRegistry, metrics);
+    }
+
+    /**
+     * Все ссылки из текста сообщения в исходном порядке, без повторов
+     */
+    public static List<String> extractUrls(String text) {
+        List<String> urls = new ArrayList<>();
+        Matcher m = URL.matcher(text);
+        while (m.find()) {
+            String url = m.group();
+            if (!urls.contains(url)) urls.add(url);
+        }
+        return urls;
+    }
+
+    /**
+     * Ссылка на плейлист YouTube, а не на ролик из него ({@code watch?v=...&list=...} — это ролик)
+     */
+    public static boolean isPlaylist(String url) {
+        return url.contains("youtube.com") && url.contains("list=")
+                && (url.contains("/playlist") || !url.contains("v="));
+    }
+
+    /**
+     * Раскрывает плейлисты в ссылки на ролики в фоне. Результат — не больше {@code maxItems}
+     * ссылок, повторы одного ролика убираются.
+     */
+    public CompletableFuture<Expansion> expand(List<String> urls) {
+        return CompletableFuture.supplyAsync(() -> expandNow(urls), expander);
+    }
+
+    private Expansion expandNow(List<String> urls) {
+        Map<String, String> byKey = new LinkedHashMap<>();
+        List<String> failed = new ArrayList<>();
+        for (String url : urls) {
+            List<String> items = isPlaylist(url) ? expandPlaylist(url) : List.of(url);
+            if (items == null) {
+                failed.add(url);
+                continue;
+            }
+            for (String item : items) {
+                VideoRef ref = VideoRef.parse(item);
+                byKey.putIfAbsent(ref != null ? ref.key() : item, item);
+                if (byKey.size() >= maxItems) {
+                    metrics.increment("batch.truncated");
+                    return new Expansion(new ArrayList<>(byKey.values()), failed);
+                }
+            }
+        }
+        return new Expansion(new ArrayList<>(byKey.values()), failed);
+    }
+
+    // null — yt-dlp завершился с ошибкой или по таймауту: неполный список за успех не выдаём
+    private List<String> expandPlaylist(String url) {
+        List<String> items = new ArrayList<>();
+        try {
+            Process p = new ProcessBuilder(toolRegistry.ytDlpPath(), "--flat-playlist", "--print", "url",
+                    "--playlist-end", Integer.toString(maxItems), "--no-warnings", url)
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            AtomicBoolean killed = new AtomicBoolean();
+            CompletableFuture.delayedExecutor(expandTimeoutSec, TimeUnit.SECONDS).execute(() -> {
+                if (p.isAlive()) {
+                    killed.set(true);
+                    metrics.increment("batch.expand_timeouts");
+                    ProcessTrees.kill(p, metrics);
+                }
+            });
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("http")) items.add(line.trim());
+                }
+            }
+            int exit = p.waitFor();
+            if (exit != 0 || killed.get()) {
+                metrics.increment("batch.expand_failed");
+                return null;
+            }
+            metrics.increment("batch.playlists_expanded");
+            return items;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.increment("batch.expand_failed");
+        return null;
+    }
+
+    public int maxItems() {
+        return maxItems;
+    }
+
+    public int parallel() {
+        return parallel;
+    }
+
+    /**
+     * @param onFinished вызывается один раз, после итогового статуса
+     */
+    public synchronized Batch create(Long chatId, List<String> urls, MediaFormat format,
+                                     InFlightDownloads.Listener listener, Consumer<Batch> onFinished) {
+        Batch batch = new Batch(ids.incrementAndGet(), chatId, format, List.copyOf(urls), listener, onFinished);
+        batches.put(batch.id, batch);
+        metrics.increment("batch.created");
+        metrics.add("batch.items", urls.size());
+        return batch;
+    }
+
+    /**
+     * Ссылки, которые можно запустить сейчас: свободные места в окне пакета
+     */
+    public List<String> admit(Batch batch) {
+        List<String> out = new ArrayList<>();
+        synchronized (batch) {
+            while (!batch.cancelled && batch.running < parallel && batch.next < batch.urls.size()) {
+                out.add(batch.urls.get(batch.next++));
+                batch.running++;
+            }
+        }
+        report(batch);
+        return out;
+    }
+
+    /**
+     * Задача пакета запущена и ждёт в {@link InFlightDownloads}.
+     * false — пакет отменили, пока задача запускалась: отмена пакета её не увидит, отменить нужно самому
+     */
+    public boolean started(Batch batch, long waiterId) {
+        synchronized (batch) {
+            if (batch.cancelled) return false;
+            batch.waiterIds.add(waiterId);
+            return true;
+        }
+    }
+
+    /**
+     * Файл задачи пакета оказался больше лимита Telegram и отдан временной ссылкой
+     */
+    public void hosted(Batch batch, String hostedId) {
+        synchronized (batch) {
+            batch.hostedIds.add(hostedId);
+        }
+    }
+
+    /**
+     * Прогресс текущей дочерней задачи — показывается под счётчиками пакета
+     */
+    public void progress(Batch batch, String text) {
+        synchronized (batch) {
+            batch.current = text;
+        }
+        report(batch);
+    }
+
+    /**
+     * Дочерняя задача завершилась любым исходом. Возвращает ссылки, которые теперь можно запустить.
+     */
+    public List<String> childDone(Batch batch, boolean delivered) {
+        synchronized (batch) {
+            batch.running--;
+            if (delivered) {
+                batch.delivered++;
+            } else if (!batch.cancelled) {
+                batch.failed++;
+            }
+        }
+        return admit(batch);
+    }
+
+    /**
+     * Останавливает выдачу новых задач пакета. Возвращает ID ожидающих, которых нужно
+     * отписать от уже запущенных загрузок, или null, если пакет не найден.
+     */
+    public List<Long> cancel(long batchId, Long chatId) {
+        Batch batch;
+        synchronized (this) {
+            batch = batches.get(batchId);
+        }
+        if (batch == null || !batch.chatId.equals(chatId)) return null;
+        List<Long> waiters = cancel(batch);
+        return waiters != null ? waiters : List.of();
+    }
+
+    /**
+     * /cancel: останавливает выдачу задач всех пакетов чата (запущенные отменяются вместе
+     * с остальными загрузками чата). Возвращает число пакетов, остановленных этим вызовом.
+     */
+    public int cancelChat(Long chatId) {
+        List<Batch> own = new ArrayList<>();
+        synchronized (this) {
+            for (Batch b : batches.values()) {
+                if (b.chatId.equals(chatId)) own.add(b);
+            }
+        }
+        int stopped = 0;
+        for (Batch b : own) {
+            if (cancel(b) != null) stopped++;
+        }
+        return stopped;
+    }
+
+    // null — пакет уже был отменён
+    private List<Long> cancel(Batch batch) {
+        List<Long> waiters;
+        synchronized (batch) {
+            if (batch.cancelled) return null;
+            batch.cancelled = true;
+            waiters = new ArrayList<>(batch.waiterIds);
+        }
+        metrics.increment("batch.cancelled");
+        report(batch);
+        return waiters;
+    }
+
+    public synchronized int active() {
+        return batches.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        expander.shutdownNow();
+    }
+
+    // Обновляет общий статус; последнее обновление — итоговое
+    private void report(Batch batch) {
+        String text = batch.summary();
+        if (!batch.finished()) {
+            batch.listener.progress(text, false);
+            return;
+        }
+        synchronized (this) {
+            if (batches.remove(batch.id) == null) return; // итог уже показан
+        }
+        metrics.increment("batch.completed");
+        batch.listener.progress(text, true);
+        batch.onFinished.accept(batch);
+    }
+}
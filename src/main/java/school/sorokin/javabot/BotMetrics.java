@@ -0,0 +1,88 @@
+package school.sorokin.javabot;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Простой реестр метрик бота: счётчики, гейджи и таймеры.
+ * Отдаётся текстом через {@link MetricsController}.
+ */
+@Component
+public class BotMetrics {
+
+    public static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final LongAccumulator maxMillis = new LongAccumulator(Long::max, 0);
+
+        void record(long millis) {
+            count.increment();
+            totalMillis.add(millis);
+            maxMillis.accumulate(millis);
+        }
+
+        public long count() { return count.sum(); }
+        public long totalMillis() { return totalMillis.sum(); }
+        public long maxMillis() { return maxMillis.get(); }
+        public long avgMillis() {
+            long c = count();
+            return c == 0 ? 0 : totalMillis() / c;
+        }
+    }
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public long counter(String name) {
+        LongAdder a = counters.get(name);
+        return a == null ? 0 : a.sum();
+    }
+
+    public void gauge(String name, Supplier<Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public void recordMillis(String name, long millis) {
+        timer(name).record(millis);
+    }
+
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, k -> new Timer());
+    }
+
+    /**
+     * Снимок всех метрик, отсортированный по имени
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> out = new TreeMap<>();
+        counters.forEach((k, v) -> out.put(k, v.sum()));
+        gauges.forEach((k, v) -> {
+            try {
+                out.put(k, v.get());
+            } catch (Exception e) {
+                out.put(k, -1);
+            }
+        });
+        timers.forEach((k, t) -> {
+            out.put(k + ".count", t.count());
+            out.put(k + ".avg_ms", t.avgMillis());
+            out.put(k + ".max_ms", t.maxMillis());
+        });
+        return out;
+    }
+}
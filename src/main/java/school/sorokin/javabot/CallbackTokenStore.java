@@ -0,0 +1,161 @@
+package school.sorokin.javabot;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Короткие токены для callback-кнопок (лимит callback_data в Telegram — 64 байта).
+ * Хранит разобранную ссылку, а не строку URL. Объём ограничен: записи живут не дольше TTL,
+ * при переполнении вытесняются самые старые. Повторная отправка той же ссылки
+ * обновляет срок жизни и возвращает прежний токен.
+ * При общем хранилище ({@link SharedStore#distributed()}) токены пишутся и туда,
+ * а локальная карта служит ближним кэшем: кнопку можно нажать на любом узле.
+ */
+@Component
+public class CallbackTokenStore {
+
+    public static class Entry {
+        public final String token;
+        public final VideoRef ref; // null, если ID ролика извлечь не удалось
+        private final String rawUrl; // только для нераспознанных ссылок
+        final long createdAt;
+
+        Entry(String token, VideoRef ref, String rawUrl, long createdAt) {
+            this.token = token;
+            this.ref = ref;
+            this.rawUrl = rawUrl;
+            this.createdAt = createdAt;
+        }
+
+        public String url() {
+            return ref != null ? ref.url : rawUrl;
+        }
+
+        String dedupKey() {
+            return ref != null ? ref.key() : rawUrl;
+        }
+    }
+
+    public static final int TOKEN_LENGTH = 12;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final BotMetrics metrics;
+    private final SharedStore shared;
+    // Порядок вставки = порядок создания, поэтому и просроченные, и самые старые записи — в начале
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, String> tokenByKey = new HashMap<>();
+
+    @Autowired
+    public CallbackTokenStore(@Value("${telegram.callback.max-entries:10000}") int maxEntries,
+                              @Value("${telegram.callback.ttl-minutes:1440}") long ttlMinutes,
+                              BotMetrics metrics,
+                              SharedStore shared) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMinutes * 60_000L;
+        this.metrics = metrics;
+        this.shared = shared;
+        metrics.gauge("callbacks.size", this::size);
+    }
+
+    CallbackTokenStore(int maxEntries, long ttlMinutes, BotMetrics metrics) {
+        this(maxEntries, ttlMinutes, metrics, new InMemorySharedStore());
+    }
+
+    /**
+     * Токен для ссылки: новый или прежний, если ссылка уже была выдана и не устарела
+     */
+    public String issue(String url) {
+        VideoRef ref = VideoRef.parse(url);
+        String key = ref != null ? ref.key() : url;
+        String token = remember(ref, url, key, null);
+        if (shared.distributed()) {
+            // Ссылку могли уже прислать на другой узел — берём его токен, чтобы он не плодился
+            String other = shared.putIfAbsent("cbk:" + key, token, ttlMillis);
+            if (other != null) {
+                if (!other.equals(token)) token = remember(ref, url, key, other);
+                shared.put("cbk:" + key, token, ttlMillis);
+            }
+            shared.put("cb:" + token, url, ttlMillis);
+        }
+        return token;
+    }
+
+    /**
+     * Запись по токену или null, если токен неизвестен, вытеснен или устарел
+     */
+    public Entry get(String token) {
+        Entry e = local(token);
+        if (e == null && shared.distributed()) {
+            String url = shared.get("cb:" + token); // токен выдан другим узлом или вытеснен здесь
+            if (url != null) {
+                metrics.increment("callbacks.remote_hit");
+                VideoRef ref = VideoRef.parse(url);
+                remember(ref, url, ref != null ? ref.key() : url, token);
+                return local(token);
+            }
+        }
+        if (e == null) metrics.increment("callbacks.miss");
+        return e;
+    }
+
+    private synchronized Entry local(String token) {
+        Entry e = entries.get(token);
+        if (e != null && System.currentTimeMillis() - e.createdAt > ttlMillis) {
+            expire(System.currentTimeMillis());
+            e = null;
+        }
+        return e;
+    }
+
+    /**
+     * Кладёт ссылку в локальную карту под прежним токеном, под заданным ({@code token != null})
+     * или под новым
+     */
+    private synchronized String remember(VideoRef ref, String url, String key, String token) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        String current = tokenByKey.get(key);
+        if (current != null) entries.remove(current); // переносим в конец с новым сроком
+        if (token == null) {
+            token = current != null ? current : UUID.randomUUID().toString().replace("-", "").substring(0, TOKEN_LENGTH);
+        }
+        entries.put(token, new Entry(token, ref, ref == null ? url : null, now));
+        tokenByKey.put(key, token);
+        while (entries.size() > maxEntries) {
+            removeEldest();
+            metrics.increment("callbacks.evicted");
+        }
+        return token;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Снимает просроченные записи с начала: O(число просроченных)
+    private void expire(long now) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (now - e.createdAt <= ttlMillis) break;
+            it.remove();
+            tokenByKey.remove(e.dedupKey());
+            metrics.increment("callbacks.expired");
+        }
+    }
+
+    private void removeEldest() {
+        Iterator<Entry> it = entries.values().iterator();
+        Entry e = it.next();
+        it.remove();
+        tokenByKey.remove(e.dedupKey());
+    }
+}
@@ -0,0 +1,82 @@
+package school.sorokin.javabot;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Решение, нужно ли перекодировать аудио: по дорожке исходника (вывод {@code ffmpeg -i})
+ * файл отдаётся как есть, перекладывается в другой контейнер без перекодирования
+ * или кодируется в MP3. Telegram проигрывает MP3 и AAC в M4A.
+ */
+public class CodecDecision {
+
+    public enum Action { KEEP, COPY, TRANSCODE }
+
+    /**
+     * Аудиодорожка исходника
+     */
+    public static class Probe {
+        public final String codec; // mp3, aac, opus, vorbis...; null — дорожка не найдена
+        public final int sampleRate;
+        public final int bitrateKbps; // 0 — неизвестно
+        public final long durationMillis; // -1 — неизвестно
+
+        Probe(String codec, int sampleRate, int bitrateKbps, long durationMillis) {
+            this.codec = codec;
+            this.sampleRate = sampleRate;
+            this.bitrateKbps = bitrateKbps;
+            this.durationMillis = durationMillis;
+        }
+    }
+
+    // Stream #0:0(und): Audio: aac (LC) (mp4a / 0x6134706D), 44100 Hz, stereo, fltp, 129 kb/s (default)
+    private static final Pattern AUDIO = Pattern.compile("Stream #\\S+.*?: Audio: (\\w+)([^\\n]*)");
+    private static final Pattern RATE = Pattern.compile("(\\d+) Hz");
+    private static final Pattern BITRATE = Pattern.compile("(\\d+) kb/s");
+
+    public final Action action;
+    public final String ext; // расширение результата
+
+    CodecDecision(Action action, String ext) {
+        this.action = action;
+        this.ext = ext;
+    }
+
+    public static Probe parse(String ffmpegOutput) {
+        Matcher m = AUDIO.matcher(ffmpegOutput);
+        long duration = -1;
+        for (String line : ffmpegOutput.split("\n")) {
+            duration = TranscodePool.parseDuration(line);
+            if (duration >= 0) break;
+        }
+        if (!m.find()) return new Probe(null, 0, 0, duration);
+        String rest = m.group(2);
+        Matcher rate = RATE.matcher(rest);
+        Matcher bitrate = BITRATE.matcher(rest);
+        return new Probe(m.group(1).toLowerCase(Locale.ROOT),
+                rate.find() ? Integer.parseInt(rate.group(1)) : 0,
+                bitrate.find() ? Integer.parseInt(bitrate.group(1)) : 0,
+                duration);
+    }
+
+    /**
+     * @param acceptAac отдавать AAC как есть (в M4A) вместо перекодирования в MP3
+     */
+    public static CodecDecision decide(Probe probe, String fileName, boolean acceptAac) {
+        String ext = extension(fileName);
+        if (probe == null || probe.codec == null) return new CodecDecision(Action.TRANSCODE, "mp3");
+        if (probe.codec.equals("mp3")) {
+            return ext.equals("mp3") ? new CodecDecision(Action.KEEP, ext) : new CodecDecision(Action.COPY, "mp3");
+        }
+        if (probe.codec.equals("aac") && acceptAac) {
+            return ext.equals("m4a") ? new CodecDecision(Action.KEEP, ext) : new CodecDecision(Action.COPY, "m4a");
+        }
+        return new CodecDecision(Action.TRANSCODE, "mp3");
+    }
+
+    static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
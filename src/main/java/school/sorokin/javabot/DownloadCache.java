@@ -0,0 +1,232 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Общий для всех чатов дисковый кэш скачанных файлов.
+ * Ключ — нормализованный ID ролика + формат, имя файла: {@code <key>.<ext>}.
+ * Порядок LRU хранится в mtime файлов, поэтому кэш переживает перезапуск.
+ * Задача работает с жёсткой ссылкой на файл в своей папке ({@link #checkout}, {@link #share}):
+ * вытеснение удаляет только имя в кэше, и отправляемый файл не пропадает.
+ */
+@Service
+public class DownloadCache {
+
+    static class Entry {
+        final Path path;
+        final long size;
+
+        Entry(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private final Path root;
+    private final long maxBytes;
+    private final BotMetrics metrics;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    public DownloadCache(@Value("${download.cache.dir:cache}") String dir,
+                         @Value("${download.cache.max-mb:2048}") long maxMb,
+                         BotMetrics metrics) {
+        this.root = Paths.get(dir).toAbsolutePath().normalize();
+        this.maxBytes = maxMb * 1024 * 1024;
+        this.metrics = metrics;
+        metrics.gauge("cache.bytes", this::totalBytes);
+        metrics.gauge("cache.entries", this::size);
+    }
+
+    @PostConstruct
+    public void load() {
+        try {
+            Files.createDirectories(root);
+            List<Path> files;
+            try (var stream = Files.list(root)) {
+                files = stream.filter(Files::isRegularFile)
+                        .filter(p -> p.getFileName().toString().contains("__"))
+                        .sorted(Comparator.comparing(DownloadCache::mtime))
+                        .collect(Collectors.toList());
+            }
+            synchronized (this) {
+                for (Path p : files) {
+                    String key = stripExt(p.getFileName().toString());
+                    long size = Files.size(p);
+                    Entry prev = entries.put(key, new Entry(p, size));
+                    if (prev != null) totalBytes -= prev.size;
+                    totalBytes += size;
+                }
+                evict();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Путь к закэшированному файлу или null. Процессы не запускаются.
+     */
+    public Path lookup(VideoRef ref, MediaFormat format) {
+        if (ref == null) return null;
+        String key = ref.key(format);
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && !Files.exists(e.path)) {
+                entries.remove(key);
+                totalBytes -= e.size;
+                e = null;
+            }
+        }
+        if (e == null) {
+            metrics.increment("cache.miss");
+            return null;
+        }
+        metrics.increment("cache.hit");
+        try {
+            Files.setLastModifiedTime(e.path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // порядок LRU в памяти уже обновлён
+        }
+        return e.path;
+    }
+
+    /**
+     * Как {@link #lookup}, но возвращает жёсткую ссылку на файл кэша в папке задачи.
+     * Если ссылки не поддерживаются (например, другая ФС), возвращает сам файл кэша.
+     */
+    public Path checkout(VideoRef ref, MediaFormat format, Path workDir) {
+        Path cached = lookup(ref, format);
+        if (cached == null || workDir == null) return cached;
+        Path link = workDir.resolve(cached.getFileName());
+        synchronized (this) { // под монитором файл не вытеснят, пока создаётся ссылка
+            Entry e = entries.get(ref.key(format));
+            if (e == null || !e.path.equals(cached)) return null; // вытеснен сразу после lookup
+            try {
+                Files.deleteIfExists(link);
+                return Files.createLink(link, cached);
+            } catch (IOException | UnsupportedOperationException ex) {
+                metrics.increment("cache.link_failed");
+                return cached;
+            }
+        }
+    }
+
+    /**
+     * Переносит файл в кэш и возвращает новый путь.
+     */
+    public Path store(VideoRef ref, MediaFormat format, Path file) throws IOException {
+        Path target = target(ref, format, file);
+        try {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        long size = Files.size(target);
+        synchronized (this) {
+            add(ref.key(format), target, size);
+        }
+        metrics.increment("cache.store");
+        return target;
+    }
+
+    /**
+     * Добавляет файл в кэш жёсткой ссылкой; сам файл остаётся на месте и возвращается.
+     * Если ссылку создать нельзя — переносит его, как {@link #store}.
+     */
+    public Path share(VideoRef ref, MediaFormat format, Path file) throws IOException {
+        Path target = target(ref, format, file);
+        long size = Files.size(file);
+        synchronized (this) { // старое имя заменяется под монитором, как при вытеснении
+            try {
+                Files.deleteIfExists(target);
+                Files.createLink(target, file);
+            } catch (IOException | UnsupportedOperationException e) {
+                metrics.increment("cache.link_failed");
+                return store(ref, format, file);
+            }
+            add(ref.key(format), target, size);
+        }
+        metrics.increment("cache.store");
+        return file;
+    }
+
+    private Path target(VideoRef ref, MediaFormat format, Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String ext = dot >= 0 ? name.substring(dot) : "";
+        return root.resolve(ref.key(format) + ext);
+    }
+
+    // Вызывается под монитором
+    private void add(String key, Path target, long size) throws IOException {
+        Entry prev = entries.put(key, new Entry(target, size));
+        if (prev != null) {
+            totalBytes -= prev.size;
+            if (!prev.path.equals(target)) Files.deleteIfExists(prev.path);
+        }
+        totalBytes += size;
+        evict();
+    }
+
+    /**
+     * Принадлежит ли файл кэшу (такие файлы нельзя удалять после отправки)
+     */
+    public boolean owns(Path path) {
+        return path.toAbsolutePath().normalize().startsWith(root);
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Вызывается под монитором; самый свежий элемент не вытесняется
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            Entry e = it.next().getValue();
+            it.remove();
+            totalBytes -= e.size;
+            try {
+                Files.deleteIfExists(e.path);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            metrics.increment("cache.evicted");
+        }
+    }
+
+    private static FileTime mtime(Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static String stripExt(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,25 @@
+package school.sorokin.javabot;
+
+/**
+ * Контекст выполняющейся загрузки: через него загрузчик сообщает
+ * пользователям о ходе работы и регистрирует запущенные процессы.
+ */
+public interface DownloadContext {
+
+    /**
+     * Сообщение всем, кто ждёт результат
+     */
+    void notify(String text);
+
+    /**
+     * Прогресс загрузки: показывается в статусном сообщении, частые обновления могут пропускаться
+     */
+    void progress(String text);
+
+    /**
+     * Регистрирует запущенный процесс, чтобы его можно было остановить при отмене
+     */
+    void attach(Process process);
+
+    boolean isCancelled();
+}
@@ -1,46 +1,198 @@
 package school.sorokin.javabot;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.core.io.InputStreamResource;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
+/**
+ * Раздача файлов >50 МБ по временной ссылке.
+ * Поддерживает HEAD, Range/206 (докачка), ETag/Last-Modified.
+ * Тело отдаётся без копирования через JVM: sendfile в Tomcat, иначе FileChannel.transferTo.
+ * Ссылку, выданную другим узлом, перенаправляет владельцу (307).
+ * Набор файлов отдаётся одним ZIP без сжатия, собираемым на лету ({@link StoredZip}).
+ */
 @RestController
 @RequestMapping("/dl")
 public class DownloadController {
 
+    // Атрибуты запроса, по которым Tomcat отправляет файл через sendfile сам
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final long SENDFILE_MIN_BYTES = 48 * 1024; // мелочь Tomcat всё равно пишет сам
+
     private final HostedFileService hostedFileService;
 
     public DownloadController(HostedFileService hostedFileService) {
         this.hostedFileService = hostedFileService;
     }
 
-    @GetMapping("/{id}")
-    public ResponseEntity<?> get(@PathVariable String id) throws IOException {
+    @RequestMapping(value = "/{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void get(@PathVariable String id, HttpServletRequest request, HttpServletResponse response) throws IOException {
         HostedFileService.HostedFile hf = hostedFileService.get(id);
         if (hf == null) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Link expired or file not found");
+            String owner = hostedFileService.ownerUrl(id);
+            if (owner != null) { // файл лежит на другом узле — отправляем туда, Range сохранится
+                response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+                response.setHeader(HttpHeaders.LOCATION, owner + "/dl/" + id);
+                return;
+            }
+            sendText(response, HttpStatus.NOT_FOUND, "Link expired or file not found");
+            return;
         }
-        Path p = hf.path;
-        if (!Files.exists(p)) {
-            return ResponseEntity.status(HttpStatus.GONE).body("File missing");
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(hf.path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            hostedFileService.missing(hf);
+            sendText(response, HttpStatus.GONE, "File missing");
+            return;
+        }
+        try (channel) {
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+            response.setHeader(HttpHeaders.ETAG, hf.etag);
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, hf.lastModified);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+            if (notModified(request, hf)) {
+                response.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return;
+            }
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, attachment(hf.originalName));
+            response.setContentType(hf.contentType);
+
+            long size = hf.size;
+            long start = 0;
+            long end = size - 1; // включительно
+            String range = request.getHeader(HttpHeaders.RANGE);
+            if (range != null && size > 0 && ifRangeMatches(request, hf)) {
+                List<HttpRange> ranges;
+                try {
+                    ranges = HttpRange.parseRanges(range);
+                } catch (IllegalArgumentException e) {
+                    ranges = List.of(); // некорректный Range игнорируем и отдаём файл целиком
+                }
+                if (ranges.size() == 1) { // несколько диапазонов не поддерживаем — отдаём 200
+                    try {
+                        start = ranges.get(0).getRangeStart(size);
+                        end = ranges.get(0).getRangeEnd(size);
+                    } catch (IllegalArgumentException e) {
+                        start = size; // ниже ответим 416
+                    }
+                    if (start >= size || end < start) {
+                        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                        response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                        return;
+                    }
+                    response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+                }
+            }
+            long count = end - start + 1;
+            response.setContentLengthLong(count);
+            if ("HEAD".equals(request.getMethod()) || count == 0) return;
+            if (start == 0) hostedFileService.recordDownload(hf); // докачки не считаем
+
+            if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)) && count >= SENDFILE_MIN_BYTES) {
+                request.setAttribute(SENDFILE_FILENAME, hf.path.toAbsolutePath().toString());
+                request.setAttribute(SENDFILE_START, start);
+                request.setAttribute(SENDFILE_END, end + 1);
+                return;
+            }
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long pos = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long n = channel.transferTo(pos, remaining, out);
+                if (n <= 0) break;
+                pos += n;
+                remaining -= n;
+            }
         }
-        String ct = Files.probeContentType(p);
-        if (ct == null) ct = MediaType.APPLICATION_OCTET_STREAM_VALUE;
-        HttpHeaders headers = new HttpHeaders();
-        headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + hf.originalName.replace("\"", "_") + "\"");
-        headers.add(HttpHeaders.CACHE_CONTROL, "no-store, no-cache, must-revalidate");
-        return ResponseEntity.ok()
-                .headers(headers)
-                .contentLength(hf.size)
-                .contentType(MediaType.parseMediaType(ct))
-                .body(new InputStreamResource(Files.newInputStream(p)));
     }
-}
 
+    /**
+     * Несколько файлов одним архивом. Длина известна заранее; Range не поддерживается —
+     * архив собирается заново на каждый запрос, а файлы по отдельности докачиваются через /dl/{id}.
+     */
+    @RequestMapping(value = "/bundle/{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void bundle(@PathVariable String id, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        HostedFileService.Bundle bundle = hostedFileService.bundle(id);
+        StoredZip zip = bundle == null ? null : hostedFileService.zip(bundle);
+        if (zip == null) {
+            String owner = bundle == null ? hostedFileService.ownerUrl(id) : null;
+            if (owner != null) {
+                response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+                response.setHeader(HttpHeaders.LOCATION, owner + "/dl/bundle/" + id);
+                return;
+            }
+            sendText(response, HttpStatus.NOT_FOUND, "Link expired or files not found");
+            return;
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, no-store");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, attachment(bundle.name + ".zip"));
+        response.setContentType("application/zip");
+        response.setContentLengthLong(zip.size());
+        if ("HEAD".equals(request.getMethod())) return;
+        hostedFileService.recordBundleDownload(zip);
+        zip.writeTo(response.getOutputStream());
+    }
+
+    // Названия роликов не в ASCII: filename* (RFC 5987) браузеры берут вместо filename
+    private static String attachment(String fileName) {
+        return ContentDisposition.attachment().filename(fileName, StandardCharsets.UTF_8).build().toString();
+    }
+
+    private static boolean notModified(HttpServletRequest request, HostedFileService.HostedFile hf) {
+        String inm = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (inm != null) {
+            for (String tag : inm.split(",")) {
+                String t = tag.trim();
+                if (t.startsWith("W/")) t = t.substring(2);
+                if (t.equals("*") || t.equals(hf.etag)) return true;
+            }
+            return false;
+        }
+        long ims = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return ims >= 0 && hf.lastModified / 1000 <= ims / 1000;
+    }
+
+    // If-Range: докачку отдаём, только если файл не изменился
+    private static boolean ifRangeMatches(HttpServletRequest request, HostedFileService.HostedFile hf) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) return true;
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(hf.etag);
+        long date = dateHeader(request, HttpHeaders.IF_RANGE);
+        return date >= 0 && hf.lastModified / 1000 == date / 1000;
+    }
+
+    private static long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static void sendText(HttpServletResponse response, HttpStatus status, String text) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType("text/plain;charset=UTF-8");
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+}
@@ -0,0 +1,220 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Планировщик задач скачивания.
+ * Глобальный лимит одновременных задач + справедливость между чатами:
+ * у каждого чата своя очередь, свободный слот получает наименее загруженный
+ * и дольше всех ждавший чат, и один чат не может занять больше maxPerChat слотов.
+ */
+@Component
+public class DownloadScheduler {
+
+    public static class Job {
+        public final long id;
+        public final Long chatId;
+        public final String label;
+        final Runnable task;
+        final int chatLimit; // слотов чата для этой задачи: maxPerChat или больше для пакета
+        final long enqueuedAt = System.currentTimeMillis();
+        volatile int position; // 0 — запущена сразу, иначе примерная позиция в очереди
+
+        Job(long id, Long chatId, String label, Runnable task, int chatLimit) {
+            this.id = id;
+            this.chatId = chatId;
+            this.label = label;
+            this.task = task;
+            this.chatLimit = chatLimit;
+        }
+
+        public int position() { return position; }
+    }
+
+    private final int maxConcurrent;
+    private final int maxPerChat;
+    private final ExecutorService executor;
+    private final BotMetrics metrics;
+    private final AtomicLong ids = new AtomicLong();
+
+    private final Object lock = new Object();
+    private final Map<Long, ArrayDeque<Job>> queues = new HashMap<>();
+    private final ArrayDeque<Long> rotation = new ArrayDeque<>(); // чаты с ожидающими задачами, по кругу
+    private final Map<Long, Integer> runningPerChat = new HashMap<>();
+    private final Map<Long, Long> lastServed = new HashMap<>();
+    private long serveSeq;
+    private int running;
+    private int queued;
+
+    public DownloadScheduler(@Value("${download.scheduler.max-concurrent:3}") int maxConcurrent,
+                             @Value("${download.scheduler.max-per-chat:1}") int maxPerChat,
+                             BotMetrics metrics) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxPerChat = Math.max(1, maxPerChat);
+        this.metrics = metrics;
+        AtomicInteger n = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.maxConcurrent, r -> {
+            Thread t = new Thread(r, "dl-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("scheduler.queue_depth", this::queued);
+        metrics.gauge("scheduler.active", this::running);
+        metrics.gauge("scheduler.max_concurrent", () -> this.maxConcurrent);
+    }
+
+    /**
+     * Ставит задачу в очередь чата. Возвращённый {@link Job#position()} равен 0,
+     * если задача стартовала сразу.
+     */
+    public Job submit(Long chatId, String label, Runnable task) {
+        return submit(chatId, label, task, maxPerChat);
+    }
+
+    /**
+     * То же с собственным лимитом слотов чата: пакетная загрузка может занять
+     * до {@code chatLimit} слотов, пока её задача первая в очереди чата
+     */
+    public Job submit(Long chatId, String label, Runnable task, int chatLimit) {
+        Job job = new Job(ids.incrementAndGet(), chatId, label, task, Math.max(maxPerChat, chatLimit));
+        metrics.increment("scheduler.submitted");
+        synchronized (lock) {
+            ArrayDeque<Job> q = queues.computeIfAbsent(chatId, k -> new ArrayDeque<>());
+            if (q.isEmpty()) rotation.addLast(chatId);
+            q.addLast(job);
+            queued++;
+            dispatch();
+            if (q.contains(job)) {
+                job.position = estimatePosition(chatId, q, job);
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Убирает задачу из очереди, если она ещё не стартовала
+     */
+    public boolean cancel(Job job) {
+        synchronized (lock) {
+            ArrayDeque<Job> q = queues.get(job.chatId);
+            if (q == null || !q.remove(job)) return false;
+            queued--;
+            if (q.isEmpty()) {
+                queues.remove(job.chatId);
+                rotation.remove(job.chatId);
+            }
+        }
+        metrics.increment("scheduler.cancelled");
+        return true;
+    }
+
+    public int queued() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    public int running() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    public int maxConcurrent() {
+        return maxConcurrent;
+    }
+
+    // Вызывается под lock: отдаёт свободный слот чату с наименьшим числом
+    // активных задач, при равенстве — тому, кого дольше всех не обслуживали
+    private void dispatch() {
+        while (running < maxConcurrent && !rotation.isEmpty()) {
+            Long chosen = null;
+            for (Long chatId : rotation) {
+                int active = runningPerChat.getOrDefault(chatId, 0);
+                if (active >= queues.get(chatId).peekFirst().chatLimit) continue;
+                if (chosen == null) {
+                    chosen = chatId;
+                    continue;
+                }
+                int chosenActive = runningPerChat.getOrDefault(chosen, 0);
+                if (active < chosenActive || (active == chosenActive
+                        && lastServed.getOrDefault(chatId, 0L) < lastServed.getOrDefault(chosen, 0L))) {
+                    chosen = chatId;
+                }
+            }
+            if (chosen == null) return; // все ожидающие чаты упёрлись в свой лимит
+            ArrayDeque<Job> q = queues.get(chosen);
+            Job job = q.pollFirst();
+            rotation.remove(chosen);
+            if (q.isEmpty()) {
+                queues.remove(chosen);
+            } else {
+                rotation.addLast(chosen);
+            }
+            queued--;
+            running++;
+            runningPerChat.merge(chosen, 1, Integer::sum);
+            lastServed.put(chosen, ++serveSeq);
+            executor.execute(() -> run(job));
+        }
+    }
+
+    private void run(Job job) {
+        metrics.recordMillis("scheduler.wait", System.currentTimeMillis() - job.enqueuedAt);
+        long start = System.currentTimeMillis();
+        try {
+            job.task.run();
+            metrics.increment("scheduler.completed");
+        } catch (Exception e) {
+            metrics.increment("scheduler.failed");
+            e.printStackTrace();
+        } finally {
+            metrics.recordMillis("scheduler.run", System.currentTimeMillis() - start);
+            synchronized (lock) {
+                running--;
+                runningPerChat.computeIfPresent(job.chatId, (k, v) -> v <= 1 ? null : v - 1);
+                if (!runningPerChat.containsKey(job.chatId) && !queues.containsKey(job.chatId)) {
+                    lastServed.remove(job.chatId);
+                }
+                dispatch();
+            }
+        }
+    }
+
+    // Примерная позиция: перед задачей её предшественники в своём чате
+    // плюс до k(+1) задач от каждого другого чата в круге.
+    private int estimatePosition(Long chatId, ArrayDeque<Job> own, Job job) {
+        int k = 0;
+        for (Job j : own) {
+            if (j == job) break;
+            k++;
+        }
+        int ahead = k;
+        for (Map.Entry<Long, ArrayDeque<Job>> e : queues.entrySet()) {
+            if (e.getKey().equals(chatId)) continue;
+            ahead += Math.min(e.getValue().size(), k + 1);
+        }
+        return ahead + 1;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
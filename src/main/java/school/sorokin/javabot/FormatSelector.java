@@ -0,0 +1,73 @@
+package school.sorokin.javabot;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Выбор формата видео под лимит прямой отправки в Telegram.
+ * Кандидаты — готовые видео+аудио и (при наличии ffmpeg) пары «видео + лучшее аудио»;
+ * перебираются от лучшего к худшему по высоте, затем по битрейту, берётся первый,
+ * чья оценка размера с запасом укладывается в лимит.
+ */
+public class FormatSelector {
+
+    public static final String DEFAULT_VIDEO = "best[height<=720]";
+
+    // Оценки yt-dlp приблизительные: оставляем запас, чтобы не промахнуться мимо лимита
+    static final double SAFETY = 0.92;
+
+    public static class Choice {
+        public final String spec; // аргумент -f для yt-dlp
+        public final int height;
+        public final long estimate; // байты, -1 — неизвестно
+        public final boolean fits; // оценка укладывается в лимит
+        public final boolean avoidsHosting; // формат по умолчанию не влез бы и ушёл бы на хостинг
+
+        Choice(String spec, int height, long estimate, boolean fits, boolean avoidsHosting) {
+            this.spec = spec;
+            this.height = height;
+            this.estimate = estimate;
+            this.fits = fits;
+            this.avoidsHosting = avoidsHosting;
+        }
+
+        public boolean merged() {
+            return spec.contains("+");
+        }
+    }
+
+    private FormatSelector() {
+    }
+
+    /**
+     * Лучший формат не выше maxHeight, укладывающийся в limitBytes.
+     * Без метаданных или если ничего не подходит — формат по умолчанию (fits=false).
+     */
+    public static Choice select(VideoMetadata meta, int maxHeight, long limitBytes, boolean canMerge) {
+        if (meta == null) return new Choice(DEFAULT_VIDEO, 0, -1, false, false);
+        VideoMetadata.FormatInfo audio = meta.bestAudio();
+        VideoMetadata.FormatInfo fallback = meta.bestProgressive(maxHeight);
+        long budget = (long) (limitBytes * SAFETY);
+
+        List<Choice> candidates = new ArrayList<>();
+        for (VideoMetadata.FormatInfo f : meta.formats) {
+            if (!f.hasVideo || f.height > maxHeight || f.size <= 0 || f.formatId.isEmpty()) continue;
+            if (f.hasAudio) {
+                candidates.add(new Choice(f.formatId, f.height, f.size, f.size <= budget, false));
+            } else if (canMerge && audio != null && audio.size > 0) {
+                long size = f.size + audio.size;
+                candidates.add(new Choice(f.formatId + "+" + audio.formatId, f.height, size, size <= budget, false));
+            }
+        }
+        candidates.sort(Comparator.<Choice>comparingInt(c -> c.height).thenComparingLong(c -> c.estimate).reversed());
+
+        long defaultSize = fallback == null ? -1 : fallback.size;
+        int defaultHeight = fallback == null ? 0 : fallback.height;
+        for (Choice c : candidates) {
+            if (!c.fits) continue; // шаг вниз: ниже битрейт или разрешение
+            return new Choice(c.spec, c.height, c.estimate, true, defaultSize > limitBytes);
+        }
+        return new Choice(DEFAULT_VIDEO, defaultHeight, defaultSize, false, false);
+    }
+}
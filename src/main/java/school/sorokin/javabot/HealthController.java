@@ -0,0 +1,44 @@
+package school.sorokin.javabot;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+public class HealthController {
+
+    private final ToolRegistry toolRegistry;
+
+    public HealthController(ToolRegistry toolRegistry) {
+        this.toolRegistry = toolRegistry;
+    }
+
+    /**
+     * UP — yt-dlp и ffmpeg доступны, DEGRADED — без ffmpeg (нет mp3), DOWN — без yt-dlp
+     */
+    @GetMapping("/health")
+    public ResponseEntity<Map<String, Object>> health() {
+        Map<String, ToolRegistry.ToolStatus> tools = toolRegistry.snapshot();
+        Map<String, Object> body = new LinkedHashMap<>();
+        Map<String, Object> details = new LinkedHashMap<>();
+        tools.forEach((name, s) -> {
+            Map<String, Object> t = new LinkedHashMap<>();
+            t.put("available", s.available);
+            t.put("path", s.path);
+            t.put("version", s.version);
+            t.put("capabilities", s.capabilities);
+            t.put("checkedAt", s.checkedAt);
+            details.put(name, t);
+        });
+        boolean ytDlp = tools.get(ToolRegistry.YT_DLP).available;
+        boolean ffmpeg = tools.get(ToolRegistry.FFMPEG).available;
+        String status = !ytDlp ? "DOWN" : ffmpeg ? "UP" : "DEGRADED";
+        body.put("status", status);
+        body.put("tools", details);
+        return ResponseEntity.status(ytDlp ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE).body(body);
+    }
+}
@@ -1,68 +1,630 @@
 package school.sorokin.javabot;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.time.Instant;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
+/**
+ * Файлы больше лимита Telegram, раздаваемые по временной ссылке.
+ * Файлы лежат в отдельном каталоге, регистрации пишутся в журнал
+ * ({@code R} — регистрация, {@code A} — скачивание, {@code D} — удаление файла или набора,
+ * {@code C} — посчитанный CRC32, {@code B} — набор файлов для одной ZIP-ссылки),
+ * который проигрывается при старте и сжимается по мере роста: ссылки переживают
+ * перезапуск, а перезапуск не проигрывает всю историю скачиваний.
+ * Общий объём ограничен квотой: при превышении удаляются самые редко скачиваемые
+ * (при равенстве — самые старые) файлы.
+ * Просроченные файлы удаляются точно в срок отдельным потоком по очереди дедлайнов,
+ * без периодического обхода всех записей.
+ * Набор живёт, пока жив хотя бы один его файл. CRC для архива считаются отдельным потоком,
+ * а не на потоке загрузки: это полное чтение файлов, до нескольких ГБ.
+ * Файлы не копируются между узлами: при общем хранилище узел публикует, что ссылка его
+ * ({@code host:<id>} → свой base-url), и остальные перенаправляют запрос владельцу.
+ */
 @Service
 public class HostedFileService {
 
     public static class HostedFile {
+        public final String id;
         public final Path path;
+        public final long registeredAt;
         public final long expiresAt;
         public final String originalName;
         public final long size;
-        HostedFile(Path path, long ttlMillis, String originalName, long size) {
+        public final String contentType; // определяется один раз при регистрации
+        public final long lastModified;
+        public final String etag;
+        final AtomicInteger downloads = new AtomicInteger();
+        volatile long crc = -1; // CRC32 для ZIP; считается один раз, при первом включении в набор
+
+        HostedFile(String id, Path path, long registeredAt, long expiresAt, String originalName,
+                   long size, String contentType, long lastModified) {
+            this.id = id;
             this.path = path;
-            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+            this.registeredAt = registeredAt;
+            this.expiresAt = expiresAt;
             this.originalName = originalName;
             this.size = size;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.etag = "\"" + id + "-" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+
+        public boolean expired() { return System.currentTimeMillis() > expiresAt; }
+
+        public int downloads() { return downloads.get(); }
+    }
+
+    /**
+     * Несколько раздаваемых файлов под одной ссылкой {@code /dl/bundle/<id>}
+     */
+    public static class Bundle {
+        public final String id;
+        public final String name; // имя архива без .zip
+        public final List<String> fileIds;
+        public final long expiresAt; // когда истекает последний из файлов
+
+        Bundle(String id, String name, List<String> fileIds, long expiresAt) {
+            this.id = id;
+            this.name = name;
+            this.fileIds = fileIds;
+            this.expiresAt = expiresAt;
         }
+
         public boolean expired() { return System.currentTimeMillis() > expiresAt; }
     }
 
+    // Элемент очереди дедлайнов; записи, удалённые раньше срока, просто пропускаются
+    static class Expiry implements Delayed {
+        final HostedFile file;
+
+        Expiry(HostedFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(file.expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(file.expiresAt, ((Expiry) o).file.expiresAt);
+        }
+    }
+
+    private static final int MAX_NAME = 100;
+    private static final long COMPACT_MIN_LINES = 10_000;
+
+    private static final Comparator<HostedFile> EVICTION_ORDER =
+            Comparator.comparingInt(HostedFile::downloads).thenComparingLong(f -> f.registeredAt);
+
     private final Map<String, HostedFile> storage = new ConcurrentHashMap<>();
+    private final Map<Path, HostedFile> byPath = new ConcurrentHashMap<>(); // повторная регистрация того же файла
+    private final Map<String, Bundle> bundles = new ConcurrentHashMap<>();
     private final long ttlMillis;
     private final String baseUrl;
+    private final Path root;
+    private final Path journal;
+    private final long maxBytes;
+    private final BotMetrics metrics;
+    private final SharedStore shared;
+    private final DelayQueue<Expiry> expiries = new DelayQueue<>();
+    private final ExecutorService checksums; // один поток: файлы читаются последовательно, без конкуренции за диск
+    private long totalBytes;
+    private BufferedWriter writer;
+    private long lines; // строк в журнале; под монитором
+    private Thread expiryThread;
 
+    @Autowired
     public HostedFileService(@Value("${download.host.ttl-minutes:60}") long ttlMinutes,
-                             @Value("${download.base-url:}") String baseUrlProp) {
+                             @Value("${download.base-url:}") String baseUrlProp,
+                             @Value("${download.host.dir:hosted}") String dir,
+                             @Value("${download.host.journal:data/hosted.tsv}") String journalPath,
+                             @Value("${download.host.max-mb:10240}") long maxMb,
+                             BotMetrics metrics,
+                             SharedStore shared) {
         this.ttlMillis = ttlMinutes * 60_000L;
         this.baseUrl = (baseUrlProp == null || baseUrlProp.isBlank()) ? "http://localhost:8080" : baseUrlProp.replaceAll("/$", "");
+        this.root = Paths.get(dir).toAbsolutePath().normalize();
+        this.journal = Paths.get(journalPath).toAbsolutePath().normalize();
+        this.maxBytes = maxMb * 1024 * 1024;
+        this.metrics = metrics;
+        this.shared = shared;
+        this.checksums = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "hosted-crc");
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("hosted.files", storage::size);
+        metrics.gauge("hosted.bytes", this::totalBytes);
+    }
+
+    HostedFileService(long ttlMinutes, String baseUrlProp, String dir, String journalPath, long maxMb,
+                      BotMetrics metrics) {
+        this(ttlMinutes, baseUrlProp, dir, journalPath, maxMb, metrics, new InMemorySharedStore());
     }
 
-    public String register(File file) {
+    /**
+     * Проигрывает журнал; просроченные записи и файлы без записи в журнале удаляются
+     */
+    @PostConstruct
+    public synchronized void load() {
+        try {
+            Files.createDirectories(root);
+            Files.createDirectories(journal.getParent());
+            lines = 0;
+            if (Files.exists(journal)) {
+                for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                    lines++;
+                    replay(line.split("\t"));
+                }
+            }
+            for (HostedFile hf : List.copyOf(storage.values())) {
+                if (hf.expired() || !Files.exists(hf.path)) {
+                    storage.remove(hf.id);
+                    Files.deleteIfExists(hf.path);
+                }
+            }
+            bundles.values().removeIf(b -> b.expired() || b.fileIds.stream().noneMatch(storage::containsKey));
+            byPath.clear();
+            storage.values().forEach(hf -> byPath.put(hf.path, hf));
+            Set<Path> known = new HashSet<>(byPath.keySet());
+            List<Path> orphans;
+            try (Stream<Path> stream = Files.list(root)) {
+                orphans = stream.filter(p -> !known.contains(p)).collect(Collectors.toList());
+            }
+            for (Path p : orphans) {
+                Files.deleteIfExists(p);
+                metrics.increment("hosted.orphans_removed");
+            }
+            totalBytes = storage.values().stream().mapToLong(f -> f.size).sum();
+            if (lines > storage.size()) {
+                try {
+                    lines = compact();
+                } catch (IOException e) {
+                    e.printStackTrace(); // журнал остаётся несжатым, но писать в него можно
+                }
+            }
+            writer = open();
+            evict(null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        storage.values().forEach(hf -> {
+            expiries.add(new Expiry(hf));
+            publish(hf);
+        });
+        if (expiryThread == null) {
+            expiryThread = new Thread(this::expireLoop, "hosted-expiry");
+            expiryThread.setDaemon(true);
+            expiryThread.start();
+        }
+    }
+
+    private void expireLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                HostedFile hf = expiries.take().file;
+                if (storage.get(hf.id) == hf) {
+                    remove(hf);
+                    metrics.increment("hosted.expired");
+                    metrics.recordMillis("hosted.expiry_lag", System.currentTimeMillis() - hf.expiresAt);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void replay(String[] parts) {
+        if (parts.length == 10 && parts[0].equals("R")) {
+            try {
+                HostedFile hf = new HostedFile(parts[1], Paths.get(parts[2]), Long.parseLong(parts[3]),
+                        Long.parseLong(parts[4]), parts[9], Long.parseLong(parts[5]), parts[6], Long.parseLong(parts[7]));
+                hf.downloads.set(Integer.parseInt(parts[8]));
+                storage.put(hf.id, hf);
+            } catch (RuntimeException ignored) {
+                // повреждённая строка — пропускаем
+            }
+        } else if (parts.length == 2 && parts[0].equals("A")) {
+            HostedFile hf = storage.get(parts[1]);
+            if (hf != null) hf.downloads.incrementAndGet();
+        } else if (parts.length == 2 && parts[0].equals("D")) {
+            storage.remove(parts[1]);
+            bundles.remove(parts[1]);
+        } else if (parts.length == 3 && parts[0].equals("C")) {
+            HostedFile hf = storage.get(parts[1]);
+            try {
+                if (hf != null) hf.crc = Long.parseLong(parts[2]);
+            } catch (NumberFormatException ignored) {
+                // повреждённая строка — CRC посчитается заново
+            }
+        } else if (parts.length == 5 && parts[0].equals("B")) {
+            try {
+                bundles.put(parts[1], new Bundle(parts[1], parts[3], List.of(parts[4].split(",")), Long.parseLong(parts[2])));
+            } catch (RuntimeException ignored) {
+                // повреждённая строка — пропускаем
+            }
+        }
+    }
+
+    // Переносит файл в каталог раздачи (из папки задачи, которую потом удалят) и возвращает новый путь
+    private Path adopt(Path file) throws IOException {
+        if (owns(file)) return file;
+        Files.createDirectories(root);
+        String prefix = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+        Path target = root.resolve(prefix + "_" + file.getFileName());
+        try {
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file, target);
+        }
+        return target;
+    }
+
+    /**
+     * Регистрирует файл и возвращает ID ссылки. Уже зарегистрированный файл получает прежний ID.
+     */
+    public String register(File file) throws IOException {
+        return host(file.toPath()).id;
+    }
+
+    public HostedFile host(Path file) throws IOException {
+        return host(file, null);
+    }
+
+    /**
+     * Переносит файл в каталог раздачи и сразу регистрирует: с этого момента он учитывается
+     * в квоте и удаляется по сроку, даже если ссылку так никто и не получит (все отменили,
+     * отправка упала). Уже зарегистрированный файл возвращается как есть.
+     *
+     * @param displayName имя при скачивании и внутри ZIP (см. {@link #downloadName});
+     *                    null — имя самого файла
+     */
+    public HostedFile host(Path file, String displayName) throws IOException {
+        Path path = adopt(file.toAbsolutePath().normalize());
+        HostedFile known = byPath.get(path);
+        if (known != null && !known.expired()) return known;
+        String name = path.getFileName().toString();
+        String originalName = displayName != null
+                ? displayName.replaceAll("\\p{Cntrl}", "_")
+                : name.substring(name.indexOf('_') + 1).replace('\t', ' ');
         String id = UUID.randomUUID().toString().replace("-", "");
-        storage.put(id, new HostedFile(file.toPath(), ttlMillis, file.getName(), file.length()));
-        return id;
+        long now = System.currentTimeMillis();
+        HostedFile hf = new HostedFile(id, path, now, now + ttlMillis, originalName, Files.size(path),
+                probeContentType(path), Files.getLastModifiedTime(path).toMillis());
+        synchronized (this) {
+            storage.put(id, hf);
+            byPath.put(path, hf);
+            totalBytes += hf.size;
+            append(registration(hf));
+            evict(hf);
+        }
+        expiries.add(new Expiry(hf));
+        publish(hf);
+        metrics.increment("hosted.registered");
+        return hf;
     }
 
+    /**
+     * Имя файла для пользователя из названия ролика: без символов, недопустимых в именах
+     * файлов, и не длиннее {@code MAX_NAME} символов. Пустое название — {@code media.<ext>}.
+     */
+    public static String downloadName(String title, String ext) {
+        String base = title == null ? "" : title.replaceAll("[\\p{Cntrl}/\\\\:*?\"<>|]", "_").strip();
+        if (base.codePointCount(0, base.length()) > MAX_NAME) {
+            base = base.substring(0, base.offsetByCodePoints(0, MAX_NAME)).strip();
+        }
+        if (base.isEmpty() || base.startsWith(".")) base = "media" + base;
+        return ext == null || ext.isEmpty() ? base : base + "." + ext;
+    }
+
+    private static String probeContentType(Path p) {
+        try {
+            String ct = Files.probeContentType(p);
+            if (ct != null) return ct;
+        } catch (IOException ignored) {
+            // ниже — запасной вариант
+        }
+        return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+    }
+
+    /**
+     * Запись по ID без обращения к диску. Пропавший файл обнаружится при открытии,
+     * тогда вызывающий сообщает о нём через {@link #missing(HostedFile)}.
+     */
     public HostedFile get(String id) {
         HostedFile hf = storage.get(id);
-        if (hf == null) return null;
-        if (hf.expired() || !Files.exists(hf.path)) {
-            storage.remove(id);
+        if (hf == null || hf.expired()) { // просроченную запись поток удалит сам
+            metrics.increment("hosted.miss");
             return null;
         }
+        metrics.increment("hosted.hit");
         return hf;
     }
 
+    /**
+     * Файл записи исчез с диска — забываем её
+     */
+    public void missing(HostedFile hf) {
+        remove(hf);
+        metrics.increment("hosted.missing");
+    }
+
+    /**
+     * Скачивание файла с начала: учитывается при выборе файлов для вытеснения
+     */
+    public void recordDownload(HostedFile hf) {
+        hf.downloads.incrementAndGet();
+        metrics.increment("hosted.downloads");
+        append("A\t" + hf.id);
+    }
+
+    /**
+     * Собирает файлы в одну ссылку на ZIP. CRC файлов считаются в фоне, один раз:
+     * после этого архив отдаётся без чтения файлов в JVM. Результат — ID набора,
+     * когда все CRC готовы; IOException, если файла уже нет.
+     */
+    public CompletableFuture<String> registerBundle(String name, List<String> fileIds) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            checksums.execute(() -> {
+                try {
+                    result.complete(bundleNow(name, fileIds));
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) { // пул остановлен
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private String bundleNow(String name, List<String> fileIds) throws IOException {
+        long expiresAt = 0;
+        for (String id : fileIds) {
+            HostedFile hf = storage.get(id);
+            if (hf == null) throw new IOException("Файл не найден: " + id);
+            crc(hf);
+            expiresAt = Math.max(expiresAt, hf.expiresAt);
+        }
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Bundle bundle = new Bundle(id, name.replace('\t', ' ').replace('/', '_'), List.copyOf(fileIds), expiresAt);
+        synchronized (this) { // пока считались CRC, файлы могли удалить — тогда набор сразу некому раздавать
+            if (fileIds.stream().noneMatch(storage::containsKey)) throw new IOException("Файлы набора удалены");
+            bundles.put(id, bundle);
+            append(bundleLine(bundle));
+        }
+        if (shared.distributed()) shared.put("host:" + id, baseUrl, expiresAt - System.currentTimeMillis());
+        metrics.increment("hosted.bundles");
+        return id;
+    }
+
+    public Bundle bundle(String id) {
+        Bundle b = bundles.get(id);
+        if (b != null && b.expired()) {
+            bundles.remove(id, b);
+            b = null;
+        }
+        return b;
+    }
+
+    /**
+     * Архив набора из ещё живых файлов или null, если не осталось ни одного.
+     * Пропавшие с диска файлы забываются и в архив не попадают.
+     */
+    public StoredZip zip(Bundle bundle) {
+        List<StoredZip.Entry> entries = new ArrayList<>();
+        for (String id : bundle.fileIds) {
+            HostedFile hf = get(id);
+            if (hf == null) continue;
+            try {
+                entries.add(new StoredZip.Entry(hf.originalName, hf.path, hf.size, crc(hf), hf.lastModified));
+            } catch (NoSuchFileException e) {
+                missing(hf);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return entries.isEmpty() ? null : new StoredZip(entries);
+    }
+
+    // CRC32 файла: из кэша или одним последовательным чтением
+    long crc(HostedFile hf) throws IOException {
+        long crc = hf.crc;
+        if (crc >= 0) return crc;
+        long start = System.currentTimeMillis();
+        CRC32 c = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+        try (FileChannel in = FileChannel.open(hf.path, StandardOpenOption.READ)) {
+            while (in.read(buf.clear()) > 0) c.update(buf.flip());
+        }
+        hf.crc = crc = c.getValue();
+        append("C\t" + hf.id + "\t" + crc);
+        metrics.recordMillis("hosted.crc", System.currentTimeMillis() - start);
+        return crc;
+    }
+
+    public void recordBundleDownload(StoredZip zip) {
+        metrics.increment("hosted.bundle_downloads");
+        metrics.add("hosted.bundle_bytes", zip.size());
+    }
+
+    public String buildBundleUrl(String id) {
+        return baseUrl + "/dl/bundle/" + id;
+    }
+
+    /**
+     * Base-url узла, который раздаёт ссылку, если это не текущий узел; иначе null
+     */
+    public String ownerUrl(String id) {
+        if (!shared.distributed()) return null;
+        String owner = shared.get("host:" + id);
+        return owner == null || owner.equals(baseUrl) ? null : owner;
+    }
+
+    private void publish(HostedFile hf) {
+        long ttl = hf.expiresAt - System.currentTimeMillis();
+        if (shared.distributed() && ttl > 0) shared.put("host:" + hf.id, baseUrl, ttl);
+    }
+
+    public boolean owns(Path path) {
+        return path.toAbsolutePath().normalize().startsWith(root);
+    }
+
     public String buildUrl(String id) {
         return baseUrl + "/dl/" + id;
     }
 
-    @Scheduled(fixedDelay = 300_000)
-    public void cleanup() {
-        long now = System.currentTimeMillis();
-        storage.entrySet().removeIf(e -> e.getValue().expired() || !Files.exists(e.getValue().path));
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    // Удаляет запись и сам файл
+    private synchronized void remove(HostedFile hf) {
+        if (!storage.remove(hf.id, hf)) return;
+        byPath.remove(hf.path, hf);
+        totalBytes -= hf.size;
+        append("D\t" + hf.id);
+        if (shared.distributed()) shared.delete("host:" + hf.id);
+        try {
+            Files.deleteIfExists(hf.path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // набор, у которого не осталось файлов, истекает вместе с последним из них
+        for (Bundle b : bundles.values()) {
+            if (b.fileIds.contains(hf.id) && b.fileIds.stream().noneMatch(storage::containsKey)
+                    && bundles.remove(b.id, b)) {
+                append("D\t" + b.id);
+                if (shared.distributed()) shared.delete("host:" + b.id);
+                metrics.increment("hosted.bundles_expired");
+            }
+        }
+    }
+
+    // Вызывается под монитором; только что зарегистрированный файл не вытесняется
+    private void evict(HostedFile keep) {
+        if (totalBytes <= maxBytes) return;
+        List<HostedFile> candidates = storage.values().stream()
+                .filter(f -> f != keep)
+                .sorted(EVICTION_ORDER)
+                .collect(Collectors.toList());
+        for (HostedFile hf : candidates) {
+            if (totalBytes <= maxBytes) break;
+            remove(hf);
+            metrics.increment("hosted.evictions");
+            metrics.add("hosted.evicted_bytes", hf.size);
+        }
+    }
+
+    private static String registration(HostedFile hf) {
+        return "R\t" + hf.id + "\t" + hf.path + "\t" + hf.registeredAt + "\t" + hf.expiresAt + "\t" + hf.size
+                + "\t" + hf.contentType + "\t" + hf.lastModified + "\t" + hf.downloads() + "\t" + hf.originalName;
+    }
+
+    private static String bundleLine(Bundle b) {
+        return "B\t" + b.id + "\t" + b.expiresAt + "\t" + b.name + "\t" + String.join(",", b.fileIds);
+    }
+
+    private synchronized void append(String line) {
+        if (writer == null) return;
+        try {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+            // Скачивания, удаления и CRC копятся в журнале — периодически переписываем его
+            if (++lines > COMPACT_MIN_LINES && lines > (storage.size() + bundles.size()) * 4L) {
+                lines = compact(); // новый файл встаёт на место до закрытия старого
+                writer.close();
+                writer = null;
+                writer = open();
+                metrics.increment("hosted.journal_compactions");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
-}
 
+    private BufferedWriter open() throws IOException {
+        return Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (expiryThread != null) {
+            expiryThread.interrupt();
+            expiryThread = null;
+        }
+        checksums.shutdownNow();
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer = null;
+    }
+
+    // Вызывается под монитором; возвращает число записанных строк
+    private long compact() throws IOException {
+        Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        long written = 0;
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (HostedFile hf : storage.values()) {
+                w.write(registration(hf));
+                w.newLine();
+                written++;
+                if (hf.crc >= 0) {
+                    w.write("C\t" + hf.id + "\t" + hf.crc);
+                    w.newLine();
+                    written++;
+                }
+            }
+            for (Bundle b : bundles.values()) {
+                w.write(bundleLine(b));
+                w.newLine();
+                written++;
+            }
+        }
+        Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+}
@@ -0,0 +1,263 @@
+package school.sorokin.javabot;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Объединение одинаковых одновременных загрузок (single-flight).
+ * Первый запрос по ключу (ID ролика + формат) создаёт {@link Flight} и выполняет загрузку,
+ * остальные подписываются на тот же результат. Отмена одного ожидающего
+ * останавливает общую загрузку, только если больше никого не осталось.
+ */
+@Component
+public class InFlightDownloads {
+
+    /**
+     * Куда доставлять сообщения конкретному ожидающему
+     */
+    public interface Listener {
+        void message(String text);
+
+        /**
+         * last = true — итоговый статус, пропускать нельзя
+         */
+        void progress(String text, boolean last);
+    }
+
+    public class Waiter {
+        public final long id; // для кнопки отмены
+        public final Long chatId;
+        public final boolean leader; // этот запрос запустил загрузку
+        final Listener listener;
+        final Flight flight;
+
+        Waiter(Long chatId, boolean leader, Listener listener, Flight flight) {
+            this(ids.incrementAndGet(), chatId, leader, listener, flight);
+        }
+
+        Waiter(long id, Long chatId, boolean leader, Listener listener, Flight flight) {
+            this.id = id;
+            this.chatId = chatId;
+            this.leader = leader;
+            this.listener = listener;
+            this.flight = flight;
+        }
+
+        public Flight flight() { return flight; }
+
+        public Listener listener() { return listener; }
+
+        /**
+         * Отписывает ожидающего. Возвращает true, если это был последний и загрузка отменена.
+         */
+        public boolean cancel() {
+            return leave(this) == Leave.CANCELLED;
+        }
+    }
+
+    public class Flight implements DownloadContext {
+        public final String key;
+        private final List<Waiter> waiters = new ArrayList<>(); // под монитором InFlightDownloads
+        private volatile boolean cancelled;
+        private volatile boolean closed;
+        private volatile Process process;
+        private volatile Runnable onCancel;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void notify(String text) {
+            for (Waiter w : snapshot()) {
+                w.listener.message(text);
+            }
+        }
+
+        @Override
+        public void progress(String text) {
+            for (Waiter w : snapshot()) {
+                w.listener.progress(text, false);
+            }
+        }
+
+        /**
+         * Кто ждёт результат сейчас
+         */
+        public List<Waiter> waiters() {
+            return snapshot();
+        }
+
+        private List<Waiter> snapshot() {
+            synchronized (InFlightDownloads.this) {
+                return new ArrayList<>(waiters);
+            }
+        }
+
+        @Override
+        public void attach(Process process) {
+            this.process = process;
+            if (cancelled) ProcessTrees.kill(process, metrics);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Действие при отмене ещё не начатой загрузки (например, убрать задачу из очереди)
+         */
+        public void onCancel(Runnable action) {
+            this.onCancel = action;
+        }
+
+        void cancelShared() {
+            cancelled = true;
+            Runnable r = onCancel;
+            if (r != null) r.run();
+            // yt-dlp запускает ffmpeg и загрузчики фрагментов — останавливаем всё дерево
+            Process p = process;
+            if (p != null && p.isAlive()) ProcessTrees.kill(p, metrics);
+        }
+    }
+
+    // Чем закончилась отписка ожидающего
+    private enum Leave {
+        GONE, // уже не ждал: загрузка завершилась или его отписали раньше
+        LEFT, // отписан, остальные ждут дальше
+        CANCELLED // был последним — загрузка остановлена
+    }
+
+    private final Map<String, Flight> flights = new HashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final BotMetrics metrics;
+
+    public InFlightDownloads(BotMetrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("singleflight.active", this::active);
+    }
+
+    /**
+     * Подключает ожидающего к загрузке по ключу. Если загрузки ещё нет,
+     * создаёт её и вызывает {@code starter} — ровно один раз на ключ.
+     */
+    public Waiter join(String key, Long chatId, Listener listener, Consumer<Flight> starter) {
+        Flight flight;
+        Waiter waiter;
+        boolean leader;
+        synchronized (this) {
+            flight = flights.get(key);
+            leader = flight == null;
+            if (leader) {
+                flight = new Flight(key);
+                flights.put(key, flight);
+            }
+            waiter = new Waiter(chatId, leader, listener, flight);
+            flight.waiters.add(waiter);
+        }
+        if (leader) {
+            metrics.increment("singleflight.leader");
+            starter.accept(flight);
+        } else {
+            metrics.increment("singleflight.coalesced");
+        }
+        return waiter;
+    }
+
+    /**
+     * Повторная загрузка для одного ожидающего, когда общая уже закрыта (например, Telegram
+     * отверг сохранённый file_id). Ожидающий под тем же ID снова виден кнопке отмены и /cancel;
+     * с другими запросами эта загрузка не объединяется. Закрывается через {@link #complete}.
+     */
+    public synchronized Waiter retry(Waiter waiter) {
+        Flight flight = new Flight(waiter.flight.key + "#" + waiter.id);
+        flights.put(flight.key, flight);
+        Waiter again = new Waiter(waiter.id, waiter.chatId, true, waiter.listener, flight);
+        flight.waiters.add(again);
+        metrics.increment("singleflight.retry");
+        return again;
+    }
+
+    /**
+     * Закрывает загрузку: новые запросы по ключу создадут новую.
+     * Возвращает всех, кто ждёт результата.
+     */
+    public synchronized List<Waiter> complete(Flight flight) {
+        flight.closed = true;
+        flights.remove(flight.key, flight);
+        List<Waiter> result = new ArrayList<>(flight.waiters);
+        flight.waiters.clear();
+        return result;
+    }
+
+    /**
+     * Отмена пользователем всех его загрузок (/cancel). Возвращает отписанных ожидающих;
+     * загрузки, которые успели завершиться в это время, в список не попадают.
+     */
+    public List<Waiter> cancelChat(Long chatId) {
+        List<Waiter> mine = new ArrayList<>();
+        synchronized (this) {
+            for (Flight f : flights.values()) {
+                for (Waiter w : f.waiters) {
+                    if (w.chatId.equals(chatId)) mine.add(w);
+                }
+            }
+        }
+        List<Waiter> removed = new ArrayList<>();
+        for (Waiter w : mine) {
+            if (leave(w) == Leave.GONE) continue;
+            metrics.increment("jobs.cancelled");
+            removed.add(w);
+        }
+        return removed;
+    }
+
+    /**
+     * Отмена одной загрузки кнопкой; null — ожидающего уже нет (в том числе загрузка
+     * завершилась одновременно с нажатием) или он из другого чата
+     */
+    public Waiter cancel(long waiterId, Long chatId) {
+        Waiter found = null;
+        synchronized (this) {
+            for (Flight f : flights.values()) {
+                for (Waiter w : f.waiters) {
+                    if (w.id == waiterId && w.chatId.equals(chatId)) found = w;
+                }
+            }
+        }
+        if (found == null || leave(found) == Leave.GONE) return null;
+        metrics.increment("jobs.cancelled");
+        return found;
+    }
+
+    private Leave leave(Waiter waiter) {
+        Flight flight = waiter.flight;
+        synchronized (this) {
+            if (flight.closed || !flight.waiters.remove(waiter)) return Leave.GONE;
+            if (!flight.waiters.isEmpty()) return Leave.LEFT;
+            flights.remove(flight.key, flight);
+            flight.closed = true;
+        }
+        metrics.increment("singleflight.cancelled");
+        flight.cancelShared();
+        return Leave.CANCELLED;
+    }
+
+    /**
+     * Идёт ли загрузка по ключу на этом узле
+     */
+    public synchronized boolean contains(String key) {
+        return flights.containsKey(key);
+    }
+
+    public synchronized int active() {
+        return flights.size();
+    }
+}
@@ -0,0 +1,102 @@
+package school.sorokin.javabot;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link SharedStore} в памяти процесса: один экземпляр бота, поведение как до появления
+ * общего хранилища. Просроченные ключи снимаются при чтении и периодически при записи.
+ */
+@Component
+@ConditionalOnProperty(name = "store.backend", havingValue = "memory", matchIfMissing = true)
+public class InMemorySharedStore implements SharedStore {
+
+    private static final int SWEEP_EVERY = 1024;
+
+    private static class Item {
+        final String value;
+        final long expiresAt; // 0 — без срока
+
+        Item(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired(long now) {
+            return expiresAt != 0 && now > expiresAt;
+        }
+    }
+
+    private final Map<String, Item> items = new ConcurrentHashMap<>();
+    private final Map<String, ConcurrentLinkedQueue<String>> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger writes = new AtomicInteger();
+
+    @Override
+    public String get(String key) {
+        Item item = items.get(key);
+        if (item == null) return null;
+        if (item.expired(System.currentTimeMillis())) {
+            items.remove(key, item);
+            return null;
+        }
+        return item.value;
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) {
+        items.put(key, item(value, ttlMillis));
+        sweep();
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value, long ttlMillis) {
+        Item fresh = item(value, ttlMillis);
+        long now = System.currentTimeMillis();
+        Item current = items.compute(key, (k, old) -> old == null || old.expired(now) ? fresh : old);
+        sweep();
+        return current == fresh ? null : current.value;
+    }
+
+    @Override
+    public void delete(String key) {
+        items.remove(key);
+    }
+
+    @Override
+    public String take(String key) {
+        Item item = items.remove(key);
+        return item == null || item.expired(System.currentTimeMillis()) ? null : item.value;
+    }
+
+    @Override
+    public boolean push(String queue, String value) {
+        return queues.computeIfAbsent(queue, q -> new ConcurrentLinkedQueue<>()).add(value);
+    }
+
+    @Override
+    public String poll(String queue) {
+        ConcurrentLinkedQueue<String> q = queues.get(queue);
+        return q == null ? null : q.poll();
+    }
+
+    @Override
+    public long size(String queue) {
+        ConcurrentLinkedQueue<String> q = queues.get(queue);
+        return q == null ? 0 : q.size();
+    }
+
+    private static Item item(String value, long ttlMillis) {
+        return new Item(value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0);
+    }
+
+    private void sweep() {
+        if (writes.incrementAndGet() % SWEEP_EVERY != 0) return;
+        long now = System.currentTimeMillis();
+        items.values().removeIf(i -> i.expired(now));
+    }
+}
@@ -0,0 +1,225 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Журнал задач загрузки (append-only TSV): чат, ссылка, формат и стадия каждой задачи.
+ * Переживает перезапуск и OOM: незавершённые задачи отдаются через {@link #drainRecovered()},
+ * чтобы их можно было повторить или честно завершить с сообщением пользователю.
+ * Записи: {@code Q id chat format attempt url}, {@code S id stage}, {@code D id}.
+ * Табуляция и переводы строк в ссылке кодируются ({@link #field}), иначе разорвали бы запись.
+ */
+@Service
+public class JobJournal {
+
+    public enum Stage { QUEUED, RUNNING, SENDING }
+
+    public static class Job {
+        public final long id;
+        public final Long chatId;
+        public final String url;
+        public final MediaFormat format;
+        public final int attempt; // 1 — первый запуск, больше — повтор после перезапуска
+        volatile Stage stage = Stage.QUEUED;
+
+        Job(long id, Long chatId, String url, MediaFormat format, int attempt) {
+            this.id = id;
+            this.chatId = chatId;
+            this.url = url;
+            this.format = format;
+            this.attempt = attempt;
+        }
+
+        public Stage stage() {
+            return stage;
+        }
+    }
+
+    private static final long COMPACT_MIN_LINES = 10_000;
+
+    private final Path journal;
+    private final boolean fsync;
+    private final BotMetrics metrics;
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();
+    private final List<Job> recovered = new ArrayList<>();
+    private FileChannel channel;
+    private long nextId = 1;
+    private long lines;
+
+    public JobJournal(@Value("${download.jobs.journal:data/jobs.tsv}") String path,
+                      @Value("${download.jobs.fsync:false}") boolean fsync,
+                      BotMetrics metrics) {
+        this.journal = Paths.get(path).toAbsolutePath().normalize();
+        this.fsync = fsync;
+        this.metrics = metrics;
+        metrics.gauge("jobs.active", this::size);
+    }
+
+    /**
+     * Проигрывает журнал. Всё, что осталось незавершённым, — задачи, прерванные падением
+     */
+    @PostConstruct
+    public synchronized void load() {
+        try {
+            Files.createDirectories(journal.getParent());
+            if (Files.exists(journal)) {
+                for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                    replay(line.split("\t", 6));
+                    lines++;
+                }
+            }
+            recovered.addAll(jobs.values()); // остаются в jobs, пока их не завершат
+            try {
+                compact(jobs.values());
+                lines = jobs.size() * 2L;
+            } catch (IOException e) {
+                e.printStackTrace(); // журнал остаётся несжатым, но писать в него можно
+            }
+            channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!recovered.isEmpty()) metrics.add("jobs.recovered", recovered.size());
+    }
+
+    private void replay(String[] p) {
+        try {
+            switch (p[0]) {
+                case "Q" -> {
+                    if (p.length < 6) return;
+                    MediaFormat format = MediaFormat.fromCode(p[3]);
+                    if (format == null) return;
+                    long id = Long.parseLong(p[1]);
+                    jobs.put(id, new Job(id, Long.parseLong(p[2]), p[5], format, Integer.parseInt(p[4])));
+                    nextId = Math.max(nextId, id + 1);
+                }
+                case "S" -> {
+                    Job job = p.length == 3 ? jobs.get(Long.parseLong(p[1])) : null;
+                    if (job != null) job.stage = Stage.valueOf(p[2]);
+                }
+                case "D" -> {
+                    if (p.length == 2) jobs.remove(Long.parseLong(p[1]));
+                }
+                default -> {
+                }
+            }
+        } catch (IllegalArgumentException e) { // обрезанная при падении строка
+            metrics.increment("jobs.journal_corrupt");
+        }
+    }
+
+    /**
+     * Задачи, прерванные прошлым запуском; отдаются один раз
+     */
+    public synchronized List<Job> drainRecovered() {
+        List<Job> out = new ArrayList<>(recovered);
+        recovered.clear();
+        return out;
+    }
+
+    public synchronized Job queued(Long chatId, String url, MediaFormat format, int attempt) {
+        Job job = new Job(nextId++, chatId, url, format, attempt);
+        jobs.put(job.id, job);
+        append("Q\t" + job.id + "\t" + chatId + "\t" + format.code + "\t" + attempt + "\t" + field(url));
+        return job;
+    }
+
+    public synchronized void stage(Job job, Stage stage) {
+        if (job == null || job.stage == stage || !jobs.containsKey(job.id)) return;
+        job.stage = stage;
+        append("S\t" + job.id + "\t" + stage.name());
+    }
+
+    /**
+     * Задача завершена любым исходом (файл отправлен, ошибка, отмена, отказ по лимитам)
+     */
+    public synchronized void finished(Job job) {
+        if (job == null || jobs.remove(job.id) == null) return;
+        append("D\t" + job.id);
+        // Журнал растёт только за счёт завершённых задач — периодически переписываем его
+        if (lines > COMPACT_MIN_LINES && lines > jobs.size() * 8L) {
+            try {
+                // новый файл встаёт на место до закрытия старого: при ошибке продолжаем писать в старый
+                compact(jobs.values());
+                lines = jobs.size() * 2L;
+                channel.close();
+                channel = null;
+                channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+                metrics.increment("jobs.journal_compactions");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Значение для последнего поля TSV-записи: {@code \t}, {@code \r}, {@code \n} заменяются
+     * процентным кодированием — в настоящей ссылке их всё равно быть не может
+     */
+    static String field(String value) {
+        return value.replace("\t", "%09").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private void append(String line) {
+        lines++;
+        if (channel == null) return;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) channel.write(buf);
+            // без fsync запись уже в кэше ОС: переживает падение JVM, но не отключение питания
+            if (fsync) channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void compact(Iterable<Job> live) throws IOException {
+        Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Job job : live) {
+                w.write("Q\t" + job.id + "\t" + job.chatId + "\t" + job.format.code + "\t" + job.attempt + "\t" + field(job.url));
+                w.newLine();
+                if (job.stage != Stage.QUEUED) {
+                    w.write("S\t" + job.id + "\t" + job.stage.name());
+                    w.newLine();
+                }
+            }
+        }
+        Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,91 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Отдельная временная папка на каждую задачу загрузки.
+ * Результат yt-dlp ищется только внутри неё, поэтому параллельные задачи
+ * не мешают друг другу и не нужно сканировать рабочий каталог.
+ */
+@Component
+public class JobWorkspaces {
+
+    private static final String PREFIX = "job_";
+
+    private final Path root;
+    private final BotMetrics metrics;
+
+    public JobWorkspaces(@Value("${download.workspace.dir:work}") String dir, BotMetrics metrics) {
+        this.root = Paths.get(dir).toAbsolutePath().normalize();
+        this.metrics = metrics;
+    }
+
+    /**
+     * При старте все папки задач — осиротевшие остатки прошлого запуска
+     */
+    @PostConstruct
+    public void cleanupOrphans() {
+        try {
+            Files.createDirectories(root);
+            List<Path> orphans;
+            try (Stream<Path> stream = Files.list(root)) {
+                orphans = stream.filter(Files::isDirectory)
+                        .filter(p -> p.getFileName().toString().startsWith(PREFIX))
+                        .collect(Collectors.toList());
+            }
+            for (Path p : orphans) {
+                release(p);
+                metrics.increment("workspace.orphans_removed");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Path create() throws IOException {
+        Files.createDirectories(root);
+        return Files.createTempDirectory(root, PREFIX);
+    }
+
+    /**
+     * Удаляет папку задачи со всем содержимым
+     */
+    public void release(Path workspace) {
+        if (workspace == null || !workspace.toAbsolutePath().normalize().startsWith(root)) return;
+        try (Stream<Path> walk = Files.walk(workspace)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Запасной способ найти результат: единственный готовый файл в папке задачи
+     */
+    public Path findOutput(Path workspace) {
+        try (Stream<Path> stream = Files.list(workspace)) {
+            return stream.filter(Files::isRegularFile)
+                    .filter(p -> {
+                        String n = p.getFileName().toString();
+                        return !n.endsWith(".part") && !n.endsWith(".ytdl") && !n.contains(".part-Frag");
+                    })
+                    .max(Comparator.comparingLong(p -> p.toFile().length()))
+                    .orElse(null);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package school.sorokin.javabot;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Последние N строк вывода процесса — для диагностики ошибок без роста памяти.
+ */
+public class LogTail {
+
+    private final int maxLines;
+    private final Deque<String> lines = new ArrayDeque<>();
+
+    public LogTail(int maxLines) {
+        this.maxLines = Math.max(1, maxLines);
+    }
+
+    public synchronized void add(String line) {
+        if (lines.size() == maxLines) lines.removeFirst();
+        lines.addLast(line);
+    }
+
+    public synchronized boolean containsIgnoreCase(String needle) {
+        String n = needle.toLowerCase();
+        for (String line : lines) {
+            if (line.toLowerCase().contains(n)) return true;
+        }
+        return false;
+    }
+
+    public synchronized String text() {
+        return String.join("\n", lines);
+    }
+}
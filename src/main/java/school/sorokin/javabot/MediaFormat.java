@@ -0,0 +1,30 @@
+package school.sorokin.javabot;
+
+/**
+ * Формат, который пользователь выбрал кнопкой.
+ */
+public enum MediaFormat {
+    VIDEO_720("v720"),
+    MP3_128("mp3"),
+    AUDIO_ORIGINAL("orig");
+
+    public final String code;
+
+    MediaFormat(String code) {
+        this.code = code;
+    }
+
+    public static MediaFormat fromCode(String code) {
+        for (MediaFormat f : values()) {
+            if (f.code.equals(code)) return f;
+        }
+        return null;
+    }
+
+    /**
+     * Формат аудио-кнопки: a_mp3_ / a_orig_
+     */
+    public static MediaFormat audio(String fmt) {
+        return "mp3".equals(fmt) ? MP3_128 : AUDIO_ORIGINAL;
+    }
+}
@@ -0,0 +1,187 @@
+package school.sorokin.javabot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Метаданные роликов ({@code yt-dlp -J}), запрашиваемые сразу при получении ссылки.
+ * Кэшируются по ID ролика с TTL; одновременные запросы одного ролика объединяются.
+ * По ним показываются оценки на кнопках и отклоняется контент сверх лимитов до загрузки.
+ */
+@Service
+public class MetadataService {
+
+    static class Entry {
+        final CompletableFuture<VideoMetadata> future;
+        final long createdAt;
+
+        Entry(CompletableFuture<VideoMetadata> future, long createdAt) {
+            this.future = future;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final ToolRegistry toolRegistry;
+    private final ObjectMapper objectMapper;
+    private final BotMetrics metrics;
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final long timeoutSec;
+    private final long maxDurationSec;
+    private final long maxBytes;
+    private final ExecutorService executor;
+    // Порядок вставки = порядок создания: просроченные и самые старые записи — в начале
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>();
+
+    public MetadataService(ToolRegistry toolRegistry,
+                           ObjectMapper objectMapper,
+                           BotMetrics metrics,
+                           @Value("${download.metadata.ttl-minutes:60}") long ttlMinutes,
+                           @Value("${download.metadata.max-entries:2000}") int maxEntries,
+                           @Value("${download.metadata.timeout-seconds:30}") long timeoutSec,
+                           @Value("${download.metadata.threads:2}") int threads,
+                           @Value("${download.limit.max-duration-minutes:10}") long maxDurationMinutes,
+                           @Value("${download.limit.max-mb:2048}") long maxMb) {
+        this.toolRegistry = toolRegistry;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.ttlMillis = ttlMinutes * 60_000L;
+        this.maxEntries = maxEntries;
+        this.timeoutSec = timeoutSec;
+        this.maxDurationSec = maxDurationMinutes * 60;
+        this.maxBytes = maxMb * 1024 * 1024;
+        AtomicInteger n = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "metadata-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("metadata.entries", this::size);
+    }
+
+    /**
+     * Метаданные из кэша или запущенный в фоне запрос. Ошибка запроса не кэшируется.
+     */
+    public CompletableFuture<VideoMetadata> fetch(VideoRef ref) {
+        String key = ref.key();
+        CompletableFuture<VideoMetadata> future;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            expire(now);
+            Entry e = cache.get(key);
+            if (e != null) {
+                metrics.increment("metadata.hit");
+                return e.future;
+            }
+            metrics.increment("metadata.miss");
+            future = new CompletableFuture<>();
+            cache.put(key, new Entry(future, now));
+            while (cache.size() > maxEntries) {
+                Iterator<Entry> it = cache.values().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(load(ref.url));
+                } catch (Exception ex) {
+                    metrics.increment("metadata.errors");
+                    forget(key, future);
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RuntimeException ex) { // пул остановлен
+            forget(key, future);
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Уже полученные метаданные или null (без запуска запроса)
+     */
+    public synchronized VideoMetadata cached(VideoRef ref) {
+        Entry e = cache.get(ref.key());
+        if (e == null || System.currentTimeMillis() - e.createdAt > ttlMillis) return null;
+        return e.future.getNow(null);
+    }
+
+    /**
+     * Причина отказа для формата или null, если ролик укладывается в лимиты
+     */
+    public String rejectReason(VideoMetadata meta, MediaFormat format) {
+        if (meta == null) return null;
+        if (maxDurationSec > 0 && meta.durationSec > maxDurationSec) {
+            return "❌ Слишком длинный ролик: " + meta.durationText()
+                    + " (максимум " + VideoMetadata.formatDuration(maxDurationSec) + ").";
+        }
+        long size = meta.estimate(format);
+        if (maxBytes > 0 && size > maxBytes) {
+            return "❌ Файл слишком большой: " + VideoMetadata.humanSize(size)
+                    + " (максимум " + VideoMetadata.humanSize(maxBytes).substring(1) + ").";
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    private VideoMetadata load(String url) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        Process p = new ProcessBuilder(toolRegistry.ytDlpPath(), "-J", "--no-playlist", "--no-warnings", url)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        // Зависший yt-dlp не должен держать поток: по таймауту процесс убивается, чтение завершается
+        CompletableFuture.delayedExecutor(timeoutSec, TimeUnit.SECONDS).execute(() -> {
+            if (p.isAlive()) {
+                metrics.increment("metadata.timeouts");
+                p.destroyForcibly();
+            }
+        });
+        JsonNode root;
+        try (InputStream in = p.getInputStream()) {
+            root = objectMapper.readTree(in);
+        }
+        int exit = p.waitFor();
+        if (exit != 0 || root == null || !root.isObject()) {
+            throw new IOException("yt-dlp -J failed with exit code " + exit);
+        }
+        metrics.recordMillis("metadata.fetch", System.currentTimeMillis() - start);
+        return VideoMetadata.from(root);
+    }
+
+    private synchronized void forget(String key, CompletableFuture<VideoMetadata> future) {
+        Entry e = cache.get(key);
+        if (e != null && e.future == future) cache.remove(key);
+    }
+
+    // Снимает просроченные записи с начала: O(число просроченных)
+    private void expire(long now) {
+        Iterator<Entry> it = cache.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().createdAt <= ttlMillis) break;
+            it.remove();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
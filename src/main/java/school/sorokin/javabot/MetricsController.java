@@ -0,0 +1,26 @@
+package school.sorokin.javabot;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+public class MetricsController {
+
+    private final BotMetrics metrics;
+
+    public MetricsController(BotMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @GetMapping(value = "/metrics", produces = MediaType.TEXT_PLAIN_VALUE)
+    public String metrics() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Number> e : metrics.snapshot().entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,219 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Потоковое получение MP3: stdout yt-dlp -> бот (NIO, фиксированный буфер) -> stdin ffmpeg.
+ * Исходный аудио-файл на диск не пишется, ffmpeg начинает кодировать с первых байт.
+ */
+@Component
+public class Mp3StreamPipeline {
+
+    /**
+     * Ошибка конвейера. fallback = true — потоковый путь не сработал (процесс не запустился,
+     * формат не отдаётся в stdout, ffmpeg не прочитал поток), можно попробовать обычный двухшаговый путь.
+     */
+    public static class PipelineException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final boolean fallback;
+
+        PipelineException(String message, boolean fallback) {
+            super(message);
+            this.fallback = fallback;
+        }
+    }
+
+    private static final int STDERR_TAIL_LINES = 20;
+
+    private final int bufferBytes;
+    private final long timeoutMillis;
+    private final BotMetrics metrics;
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mp3-pipe-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public Mp3StreamPipeline(@Value("${download.mp3.pipe-buffer-kb:64}") int bufferKb,
+                             @Value("${download.mp3.timeout-minutes:6}") long timeoutMinutes,
+                             BotMetrics metrics) {
+        this.bufferBytes = Math.max(4, bufferKb) * 1024;
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        this.metrics = metrics;
+    }
+
+    public Path run(DownloadContext ctx, String ytDlpPath, String ffmpegPath, String url, Path target)
+            throws PipelineException {
+        Process ytdlp = null;
+        Process ffmpeg = null;
+        StderrTail ytErr = null;
+        StderrTail ffErr = null;
+        long piped = 0;
+        long start = System.currentTimeMillis();
+        ScheduledFuture<?> timeout = null;
+        boolean ok = false;
+        try {
+            try {
+                ffmpeg = new ProcessBuilder(ffmpegPath, "-hide_banner", "-loglevel", "error", "-y",
+                        "-i", "pipe:0", "-vn", "-ac", "2", "-ar", "44100", "-b:a", "128k", "-f", "mp3",
+                        target.toString())
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .start();
+                ytdlp = new ProcessBuilder(ytDlpPath, "--no-playlist", "--quiet", "--progress", "--newline",
+                        "-f", "bestaudio[ext=webm]/bestaudio", "-o", "-", url) // webm/opus читается из pipe без перемотки
+                        .start();
+            } catch (IOException e) {
+                throw new PipelineException("не удалось запустить процессы: " + e.getMessage(), true);
+            }
+            ctx.attach(ytdlp);
+            ytErr = StderrTail.start(ytdlp.getErrorStream(), "yt-dlp-stderr", ctx);
+            ffErr = StderrTail.start(ffmpeg.getErrorStream(), "ffmpeg-stderr", null);
+            Process y = ytdlp;
+            Process f = ffmpeg;
+            timeout = watchdog.schedule(() -> {
+                ProcessTrees.kill(y, metrics);
+                ProcessTrees.kill(f, metrics);
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+            boolean ffmpegBroken = false;
+            ByteBuffer buf = ByteBuffer.allocateDirect(bufferBytes);
+            try (ReadableByteChannel in = Channels.newChannel(ytdlp.getInputStream());
+                 WritableByteChannel out = Channels.newChannel(ffmpeg.getOutputStream())) {
+                while (in.read(buf) >= 0) {
+                    buf.flip();
+                    try {
+                        while (buf.hasRemaining()) piped += out.write(buf);
+                    } catch (IOException e) { // ffmpeg закрыл stdin (упал) — дальше качать бессмысленно
+                        ffmpegBroken = true;
+                        ProcessTrees.kill(ytdlp, metrics);
+                        break;
+                    }
+                    buf.clear();
+                }
+            } catch (IOException e) {
+                if (!ffmpegBroken) ProcessTrees.kill(ytdlp, metrics);
+            }
+
+            int ytExit = waitExit(ytdlp);
+            int ffExit = waitExit(ffmpeg);
+            metrics.add("mp3.pipe.bytes", piped);
+            if (ctx.isCancelled()) {
+                throw new PipelineException("⛔ Загрузка отменена.", false);
+            }
+            if (timeout.isDone()) {
+                throw new PipelineException("⏱ Таймаут скачивания аудио.", false);
+            }
+            if (ffmpegBroken) { // yt-dlp мы остановили сами, его код выхода не показателен
+                log("ffmpeg", ffErr);
+                throw new PipelineException("⚠️ Не удалось конвертировать в mp3 (ffmpeg ошибка).", true);
+            }
+            if (ytExit != 0) {
+                log("yt-dlp", ytErr);
+                // Ничего не пришло — вероятно, формат нельзя отдать в stdout; пробуем обычный путь
+                throw new PipelineException("❌ Ошибка скачивания аудио (код " + ytExit + ").", piped == 0);
+            }
+            if (ffExit != 0 || piped == 0) {
+                log("ffmpeg", ffErr);
+                throw new PipelineException("⚠️ Не удалось конвертировать в mp3 (ffmpeg ошибка).", true);
+            }
+            if (!Files.isRegularFile(target)) {
+                throw new PipelineException("❌ Аудио файл не найден.", true);
+            }
+            ok = true;
+            metrics.recordMillis("mp3.pipe", System.currentTimeMillis() - start);
+            return target;
+        } finally {
+            if (timeout != null) timeout.cancel(false);
+            if (ytdlp != null && ytdlp.isAlive()) ProcessTrees.kill(ytdlp, metrics);
+            if (ffmpeg != null && ffmpeg.isAlive()) ProcessTrees.kill(ffmpeg, metrics);
+            if (!ok) {
+                metrics.increment("mp3.pipe.failed");
+                try {
+                    Files.deleteIfExists(target);
+                } catch (IOException ignored) {
+                    // папку задачи всё равно удалят целиком
+                }
+            } else {
+                metrics.increment("mp3.pipe.ok");
+            }
+        }
+    }
+
+    private static int waitExit(Process p) {
+        try {
+            return p.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.destroyForcibly();
+            return -1;
+        }
+    }
+
+    private static void log(String tool, StderrTail tail) {
+        if (tail != null) System.err.println(tool + " (mp3 pipe):\n" + tail.text());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * Вычитывает stderr процесса в отдельном потоке: прогресс — в контекст, остальное — в хвост лога
+     */
+    static class StderrTail {
+        private final LogTail tail = new LogTail(STDERR_TAIL_LINES);
+        private final Thread thread;
+
+        private StderrTail(InputStream in, String name, DownloadContext ctx) {
+            this.thread = new Thread(() -> {
+                try (var br = new java.io.BufferedReader(new java.io.InputStreamReader(in, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        YtDlpProgress progress = ctx == null ? null : YtDlpProgress.parse(line);
+                        if (progress != null) {
+                            ctx.progress(progress.describe());
+                        } else {
+                            tail.add(line);
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // процесс завершён
+                }
+            }, name);
+            thread.setDaemon(true);
+        }
+
+        static StderrTail start(InputStream in, String name, DownloadContext ctx) {
+            StderrTail t = new StderrTail(in, name, ctx);
+            t.thread.start();
+            return t;
+        }
+
+        String text() {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return tail.text();
+        }
+    }
+}
@@ -1,18 +1,23 @@
 package school.sorokin.javabot;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
 import org.telegram.telegrambots.longpolling.starter.SpringLongPollingBot;
 
+/**
+ * Long polling — режим по умолчанию; при telegram.mode=webhook апдейты принимает {@link WebhookController}
+ */
 @Component
+@ConditionalOnProperty(name = "telegram.mode", havingValue = "polling", matchIfMissing = true)
 public class MyTelegramBot implements SpringLongPollingBot {
 
-    private final UpdateConsumer updateConsumer;
+    private final StripedUpdateDispatcher updateDispatcher;
     private final String botToken;
 
-    public MyTelegramBot(UpdateConsumer updateConsumer, @Value("${telegram.bot.token}") String botToken) {
-        this.updateConsumer = updateConsumer;
+    public MyTelegramBot(StripedUpdateDispatcher updateDispatcher, @Value("${telegram.bot.token}") String botToken) {
+        this.updateDispatcher = updateDispatcher;
         this.botToken = botToken;
     }
 
@@ -23,6 +28,6 @@ public class MyTelegramBot implements SpringLongPollingBot {
 
     @Override
     public LongPollingUpdateConsumer getUpdatesConsumer() {
-        return updateConsumer;
+        return updateDispatcher; // апдейты обрабатываются параллельно по чатам
     }
 }
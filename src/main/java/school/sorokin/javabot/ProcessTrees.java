@@ -0,0 +1,32 @@
+package school.sorokin.javabot;
+
+import java.util.List;
+
+/**
+ * Остановка процесса вместе с потомками. yt-dlp запускает ffmpeg и загрузчики фрагментов;
+ * {@link Process#destroyForcibly()} убивает только сам yt-dlp, и дети продолжают
+ * занимать CPU и диск. Список потомков снимается до остановки родителя: после его
+ * смерти они переходят к init и через {@link ProcessHandle#descendants()} уже не видны.
+ */
+final class ProcessTrees {
+
+    private ProcessTrees() {
+    }
+
+    /**
+     * Убивает процесс и всех его потомков. Возвращает число остановленных потомков.
+     */
+    static int kill(Process process, BotMetrics metrics) {
+        if (process == null) return 0;
+        List<ProcessHandle> descendants = process.descendants().toList();
+        boolean alive = process.isAlive();
+        process.destroyForcibly();
+        int killed = 0;
+        for (ProcessHandle h : descendants) {
+            if (h.isAlive() && h.destroyForcibly()) killed++;
+        }
+        if (alive) metrics.increment("process.killed");
+        if (killed > 0) metrics.add("process.orphans_killed", killed);
+        return killed;
+    }
+}
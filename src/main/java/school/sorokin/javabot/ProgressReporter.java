@@ -0,0 +1,146 @@
+package school.sorokin.javabot;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Одно статусное сообщение на загрузку, которое редактируется по мере прогресса.
+ * Правки одного статуса не чаще minIntervalMs, чтобы не упираться в лимиты Telegram;
+ * общий темп сообщений в чат держит {@link TelegramSender}.
+ * Отправка идёт через {@link TelegramSender} асинхронно: ещё не отправленная правка
+ * заменяется более новой, а поток загрузки не ждёт Telegram.
+ */
+@Component
+public class ProgressReporter {
+
+    public class Status {
+        final Long chatId;
+        final String key; // ключ схлопывания в очереди отправки
+        private Integer messageId;
+        private String lastText;
+        private boolean sending; // первое сообщение ещё в очереди
+        private String deferredText; // итог, пришедший до получения messageId
+        private long lastEditAt;
+        private volatile InlineKeyboardMarkup keyboard; // кнопка отмены, пока загрузка идёт
+
+        Status(Long chatId, long n) {
+            this.chatId = chatId;
+            this.key = "status:" + n;
+        }
+
+        /**
+         * Обновление прогресса: может быть пропущено из-за ограничения частоты
+         */
+        public void update(String text) {
+            ProgressReporter.this.update(this, text, false);
+        }
+
+        /**
+         * Итоговый текст: пропускать нельзя. Если статус ещё не показывался, ничего не делает
+         */
+        public void finish(String text) {
+            ProgressReporter.this.update(this, text, true);
+        }
+
+        /**
+         * Кнопка «Отменить» под статусом; итоговый текст показывается уже без неё
+         */
+        public void cancelButton(String callbackData) {
+            keyboard = InlineKeyboardMarkup.builder()
+                    .keyboardRow(new InlineKeyboardRow(InlineKeyboardButton.builder()
+                            .text("✖️ Отменить")
+                            .callbackData(callbackData)
+                            .build()))
+                    .build();
+        }
+
+        /**
+         * Статус устарел (например, пришла ошибка): неотправленные правки не нужны
+         */
+        public void supersede() {
+            sender.dropPending(chatId, key);
+        }
+    }
+
+    private final TelegramSender sender;
+    private final BotMetrics metrics;
+    private final long minIntervalMs;
+    private final AtomicLong ids = new AtomicLong();
+
+    public ProgressReporter(TelegramSender sender,
+                            BotMetrics metrics,
+                            @Value("${telegram.progress.min-interval-ms:3000}") long minIntervalMs) {
+        this.sender = sender;
+        this.metrics = metrics;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    public Status open(Long chatId) {
+        return new Status(chatId, ids.incrementAndGet());
+    }
+
+    private void update(Status s, String text, boolean force) {
+        synchronized (s) {
+            if (text.equals(s.lastText)) return;
+            if (s.messageId == null) {
+                if (s.sending) {
+                    if (force) s.deferredText = text; // отправим правкой, когда придёт messageId
+                    return;
+                }
+                if (force) return;
+                s.sending = true;
+                s.lastText = text;
+                sender.submit(s.chatId, TelegramSender.Priority.STATUS, s.key, c -> c.execute(SendMessage.builder()
+                                .chatId(s.chatId.toString())
+                                .text(text)
+                                .replyMarkup(s.keyboard)
+                                .build()))
+                        .whenComplete((m, e) -> sent(s, m, e));
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (!force && now - s.lastEditAt < minIntervalMs) {
+                metrics.increment("progress.throttled");
+                return;
+            }
+            s.lastEditAt = now;
+            s.lastText = text;
+            Integer messageId = s.messageId;
+            InlineKeyboardMarkup keyboard = force ? null : s.keyboard;
+            sender.submit(s.chatId, TelegramSender.Priority.STATUS, s.key, c -> c.execute(EditMessageText.builder()
+                            .chatId(s.chatId.toString())
+                            .messageId(messageId)
+                            .text(text)
+                            .replyMarkup(keyboard)
+                            .build()))
+                    .whenComplete((r, e) -> {
+                        if (e != null) metrics.increment("progress.errors");
+                        else if (r != null) metrics.increment("progress.edits");
+                    });
+        }
+    }
+
+    private void sent(Status s, Message m, Throwable error) {
+        String deferred;
+        synchronized (s) {
+            s.sending = false;
+            if (error != null) metrics.increment("progress.errors");
+            if (m == null) { // не отправлено или отменено — статуса нет
+                s.lastText = null;
+                return;
+            }
+            s.messageId = m.getMessageId();
+            deferred = s.deferredText;
+            s.deferredText = null;
+        }
+        if (deferred != null) update(s, deferred, true);
+    }
+}
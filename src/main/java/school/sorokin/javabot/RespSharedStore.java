@@ -0,0 +1,293 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * {@link SharedStore} на сервере с протоколом Redis (RESP2): Redis, Valkey, KeyDB.
+ * Используются только GET, SET (PX/NX), DEL, GETDEL, RPUSH, LPOP, LLEN — клиентская библиотека не нужна.
+ * Одно соединение, команды идут по очереди: все вызовы короткие, а общие данные нужны
+ * лишь на промахах локальных кэшей. Если старое соединение оказалось оборванным,
+ * команда повторяется на новом — но RPUSH и LPOP только тогда, когда до сервера они
+ * не дошли: повтор добавил бы задачу дважды или снял бы лишнюю (то же для GETDEL). После таймаута
+ * или неудачного подключения сервер не опрашивается {@link #RETRY_AFTER_MS} мс, и все
+ * вызовы в это время сразу получают отказ, не дожидаясь очереди к сокету.
+ */
+@Component
+@ConditionalOnProperty(name = "store.backend", havingValue = "redis")
+public class RespSharedStore implements SharedStore {
+
+    static final long RETRY_AFTER_MS = 1000;
+
+    // Повтор этих команд не меняет результат, их можно отправить ещё раз после обрыва
+    private static final Set<String> IDEMPOTENT = Set.of("GET", "SET", "DEL", "LLEN");
+
+    /**
+     * Ответ сервера с ошибкой ({@code -ERR ...})
+     */
+    static class RespException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RespException(String message) {
+            super(message);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final String prefix;
+    private final int timeoutMillis;
+    private final BotMetrics metrics;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private volatile long downUntil;
+    private boolean reportedDown; // под монитором: о недоступности пишем в лог один раз
+
+    public RespSharedStore(@Value("${store.redis.host:localhost}") String host,
+                           @Value("${store.redis.port:6379}") int port,
+                           @Value("${store.redis.password:}") String password,
+                           @Value("${store.redis.prefix:javabot:}") String prefix,
+                           @Value("${store.redis.timeout-ms:2000}") int timeoutMillis,
+                           BotMetrics metrics) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.prefix = prefix;
+        this.timeoutMillis = timeoutMillis;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean distributed() {
+        return true;
+    }
+
+    @Override
+    public boolean available() {
+        return System.currentTimeMillis() >= downUntil;
+    }
+
+    @Override
+    public String get(String key) {
+        return (String) call("GET", prefix + key);
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) {
+        if (ttlMillis > 0) {
+            call("SET", prefix + key, value, "PX", Long.toString(ttlMillis));
+        } else {
+            call("SET", prefix + key, value);
+        }
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value, long ttlMillis) {
+        // SET NX не возвращает старое значение: при отказе читаем его отдельно.
+        // Между двумя командами ключ может истечь — тогда считаем, что записи не было.
+        Object reply = ttlMillis > 0
+                ? call("SET", prefix + key, value, "NX", "PX", Long.toString(ttlMillis))
+                : call("SET", prefix + key, value, "NX");
+        if ("OK".equals(reply)) return null;
+        return get(key);
+    }
+
+    @Override
+    public void delete(String key) {
+        call("DEL", prefix + key);
+    }
+
+    @Override
+    public String take(String key) {
+        return (String) call("GETDEL", prefix + key); // Redis 6.2+
+    }
+
+    @Override
+    public boolean push(String queue, String value) {
+        // RPUSH отвечает новой длиной списка; null — команда не дошла или ответ потерян
+        return call("RPUSH", prefix + queue, value) instanceof Long;
+    }
+
+    @Override
+    public String poll(String queue) {
+        return (String) call("LPOP", prefix + queue);
+    }
+
+    @Override
+    public long size(String queue) {
+        Object reply = call("LLEN", prefix + queue);
+        return reply instanceof Long n ? n : 0;
+    }
+
+    /**
+     * Выполняет команду; при сбое соединения — null
+     */
+    private Object call(String... args) {
+        metrics.increment("store.commands");
+        // пока сервер считается недоступным, не ждём монитор за вызовом, который висит на таймауте
+        if (available()) {
+            synchronized (this) {
+                if (available()) return callLocked(args);
+            }
+        }
+        metrics.increment("store.errors");
+        return null;
+    }
+
+    private Object callLocked(String... args) {
+        for (int attempt = 0; ; attempt++) {
+            boolean reused = socket != null;
+            boolean sent = false;
+            try {
+                if (socket == null) connect();
+                write(out, args);
+                out.flush();
+                sent = true;
+                return read(in);
+            } catch (RespException e) {
+                if (e.getMessage().startsWith("NOAUTH")) return down(e); // пароль не задан, а сервер его требует
+                metrics.increment("store.errors");
+                System.err.println("Shared store: " + args[0] + " — " + e.getMessage());
+                return null;
+            } catch (IOException e) {
+                disconnect();
+                // Повтор только на оборванном старом соединении: таймаут означает, что сервер
+                // не отвечает, а после отправки RPUSH/LPOP могли уже выполниться
+                boolean retry = attempt == 0 && reused && !(e instanceof SocketTimeoutException)
+                        && (!sent || IDEMPOTENT.contains(args[0]));
+                if (retry) continue;
+                return down(e);
+            }
+        }
+    }
+
+    // Сервер недоступен или отверг пароль: следующие вызовы сразу получают отказ
+    private Object down(IOException e) {
+        disconnect();
+        downUntil = System.currentTimeMillis() + RETRY_AFTER_MS;
+        metrics.increment("store.errors");
+        if (!reportedDown) {
+            reportedDown = true;
+            System.err.println("Shared store " + host + ":" + port + " недоступен: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private void connect() throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), timeoutMillis);
+            s.setSoTimeout(timeoutMillis);
+            s.setTcpNoDelay(true);
+            socket = s;
+            in = new BufferedInputStream(s.getInputStream());
+            out = new BufferedOutputStream(s.getOutputStream());
+            if (!password.isEmpty()) {
+                write(out, "AUTH", password);
+                out.flush();
+                try {
+                    read(in);
+                } catch (RespException e) { // неверный пароль — как недоступный сервер, с паузой
+                    throw new IOException("AUTH: " + e.getMessage());
+                }
+            }
+            metrics.increment("store.connects");
+            reportedDown = false;
+        } catch (IOException e) {
+            disconnect();
+            s.close();
+            throw e;
+        }
+    }
+
+    private void disconnect() {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        disconnect();
+    }
+
+    // Команда — массив bulk-строк: *N\r\n$len\r\nарг\r\n...
+    static void write(OutputStream out, String... args) throws IOException {
+        out.write(('*' + Integer.toString(args.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        for (String arg : args) {
+            byte[] b = arg.getBytes(StandardCharsets.UTF_8);
+            out.write(('$' + Integer.toString(b.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b);
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Ответ: String для простых и bulk-строк, Long для чисел, null для пустого значения,
+     * Object[] для массивов
+     */
+    static Object read(InputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) throw new EOFException("Соединение закрыто сервером");
+        String line = readLine(in);
+        switch (type) {
+            case '+':
+                return line;
+            case '-':
+                throw new RespException(line);
+            case ':':
+                return Long.parseLong(line);
+            case '$': {
+                int len = Integer.parseInt(line);
+                if (len < 0) return null;
+                byte[] b = in.readNBytes(len);
+                if (b.length < len) throw new EOFException("Обрыв посреди ответа");
+                readLine(in);
+                return new String(b, StandardCharsets.UTF_8);
+            }
+            case '*': {
+                int n = Integer.parseInt(line);
+                if (n < 0) return null;
+                Object[] items = new Object[n];
+                for (int i = 0; i < n; i++) items[i] = read(in);
+                return items;
+            }
+            default:
+                throw new IOException("Неизвестный тип ответа: " + (char) type);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(32);
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) throw new EOFException("Обрыв посреди ответа");
+            buf.write(b);
+        }
+        if (in.read() != '\n') throw new IOException("Ожидался \\n после \\r");
+        return buf.toString(StandardCharsets.UTF_8);
+    }
+}
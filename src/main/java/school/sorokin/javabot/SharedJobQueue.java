@@ -0,0 +1,140 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Consumer;
+
+/**
+ * Общая очередь загрузок для нескольких экземпляров бота. Узел, у которого заняты все слоты
+ * {@link DownloadScheduler}, отдаёт задачу в очередь общего хранилища, а забирает её первый
+ * узел со свободным слотом. С локальным хранилищем очередь не используется.
+ * Забранная задача сразу попадает в {@link JobJournal} взявшего её узла.
+ */
+@Component
+public class SharedJobQueue {
+
+    static final String QUEUE = "jobs:queue";
+
+    public static class Job {
+        public final Long chatId;
+        public final String url;
+        public final MediaFormat format;
+        public final int attempt;
+
+        public Job(Long chatId, String url, MediaFormat format, int attempt) {
+            this.chatId = chatId;
+            this.url = url;
+            this.format = format;
+            this.attempt = attempt;
+        }
+
+        String encode() {
+            return chatId + "\t" + format.code + "\t" + attempt + "\t" + JobJournal.field(url);
+        }
+
+        // null для повреждённой строки
+        static Job decode(String line) {
+            String[] p = line.split("\t", 4);
+            if (p.length < 4) return null;
+            try {
+                MediaFormat format = MediaFormat.fromCode(p[1]);
+                return format == null ? null : new Job(Long.parseLong(p[0]), p[3], format, Integer.parseInt(p[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final SharedStore shared;
+    private final DownloadScheduler scheduler;
+    private final long pollMillis;
+    private final BotMetrics metrics;
+    private Thread poller;
+
+    public SharedJobQueue(SharedStore shared,
+                          DownloadScheduler scheduler,
+                          @Value("${store.jobs.poll-ms:500}") long pollMillis,
+                          BotMetrics metrics) {
+        this.shared = shared;
+        this.scheduler = scheduler;
+        this.pollMillis = pollMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Стоит ли отдать задачу другим узлам: очередь общая, хранилище отвечает и свободных слотов здесь нет
+     */
+    public boolean shouldOffload() {
+        return shared.distributed() && shared.available() && !hasFreeSlot();
+    }
+
+    /**
+     * Кладёт задачу в общую очередь. false — хранилище её не приняло, и задачу
+     * нужно выполнить здесь.
+     */
+    public boolean offer(Job job) {
+        if (!shared.push(QUEUE, job.encode())) {
+            metrics.increment("jobs.shared_offer_failed");
+            return false;
+        }
+        metrics.increment("jobs.shared_offered");
+        return true;
+    }
+
+    /**
+     * Запускает опрос общей очереди; {@code handler} получает задачи, когда у узла есть свободный слот
+     */
+    public synchronized void start(Consumer<Job> handler) {
+        if (!shared.distributed() || poller != null) return;
+        metrics.gauge("jobs.shared_queue", () -> shared.size(QUEUE));
+        poller = new Thread(() -> pollLoop(handler), "shared-jobs");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    private void pollLoop(Consumer<Job> handler) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(pollMillis);
+                takeWhileFree(handler);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Забирает задачи, пока у планировщика есть свободные слоты. Возвращает число взятых.
+     */
+    int takeWhileFree(Consumer<Job> handler) {
+        int taken = 0;
+        // задача запускается асинхронно, поэтому берём не больше, чем свободно слотов сейчас
+        int free = scheduler.maxConcurrent() - scheduler.running() - scheduler.queued();
+        for (int i = 0; i < free; i++) {
+            String line = shared.poll(QUEUE);
+            if (line == null) break;
+            Job job = Job.decode(line);
+            if (job == null) {
+                metrics.increment("jobs.shared_corrupt");
+                continue;
+            }
+            metrics.increment("jobs.shared_taken");
+            handler.accept(job);
+            taken++;
+        }
+        return taken;
+    }
+
+    private boolean hasFreeSlot() {
+        return scheduler.queued() == 0 && scheduler.running() < scheduler.maxConcurrent();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (poller != null) poller.interrupt();
+    }
+}
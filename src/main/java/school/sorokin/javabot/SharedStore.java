@@ -0,0 +1,65 @@
+package school.sorokin.javabot;
+
+/**
+ * Хранилище, общее для всех экземпляров бота: токены callback-кнопок, настройки чатов,
+ * file_id, владельцы раздаваемых файлов и общая очередь задач.
+ * По умолчанию — память процесса ({@link InMemorySharedStore}); при {@code store.backend=redis}
+ * — сервер с протоколом Redis ({@link RespSharedStore}), и несколько узлов делят работу и кэши.
+ * Ошибки сети не пробрасываются: чтение возвращает null, запись теряется, а вызывающий
+ * продолжает работать на локальных данных. Исключение — {@link #push}: задачу из очереди
+ * нельзя потерять молча, поэтому он сообщает, принял ли её сервер.
+ */
+public interface SharedStore {
+
+    /**
+     * Значение по ключу или null
+     */
+    String get(String key);
+
+    /**
+     * @param ttlMillis срок жизни; 0 — без срока
+     */
+    void put(String key, String value, long ttlMillis);
+
+    /**
+     * Записывает значение, только если ключа нет. Возвращает уже сохранённое значение
+     * или null, если записано переданное.
+     */
+    String putIfAbsent(String key, String value, long ttlMillis);
+
+    void delete(String key);
+
+    /**
+     * Забирает значение и удаляет ключ одной операцией: из нескольких одновременных
+     * вызовов значение получает только один, остальные — null
+     */
+    String take(String key);
+
+    /**
+     * Добавляет элемент в конец очереди. Возвращает false, если хранилище элемент не приняло.
+     */
+    boolean push(String queue, String value);
+
+    /**
+     * Забирает элемент из начала очереди или null, если она пуста
+     */
+    String poll(String queue);
+
+    long size(String queue);
+
+    /**
+     * Видят ли данные другие экземпляры бота. Для локального хранилища запись
+     * в него ничего не даёт, и вызывающие обходятся своими структурами.
+     */
+    default boolean distributed() {
+        return false;
+    }
+
+    /**
+     * Отвечает ли хранилище сейчас. false — недавняя ошибка связи: команды до повторной
+     * попытки заведомо не пройдут, и отдавать туда работу бессмысленно.
+     */
+    default boolean available() {
+        return true;
+    }
+}
@@ -0,0 +1,276 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Спекулятивная загрузка (download.speculative.enabled): пока пользователь выбирает кнопку,
+ * самый популярный формат уже качается в кэш. Загрузка идёт через {@link InFlightDownloads}
+ * от имени служебного «чата», поэтому нажатие кнопки просто подключается к ней.
+ * Невостребованная за окно или мешающая при росте нагрузки загрузка отменяется.
+ */
+@Component
+public class SpeculativePrefetcher {
+
+    // Служебная очередь планировщика: не занимает слот чата пользователя,
+    // а лимит на чат ограничивает число одновременных спекуляций
+    static final Long LANE = Long.MIN_VALUE;
+
+    /**
+     * Запуск загрузки для Flight (в боте — UpdateConsumer.runFlight)
+     */
+    @FunctionalInterface
+    public interface Runner {
+        void run(InFlightDownloads.Flight flight, MediaFormat format);
+    }
+
+    static class Speculation {
+        final String key;
+        volatile InFlightDownloads.Waiter waiter;
+        volatile boolean started;
+        boolean claimed;
+        boolean cancelled;
+        long bytes = -1; // размер результата, если загрузка завершилась
+
+        Speculation(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final InFlightDownloads.Listener SILENT = new InFlightDownloads.Listener() {
+        @Override
+        public void message(String text) {
+        }
+
+        @Override
+        public void progress(String text, boolean last) {
+        }
+    };
+
+    private final boolean enabled;
+    private final double maxLoad;
+    private final long windowSec;
+    private final InFlightDownloads inFlightDownloads;
+    private final DownloadScheduler scheduler;
+    private final DownloadCache downloadCache;
+    private final TelegramFileIdCache fileIdCache;
+    private final BotMetrics metrics;
+    private final Map<MediaFormat, Long> choices = new EnumMap<>(MediaFormat.class);
+    private final Map<String, Speculation> active = new HashMap<>(); // ещё не востребованные
+    private final Map<InFlightDownloads.Flight, Speculation> byFlight = new HashMap<>();
+    private final ScheduledExecutorService timer;
+
+    public SpeculativePrefetcher(@Value("${download.speculative.enabled:false}") boolean enabled,
+                                 @Value("${download.speculative.max-load:0.5}") double maxLoad,
+                                 @Value("${download.speculative.window-seconds:30}") long windowSec,
+                                 InFlightDownloads inFlightDownloads,
+                                 DownloadScheduler scheduler,
+                                 DownloadCache downloadCache,
+                                 TelegramFileIdCache fileIdCache,
+                                 BotMetrics metrics) {
+        this.enabled = enabled;
+        this.maxLoad = maxLoad;
+        this.windowSec = windowSec;
+        this.inFlightDownloads = inFlightDownloads;
+        this.scheduler = scheduler;
+        this.downloadCache = downloadCache;
+        this.fileIdCache = fileIdCache;
+        this.metrics = metrics;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "speculative");
+            t.setDaemon(true);
+            return t;
+        });
+        if (enabled) {
+            timer.scheduleWithFixedDelay(this::shedUnderLoad, 1, 1, TimeUnit.SECONDS);
+        }
+        metrics.gauge("speculative.active", this::activeCount);
+        metrics.gauge("speculative.hit_rate_pct", () -> {
+            long started = metrics.counter("speculative.started");
+            return started == 0 ? 0 : metrics.counter("speculative.hit") * 100 / started;
+        });
+    }
+
+    /**
+     * Выбор пользователя: по этой статистике спекулируется самый популярный формат
+     */
+    public synchronized void recordChoice(MediaFormat format) {
+        choices.merge(format, 1L, Long::sum);
+    }
+
+    synchronized MediaFormat likelyFormat() {
+        MediaFormat best = MediaFormat.VIDEO_720;
+        long max = 0;
+        for (Map.Entry<MediaFormat, Long> e : choices.entrySet()) {
+            if (e.getValue() > max) {
+                max = e.getValue();
+                best = e.getKey();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Начинает спекулятивную загрузку, если режим включён, система не нагружена
+     * и результат по оценке поместится в лимит прямой отправки
+     */
+    public void speculate(VideoRef ref, String url, VideoMetadata meta, Runner runner) {
+        if (!enabled || ref == null || meta == null) return;
+        MediaFormat format = likelyFormat();
+        if (!underThreshold()) {
+            metrics.increment("speculative.skipped_load");
+            return;
+        }
+        if (downloadCache.lookup(ref, format) != null || fileIdCache.contains(ref, format)) return;
+        boolean fits = format == MediaFormat.VIDEO_720
+                ? FormatSelector.select(meta, 720, UpdateConsumer.TELEGRAM_FILE_LIMIT, true).fits
+                : meta.estimate(format) > 0 && meta.estimate(format) <= UpdateConsumer.TELEGRAM_FILE_LIMIT;
+        if (!fits) return; // файл ушёл бы на хостинг и не попал бы в кэш
+
+        Speculation spec = new Speculation(ref.key(format));
+        InFlightDownloads.Waiter waiter = inFlightDownloads.join(spec.key, LANE, SILENT, flight -> {
+            synchronized (this) {
+                byFlight.put(flight, spec);
+            }
+            DownloadScheduler.Job job = scheduler.submit(LANE, "spec:" + format.code, () -> {
+                spec.started = true;
+                runner.run(flight, format);
+            });
+            flight.onCancel(() -> scheduler.cancel(job));
+        });
+        if (!waiter.leader) { // этот ролик уже кто-то качает
+            waiter.cancel();
+            return;
+        }
+        spec.waiter = waiter;
+        synchronized (this) {
+            active.put(spec.key, spec);
+        }
+        metrics.increment("speculative.started");
+        timer.schedule(() -> expire(spec), windowSec, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Пользователь выбрал формат: если по нему идёт спекуляция, она становится его загрузкой.
+     * Вызывается после {@link InFlightDownloads#join}, чтобы загрузка не осталась без ожидающих.
+     */
+    public boolean claim(String key) {
+        Speculation spec;
+        synchronized (this) {
+            spec = active.remove(key);
+            if (spec == null) return false;
+            spec.claimed = true;
+        }
+        metrics.increment("speculative.hit");
+        InFlightDownloads.Waiter w = spec.waiter;
+        if (w != null) w.cancel(); // служебный ожидающий больше не нужен
+        return true;
+    }
+
+    public boolean isSpeculative(InFlightDownloads.Waiter waiter) {
+        return LANE.equals(waiter.chatId);
+    }
+
+    /**
+     * Загрузка Flight завершена (успешно, с ошибкой или отменой); вызывается до удаления папки задачи
+     */
+    public void finished(InFlightDownloads.Flight flight, String file, Path workDir) {
+        long wasted = 0;
+        synchronized (this) {
+            Speculation spec = byFlight.remove(flight);
+            if (spec == null || spec.claimed) return;
+            if (spec.cancelled) {
+                wasted = file != null ? new File(file).length() : directorySize(workDir);
+            } else if (file == null) {
+                active.remove(spec.key, spec);
+                metrics.increment("speculative.failed");
+            } else {
+                spec.bytes = new File(file).length(); // ждёт нажатия до конца окна
+            }
+        }
+        if (wasted > 0) metrics.add("speculative.wasted_bytes", wasted);
+    }
+
+    // Окно истекло: незавершённая загрузка отменяется, готовый файл считается потраченным впустую
+    private void expire(Speculation spec) {
+        long wasted;
+        synchronized (this) {
+            if (!active.remove(spec.key, spec)) return;
+            if (spec.bytes < 0) {
+                cancel(spec);
+                wasted = 0;
+            } else {
+                wasted = spec.bytes;
+            }
+        }
+        metrics.increment("speculative.expired");
+        if (wasted > 0) metrics.add("speculative.wasted_bytes", wasted);
+        leave(spec);
+    }
+
+    // Нагрузка выросла: освобождаем слоты под реальные запросы
+    void shedUnderLoad() {
+        if (underThreshold()) return;
+        List<Speculation> shed = new ArrayList<>();
+        synchronized (this) {
+            for (Speculation spec : new ArrayList<>(active.values())) {
+                if (spec.bytes >= 0) continue; // уже скачано — слот не занимает
+                active.remove(spec.key);
+                cancel(spec);
+                shed.add(spec);
+            }
+        }
+        for (Speculation spec : shed) {
+            metrics.increment("speculative.shed");
+            leave(spec);
+        }
+    }
+
+    // Под монитором: отмечает отмену; не начатая загрузка отходов не оставит
+    private void cancel(Speculation spec) {
+        spec.cancelled = true;
+        if (!spec.started) byFlight.values().remove(spec);
+    }
+
+    private void leave(Speculation spec) {
+        InFlightDownloads.Waiter w = spec.waiter;
+        if (w != null) w.cancel();
+    }
+
+    private boolean underThreshold() {
+        return scheduler.queued() == 0 && scheduler.running() < scheduler.maxConcurrent() * maxLoad;
+    }
+
+    public synchronized int activeCount() {
+        return active.size();
+    }
+
+    private static long directorySize(Path dir) {
+        if (dir == null) return 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
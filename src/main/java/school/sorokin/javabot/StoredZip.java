@@ -0,0 +1,298 @@
+package school.sorokin.javabot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ZIP без сжатия (метод STORED), который собирается на лету прямо в выходной канал.
+ * Медиа уже сжаты, поэтому deflate только тратил бы CPU. CRC и размеры известны заранее,
+ * поэтому весь архив раскладывается до записи: длина ответа известна сразу, временного
+ * архива на диске нет, а память не зависит от объёма — тела файлов идут через
+ * {@link FileChannel#transferTo} или один буфер на ответ, заголовки пишутся по одному.
+ * Файлы и смещения больше 4 ГБ записываются в формате ZIP64.
+ */
+public class StoredZip {
+
+    public static class Entry {
+        public final String name;
+        public final Path path;
+        public final long size;
+        public final long crc;
+        public final long lastModified;
+
+        public Entry(String name, Path path, long size, long crc, long lastModified) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+            this.crc = crc;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final long MAX32 = 0xFFFFFFFFL;
+    private static final int MAX16 = 0xFFFF;
+    private static final int UTF8_NAMES = 1 << 11;
+    private static final int LOCAL_HEADER = 30;
+    private static final int CENTRAL_HEADER = 46;
+    private static final int END = 22;
+    private static final int ZIP64_END = 56;
+    private static final int ZIP64_LOCATOR = 20;
+    private static final int COPY_BUFFER = 256 * 1024;
+
+    // Запись с разложенными смещениями
+    private static class Item {
+        final Entry entry;
+        final byte[] name;
+        final long offset; // смещение локального заголовка
+        final boolean bigSize;
+        final int dosTime;
+        final int dosDate;
+
+        Item(Entry entry, byte[] name, long offset) {
+            this.entry = entry;
+            this.name = name;
+            this.offset = offset;
+            this.bigSize = entry.size >= MAX32;
+            LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.lastModified), ZoneId.systemDefault());
+            if (t.getYear() < 1980) t = LocalDateTime.of(1980, 1, 1, 0, 0);
+            this.dosTime = (t.getHour() << 11) | (t.getMinute() << 5) | (t.getSecond() / 2);
+            this.dosDate = ((t.getYear() - 1980) << 9) | (t.getMonthValue() << 5) | t.getDayOfMonth();
+        }
+
+        boolean bigOffset() {
+            return offset >= MAX32;
+        }
+
+        int localExtra() {
+            return bigSize ? 20 : 0;
+        }
+
+        int centralExtra() {
+            int fields = (bigSize ? 2 : 0) + (bigOffset() ? 1 : 0);
+            return fields == 0 ? 0 : 4 + 8 * fields;
+        }
+
+        int version() {
+            return bigSize || bigOffset() ? 45 : 20;
+        }
+    }
+
+    private final List<Item> items = new ArrayList<>();
+    private final long centralOffset;
+    private final long centralSize;
+    private final boolean zip64;
+    private final long size;
+
+    public StoredZip(List<Entry> entries) {
+        Set<String> names = new HashSet<>();
+        long offset = 0;
+        for (Entry e : entries) {
+            Item item = new Item(e, uniqueName(e.name, names).getBytes(StandardCharsets.UTF_8), offset);
+            items.add(item);
+            offset += LOCAL_HEADER + item.name.length + item.localExtra() + e.size;
+        }
+        long central = 0;
+        for (Item item : items) central += CENTRAL_HEADER + item.name.length + item.centralExtra();
+        this.centralOffset = offset;
+        this.centralSize = central;
+        this.zip64 = items.size() >= MAX16 || offset >= MAX32 || central >= MAX32;
+        this.size = offset + central + (zip64 ? ZIP64_END + ZIP64_LOCATOR : 0) + END;
+    }
+
+    // Одинаковые имена в архиве перезаписали бы друг друга при распаковке: "a.mp4", "a (2).mp4"
+    private static String uniqueName(String name, Set<String> taken) {
+        String candidate = name;
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int n = 2; !taken.add(candidate); n++) candidate = base + " (" + n + ")" + ext;
+        return candidate;
+    }
+
+    /**
+     * Точный размер архива в байтах
+     */
+    public long size() {
+        return size;
+    }
+
+    public int entries() {
+        return items.size();
+    }
+
+    /**
+     * Пишет архив в поток ответа. {@link java.nio.channels.Channels#newChannel(OutputStream)}
+     * дробит запись на куски по 8 КБ, поэтому тела файлов идут через свой буфер целыми блоками.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buf = new byte[COPY_BUFFER];
+        writeTo(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int n = src.remaining();
+                if (src.hasArray()) {
+                    out.write(src.array(), src.arrayOffset() + src.position(), n);
+                    src.position(src.limit());
+                } else {
+                    for (int done = 0; done < n; ) {
+                        int k = Math.min(buf.length, n - done);
+                        src.get(buf, 0, k);
+                        out.write(buf, 0, k);
+                        done += k;
+                    }
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, ByteBuffer.wrap(buf));
+    }
+
+    /**
+     * Пишет архив целиком. Если файл изменил размер после раскладки, бросает IOException:
+     * отданная длина уже не совпала бы с содержимым.
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        writeTo(out, null);
+    }
+
+    // copyBuffer == null — тела через transferTo (для каналов, которые ядро умеет принимать напрямую)
+    private void writeTo(WritableByteChannel out, ByteBuffer copyBuffer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER + CENTRAL_HEADER + ZIP64_END + ZIP64_LOCATOR + END + 32)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (Item item : items) {
+            header.clear();
+            header.putInt(0x04034b50)
+                    .putShort((short) item.version())
+                    .putShort((short) UTF8_NAMES)
+                    .putShort((short) 0) // STORED
+                    .putShort((short) item.dosTime)
+                    .putShort((short) item.dosDate)
+                    .putInt((int) item.entry.crc)
+                    .putInt((int) (item.bigSize ? MAX32 : item.entry.size))
+                    .putInt((int) (item.bigSize ? MAX32 : item.entry.size))
+                    .putShort((short) item.name.length)
+                    .putShort((short) item.localExtra());
+            write(out, header.flip());
+            write(out, ByteBuffer.wrap(item.name));
+            if (item.bigSize) {
+                header.clear();
+                header.putShort((short) 1).putShort((short) 16).putLong(item.entry.size).putLong(item.entry.size);
+                write(out, header.flip());
+            }
+            copy(item.entry, out, copyBuffer);
+        }
+        writeDirectory(out, header);
+    }
+
+    /**
+     * Центральный каталог и завершающие записи — всё, что идёт после тел файлов
+     */
+    void writeDirectory(WritableByteChannel out) throws IOException {
+        writeDirectory(out, ByteBuffer.allocate(CENTRAL_HEADER + ZIP64_END + ZIP64_LOCATOR + END + 32)
+                .order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private void writeDirectory(WritableByteChannel out, ByteBuffer header) throws IOException {
+        for (Item item : items) {
+            header.clear();
+            header.putInt(0x02014b50)
+                    .putShort((short) item.version()) // made by: MS-DOS, версия 4.5/2.0
+                    .putShort((short) item.version())
+                    .putShort((short) UTF8_NAMES)
+                    .putShort((short) 0)
+                    .putShort((short) item.dosTime)
+                    .putShort((short) item.dosDate)
+                    .putInt((int) item.entry.crc)
+                    .putInt((int) (item.bigSize ? MAX32 : item.entry.size))
+                    .putInt((int) (item.bigSize ? MAX32 : item.entry.size))
+                    .putShort((short) item.name.length)
+                    .putShort((short) item.centralExtra())
+                    .putShort((short) 0) // комментарий
+                    .putShort((short) 0) // диск
+                    .putShort((short) 0) // внутренние атрибуты
+                    .putInt(0) // внешние атрибуты
+                    .putInt((int) (item.bigOffset() ? MAX32 : item.offset));
+            write(out, header.flip());
+            write(out, ByteBuffer.wrap(item.name));
+            if (item.centralExtra() > 0) {
+                header.clear();
+                header.putShort((short) 1).putShort((short) (item.centralExtra() - 4));
+                if (item.bigSize) header.putLong(item.entry.size).putLong(item.entry.size);
+                if (item.bigOffset()) header.putLong(item.offset);
+                write(out, header.flip());
+            }
+        }
+        header.clear();
+        if (zip64) {
+            long zip64EndOffset = centralOffset + centralSize;
+            header.putInt(0x06064b50)
+                    .putLong(ZIP64_END - 12)
+                    .putShort((short) 45)
+                    .putShort((short) 45)
+                    .putInt(0)
+                    .putInt(0)
+                    .putLong(items.size())
+                    .putLong(items.size())
+                    .putLong(centralSize)
+                    .putLong(centralOffset);
+            header.putInt(0x07064b50)
+                    .putInt(0)
+                    .putLong(zip64EndOffset)
+                    .putInt(1);
+        }
+        header.putInt(0x06054b50)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(items.size(), MAX16))
+                .putShort((short) Math.min(items.size(), MAX16))
+                .putInt((int) Math.min(centralSize, MAX32))
+                .putInt((int) Math.min(centralOffset, MAX32))
+                .putShort((short) 0);
+        write(out, header.flip());
+    }
+
+    private static void copy(Entry entry, WritableByteChannel out, ByteBuffer buf) throws IOException {
+        try (FileChannel in = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+            if (in.size() != entry.size) throw new IOException("Файл изменился: " + entry.path);
+            long pos = 0;
+            while (pos < entry.size) {
+                long n;
+                if (buf == null) {
+                    n = in.transferTo(pos, entry.size - pos, out);
+                } else {
+                    buf.clear().limit((int) Math.min(buf.capacity(), entry.size - pos));
+                    n = in.read(buf, pos);
+                    if (n > 0) write(out, buf.flip());
+                }
+                if (n <= 0) throw new IOException("Файл обрезан: " + entry.path);
+                pos += n;
+            }
+        }
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) out.write(buf);
+    }
+}
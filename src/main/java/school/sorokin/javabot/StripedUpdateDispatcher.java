@@ -0,0 +1,102 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Параллельная обработка апдейтов: каждый чат закреплён за одним из N потоков
+ * (по хэшу chatId), поэтому порядок внутри чата сохраняется, а медленный вызов
+ * Telegram API в одном чате не задерживает чаты из других полос.
+ */
+@Component
+public class StripedUpdateDispatcher implements LongPollingUpdateConsumer {
+
+    private final Consumer<Update> handler;
+    private final BotMetrics metrics;
+    private final ThreadPoolExecutor[] stripes;
+
+    @Autowired
+    public StripedUpdateDispatcher(UpdateConsumer updateConsumer,
+                                   @Value("${telegram.consumer.workers:4}") int workers,
+                                   BotMetrics metrics) {
+        this(updateConsumer::consume, workers, metrics);
+    }
+
+    StripedUpdateDispatcher(Consumer<Update> handler, int workers, BotMetrics metrics) {
+        this.handler = handler;
+        this.metrics = metrics;
+        this.stripes = new ThreadPoolExecutor[Math.max(1, workers)];
+        for (int i = 0; i < stripes.length; i++) {
+            String name = "updates-" + i;
+            ThreadPoolExecutor stripe = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+            stripes[i] = stripe;
+            metrics.gauge("updates.stripe." + i + ".queue_depth", () -> stripe.getQueue().size());
+        }
+        metrics.gauge("updates.workers", () -> stripes.length);
+    }
+
+    @Override
+    public void consume(List<Update> updates) {
+        for (Update update : updates) {
+            dispatch(update);
+        }
+    }
+
+    void dispatch(Update update) {
+        int i = stripeOf(chatIdOf(update), stripes.length);
+        long enqueuedAt = System.currentTimeMillis();
+        String timer = "updates.stripe." + i + ".handle";
+        metrics.increment("updates.dispatched");
+        stripes[i].execute(() -> {
+            long start = System.currentTimeMillis();
+            metrics.recordMillis("updates.queue_wait", start - enqueuedAt);
+            try {
+                handler.accept(update);
+            } catch (Exception e) {
+                metrics.increment("updates.errors");
+                e.printStackTrace();
+            } finally {
+                metrics.recordMillis(timer, System.currentTimeMillis() - start);
+            }
+        });
+    }
+
+    static int stripeOf(long key, int stripes) {
+        long h = key * 0x9E3779B97F4A7C15L; // перемешиваем: соседние ID не должны попадать в соседние полосы
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) stripes);
+    }
+
+    // Чат апдейта; апдейты без чата распределяются по ID апдейта
+    static long chatIdOf(Update update) {
+        if (update.hasMessage()) return update.getMessage().getChatId();
+        if (update.hasCallbackQuery()) {
+            if (update.getCallbackQuery().getMessage() != null) return update.getCallbackQuery().getMessage().getChatId();
+            return update.getCallbackQuery().getFrom().getId();
+        }
+        if (update.hasEditedMessage()) return update.getEditedMessage().getChatId();
+        if (update.hasChannelPost()) return update.getChannelPost().getChatId();
+        return update.getUpdateId() == null ? 0 : update.getUpdateId();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package school.sorokin.javabot;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.telegram.telegrambots.client.okhttp.OkHttpTelegramClient;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+@Configuration
+public class TelegramClientConfig {
+
+    /**
+     * Один клиент Telegram API на всё приложение
+     */
+    @Bean
+    public TelegramClient telegramClient(@Value("${telegram.bot.token}") String botToken) {
+        return new OkHttpTelegramClient(botToken);
+    }
+}
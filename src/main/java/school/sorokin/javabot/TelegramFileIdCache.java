@@ -0,0 +1,215 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Постоянное соответствие (ID ролика, формат) -> Telegram file_id.
+ * Повторная отправка по file_id не требует ни диска, ни yt-dlp.
+ * Хранится как журнал строк {@code P\tkey\tfileId} / {@code D\tkey},
+ * который проигрывается и сжимается при старте и по мере роста.
+ * Записей не больше {@code max-entries}: вытесняются давно не использованные (LRU) —
+ * для них файл просто скачается заново.
+ * При общем хранилище file_id, полученный одним узлом, доступен остальным.
+ */
+@Service
+public class TelegramFileIdCache {
+
+    private static final long COMPACT_MIN_LINES = 10_000;
+
+    private final Path journal;
+    private final int maxEntries;
+    private final BotMetrics metrics;
+    private final SharedStore shared;
+    // Порядок доступа: в начале — давно не использованные; под монитором
+    private final LinkedHashMap<String, String> fileIds = new LinkedHashMap<>(16, 0.75f, true);
+    private BufferedWriter writer;
+    private long lines;
+
+    @Autowired
+    public TelegramFileIdCache(@Value("${download.fileid.path:data/file-ids.tsv}") String path,
+                               @Value("${download.fileid.max-entries:50000}") int maxEntries,
+                               BotMetrics metrics,
+                               SharedStore shared) {
+        this.journal = Paths.get(path).toAbsolutePath().normalize();
+        this.maxEntries = Math.max(1, maxEntries);
+        this.metrics = metrics;
+        this.shared = shared;
+        metrics.gauge("fileid.entries", this::size);
+    }
+
+    TelegramFileIdCache(String path, BotMetrics metrics, SharedStore shared) {
+        this(path, 50_000, metrics, shared);
+    }
+
+    TelegramFileIdCache(String path, BotMetrics metrics) {
+        this(path, 50_000, metrics);
+    }
+
+    TelegramFileIdCache(String path, int maxEntries, BotMetrics metrics) {
+        this(path, maxEntries, metrics, new InMemorySharedStore());
+    }
+
+    @PostConstruct
+    public synchronized void load() {
+        try {
+            Files.createDirectories(journal.getParent());
+            if (Files.exists(journal)) {
+                List<String> records = Files.readAllLines(journal, StandardCharsets.UTF_8);
+                for (String line : records) {
+                    String[] parts = line.split("\t");
+                    if (parts.length == 3 && parts[0].equals("P")) {
+                        fileIds.put(parts[1], parts[2]);
+                    } else if (parts.length == 2 && parts[0].equals("D")) {
+                        fileIds.remove(parts[1]);
+                    }
+                }
+                trim(false); // лимит могли уменьшить
+                if (records.size() > fileIds.size()) compact();
+            }
+            lines = fileIds.size();
+            writer = open();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String get(VideoRef ref, MediaFormat format) {
+        if (ref == null) return null;
+        String key = ref.key(format);
+        String id = local(key);
+        if (id == null && shared.distributed()) {
+            id = shared.get("fileid:" + key); // файл мог отправить другой узел
+            if (id != null) {
+                metrics.increment("fileid.remote_hit");
+                remember(key, id);
+                return id;
+            }
+        }
+        metrics.increment(id == null ? "fileid.miss" : "fileid.hit");
+        return id;
+    }
+
+    /**
+     * Есть ли file_id (без учёта в метриках)
+     */
+    public synchronized boolean contains(VideoRef ref, MediaFormat format) {
+        return ref != null && fileIds.containsKey(ref.key(format));
+    }
+
+    public void put(VideoRef ref, MediaFormat format, String fileId) {
+        if (ref == null || fileId == null) return;
+        String key = ref.key(format);
+        if (!remember(key, fileId)) return;
+        if (shared.distributed()) shared.put("fileid:" + key, fileId, 0);
+    }
+
+    public synchronized int size() {
+        return fileIds.size();
+    }
+
+    private synchronized String local(String key) {
+        return fileIds.get(key);
+    }
+
+    // false — этот file_id уже был записан
+    private synchronized boolean remember(String key, String fileId) {
+        if (fileId.equals(fileIds.put(key, fileId))) return false;
+        append("P\t" + key + "\t" + fileId);
+        trim(true);
+        return true;
+    }
+
+    // Вытесняет давно не использованные записи сверх лимита.
+    // Обращения в журнал не пишутся, поэтому вытеснение записывается явно — иначе запись воскреснет при старте
+    private void trim(boolean journaled) {
+        Iterator<String> it = fileIds.keySet().iterator();
+        while (fileIds.size() > maxEntries && it.hasNext()) {
+            String key = it.next();
+            it.remove();
+            if (journaled) append("D\t" + key);
+            metrics.increment("fileid.evicted");
+        }
+    }
+
+    /**
+     * Telegram отверг сохранённый file_id — забываем его
+     */
+    public void invalidate(VideoRef ref, MediaFormat format) {
+        if (ref == null) return;
+        String key = ref.key(format);
+        if (shared.distributed()) shared.delete("fileid:" + key);
+        synchronized (this) {
+            if (fileIds.remove(key) == null) return;
+            append("D\t" + key);
+        }
+        metrics.increment("fileid.invalidated");
+    }
+
+    // Вызывается под монитором
+    private void append(String line) {
+        if (writer == null) return;
+        try {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+            // Журнал растёт за счёт перезаписей, удалений и вытесненных — периодически переписываем его
+            if (++lines > COMPACT_MIN_LINES && lines > fileIds.size() * 2L) {
+                writer.close();
+                try {
+                    compact();
+                    lines = fileIds.size();
+                    metrics.increment("fileid.compactions");
+                } finally {
+                    writer = open();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private BufferedWriter open() throws IOException {
+        return Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer = null;
+    }
+
+    // Записи идут от давно не использованных к свежим — после перезапуска порядок вытеснения тот же
+    private void compact() throws IOException {
+        Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> e : fileIds.entrySet()) {
+                w.write("P\t" + e.getKey() + "\t" + e.getValue());
+                w.newLine();
+            }
+        }
+        Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
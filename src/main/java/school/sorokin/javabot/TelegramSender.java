@@ -0,0 +1,391 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Очередь исходящих вызовов Telegram API.
+ * Соблюдает глобальный лимит и лимит на чат (token bucket), на 429 ждёт retry_after
+ * и повторяет. Внутри чата одновременно выполняется не больше одного ответа или статуса,
+ * поэтому их порядок сохраняется. Файлы идут по своей полосе чата: загрузка не задерживает
+ * ответы и статусы того же чата. Файлы идут раньше ответов, ответы — раньше статусов.
+ * Загрузка файла длится минутами, поэтому файлы занимают не больше {@code file-threads}
+ * потоков: остальные всегда свободны для ответов и статусов других чатов.
+ * Статусы с одинаковым ключом схлопываются: в очереди остаётся только последний.
+ */
+@Component
+public class TelegramSender {
+
+    public enum Priority { FILE, REPLY, STATUS } // по убыванию важности
+
+    /**
+     * Вызов API; выполняется на потоке отправителя
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        T execute(TelegramClient client) throws TelegramApiException;
+    }
+
+    static class Task implements Comparable<Task> {
+        final long seq;
+        final Long chatId;
+        final Priority priority;
+        final String key; // ключ схлопывания или null
+        final Call<?> call;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        final long enqueuedAt = System.currentTimeMillis();
+        int attempts;
+
+        Task(long seq, Long chatId, Priority priority, String key, Call<?> call) {
+            this.seq = seq;
+            this.chatId = chatId;
+            this.priority = priority;
+            this.key = key;
+            this.call = call;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    // Классический token bucket; вызывается под монитором отправителя
+    static class TokenBucket {
+        private final double perMilli;
+        private final double capacity;
+        private double tokens;
+        private long updatedAt;
+
+        TokenBucket(double perSecond, double capacity, long now) {
+            this.perMilli = perSecond / 1000.0;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.updatedAt = now;
+        }
+
+        private void refill(long now) {
+            if (now > updatedAt) {
+                tokens = Math.min(capacity, tokens + (now - updatedAt) * perMilli);
+                updatedAt = now;
+            }
+        }
+
+        // Через сколько мс появится токен (0 — уже есть)
+        long waitMillis(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perMilli);
+        }
+
+        void take(long now) {
+            refill(now);
+            tokens -= 1;
+        }
+
+        boolean full(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+    }
+
+    private static final int MAX_RETRIES = 5;
+    private static final long IDLE_WAIT_MS = 1_000;
+
+    private final TelegramClient client;
+    private final BotMetrics metrics;
+    private final double chatPerSecond;
+    private final int chatBurst;
+    private final TokenBucket global;
+    private final TreeSet<Task> pending = new TreeSet<>();
+    private final Map<Long, TokenBucket> chatBuckets = new HashMap<>();
+    private final Map<Long, Long> chatBlockedUntil = new HashMap<>(); // retry_after по чатам
+    private final Set<Long> busyChats = new HashSet<>(); // идёт ответ или статус
+    private final Set<Long> uploadingChats = new HashSet<>(); // идёт отправка файла
+    private final ExecutorService workers;
+    private final int threads;
+    private final int fileThreads;
+    private int inFlight; // задачу отдаём пулу, только когда есть свободный поток — иначе теряется приоритет
+    private int filesInFlight;
+    private final Thread dispatcher;
+    private long globalBlockedUntil;
+    private long seq;
+    private volatile boolean running = true;
+
+    /**
+     * @param fileThreads сколько потоков могут одновременно отправлять файлы;
+     *                    0 — половина {@code threads}, но хотя бы один поток остаётся остальным
+     */
+    @Autowired
+    public TelegramSender(TelegramClient telegramClient,
+                          BotMetrics metrics,
+                          @Value("${telegram.sender.global-per-second:30}") double globalPerSecond,
+                          @Value("${telegram.sender.chat-per-second:1}") double chatPerSecond,
+                          @Value("${telegram.sender.chat-burst:3}") int chatBurst,
+                          @Value("${telegram.sender.threads:4}") int threads,
+                          @Value("${telegram.sender.file-threads:0}") int fileThreads) {
+        this.client = telegramClient;
+        this.metrics = metrics;
+        this.chatPerSecond = chatPerSecond;
+        this.chatBurst = Math.max(1, chatBurst);
+        this.global = new TokenBucket(globalPerSecond, Math.max(1, globalPerSecond), System.currentTimeMillis());
+        this.threads = Math.max(1, threads);
+        int files = fileThreads > 0 ? fileThreads : this.threads / 2;
+        this.fileThreads = Math.max(1, Math.min(files, this.threads - 1));
+        AtomicInteger n = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "tg-send-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.dispatcher = new Thread(this::dispatchLoop, "tg-sender");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+        metrics.gauge("sender.pending", this::pendingCount);
+    }
+
+    TelegramSender(TelegramClient telegramClient, BotMetrics metrics, double globalPerSecond,
+                   double chatPerSecond, int chatBurst, int threads) {
+        this(telegramClient, metrics, globalPerSecond, chatPerSecond, chatBurst, threads, 0);
+    }
+
+    public <T> CompletableFuture<T> submit(Long chatId, Priority priority, Call<T> call) {
+        return submit(chatId, priority, null, call);
+    }
+
+    /**
+     * Ставит вызов в очередь. Если ключ задан, ещё не отправленные вызовы этого чата
+     * с тем же ключом отменяются (их future завершается с null).
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(Long chatId, Priority priority, String key, Call<T> call) {
+        Task task;
+        List<Task> dropped;
+        synchronized (this) {
+            dropped = key == null ? List.of() : removePending(chatId, key);
+            task = new Task(++seq, chatId, priority, key, call);
+            pending.add(task);
+            notifyAll();
+        }
+        completeDropped(dropped);
+        metrics.increment("sender.submitted." + priority.name().toLowerCase());
+        return (CompletableFuture<T>) task.result;
+    }
+
+    /**
+     * Синхронный вызов через очередь — для потоков загрузки, которым нужен результат
+     */
+    public <T> T execute(Long chatId, Priority priority, Call<T> call) throws TelegramApiException {
+        try {
+            return this.<T>submit(chatId, priority, call).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TelegramApiException("Interrupted while sending", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TelegramApiException tae) throw tae;
+            throw new TelegramApiException(e.getCause());
+        }
+    }
+
+    /**
+     * Отменяет ещё не отправленные вызовы чата с этим ключом (устаревшие статусы)
+     */
+    public void dropPending(Long chatId, String key) {
+        List<Task> dropped;
+        synchronized (this) {
+            dropped = removePending(chatId, key);
+        }
+        completeDropped(dropped);
+    }
+
+    private List<Task> removePending(Long chatId, String key) {
+        List<Task> dropped = new ArrayList<>();
+        for (Iterator<Task> it = pending.iterator(); it.hasNext(); ) {
+            Task t = it.next();
+            if (key.equals(t.key) && t.chatId.equals(chatId)) {
+                it.remove();
+                dropped.add(t);
+            }
+        }
+        return dropped;
+    }
+
+    // future завершаются вне монитора: их обработчики могут брать свои блокировки
+    private void completeDropped(List<Task> dropped) {
+        for (Task t : dropped) {
+            t.result.complete(null);
+            metrics.increment("sender.coalesced");
+        }
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            Task task;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                long wait = nextReady(now);
+                if (wait > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                task = takeReady(now);
+                if (task == null) continue;
+            }
+            try {
+                workers.execute(() -> run(task));
+            } catch (RuntimeException e) { // пул остановлен
+                task.result.completeExceptionally(e);
+                return;
+            }
+        }
+    }
+
+    // 0 — есть что отправить сейчас, иначе сколько ждать. Вызывается под монитором
+    private long nextReady(long now) {
+        if (pending.isEmpty() || inFlight >= threads) return IDLE_WAIT_MS; // разбудит submit или завершение
+        long globalWait = Math.max(global.waitMillis(now), globalBlockedUntil - now);
+        if (globalWait > 0) return globalWait;
+        long best = IDLE_WAIT_MS;
+        for (Task t : pending) {
+            if (fileLaneFull(t)) continue; // разбудит завершение отправки файла
+            long w = chatWait(t, now);
+            if (w == 0) return 0;
+            best = Math.min(best, w);
+        }
+        return best;
+    }
+
+    // Первая по приоритету задача, чей чат свободен и не упёрся в лимит
+    private Task takeReady(long now) {
+        for (Iterator<Task> it = pending.iterator(); it.hasNext(); ) {
+            Task t = it.next();
+            if (!fileLaneFull(t) && chatWait(t, now) == 0) {
+                it.remove();
+                lane(t).add(t.chatId);
+                inFlight++;
+                if (t.priority == Priority.FILE) filesInFlight++;
+                bucket(t.chatId, now).take(now);
+                global.take(now);
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private boolean fileLaneFull(Task t) {
+        return t.priority == Priority.FILE && filesInFlight >= fileThreads;
+    }
+
+    // Чаты, занятые вызовами той же полосы: файлы — отдельно от ответов и статусов
+    private Set<Long> lane(Task t) {
+        return t.priority == Priority.FILE ? uploadingChats : busyChats;
+    }
+
+    private long chatWait(Task t, long now) {
+        if (lane(t).contains(t.chatId)) return IDLE_WAIT_MS; // разбудит завершение текущего вызова
+        long blocked = chatBlockedUntil.getOrDefault(t.chatId, 0L) - now;
+        return Math.max(blocked, bucket(t.chatId, now).waitMillis(now));
+    }
+
+    private TokenBucket bucket(Long chatId, long now) {
+        if (chatBuckets.size() > 4096) { // полные корзины неактивных чатов не нужны
+            chatBuckets.entrySet().removeIf(e -> !busyChats.contains(e.getKey())
+                    && !uploadingChats.contains(e.getKey()) && e.getValue().full(now));
+            chatBlockedUntil.values().removeIf(until -> until <= now);
+        }
+        return chatBuckets.computeIfAbsent(chatId, k -> new TokenBucket(chatPerSecond, chatBurst, now));
+    }
+
+    private void run(Task task) {
+        long start = System.currentTimeMillis();
+        metrics.recordMillis("sender.queue_wait", start - task.enqueuedAt);
+        try {
+            Object r = task.call.execute(client);
+            metrics.recordMillis("sender.call", System.currentTimeMillis() - start);
+            finish(task);
+            task.result.complete(r);
+        } catch (TelegramApiRequestException e) {
+            Integer retryAfter = e.getParameters() == null ? null : e.getParameters().getRetryAfter();
+            if (e.getErrorCode() != null && e.getErrorCode() == 429 && task.attempts < MAX_RETRIES) {
+                metrics.increment("sender.retry_after");
+                // retry_after от Telegram приоритетнее; без него — экспоненциальная пауза
+                long delay = retryAfter != null ? retryAfter * 1000L : 1000L << Math.min(task.attempts, 4);
+                task.attempts++;
+                requeue(task, delay);
+                return;
+            }
+            metrics.increment("sender.errors");
+            finish(task);
+            task.result.completeExceptionally(e);
+        } catch (Exception e) {
+            metrics.increment("sender.errors");
+            finish(task);
+            task.result.completeExceptionally(e);
+        }
+    }
+
+    // 429: чат (и при повторах — весь бот) ждёт retry_after, задача возвращается в очередь
+    private void requeue(Task task, long delayMillis) {
+        long until = System.currentTimeMillis() + delayMillis;
+        synchronized (this) {
+            chatBlockedUntil.merge(task.chatId, until, Math::max);
+            if (task.attempts > 1) globalBlockedUntil = Math.max(globalBlockedUntil, until);
+            lane(task).remove(task.chatId);
+            inFlight--;
+            if (task.priority == Priority.FILE) filesInFlight--;
+            pending.add(task);
+            notifyAll();
+        }
+    }
+
+    private void finish(Task task) {
+        synchronized (this) {
+            lane(task).remove(task.chatId);
+            inFlight--;
+            if (task.priority == Priority.FILE) filesInFlight--;
+            notifyAll();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        dispatcher.interrupt();
+        workers.shutdown();
+        List<Task> left;
+        synchronized (this) {
+            left = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Task t : left) {
+            t.result.completeExceptionally(new IllegalStateException("Sender stopped"));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Реестр внешних утилит (yt-dlp, ffmpeg): путь, версия и возможности
+ * определяются один раз в фоне и перепроверяются по расписанию или после сбоя.
+ * Загрузки, /debug и /health читают только закэшированное состояние.
+ */
+@Component
+public class ToolRegistry {
+
+    public static final String YT_DLP = "yt-dlp";
+    public static final String FFMPEG = "ffmpeg";
+
+    public static class ToolStatus {
+        public final String name;
+        public final String path; // null, если не найден
+        public final String version;
+        public final boolean available;
+        public final Set<String> capabilities;
+        public final long checkedAt;
+
+        ToolStatus(String name, String path, String version, boolean available, Set<String> capabilities) {
+            this.name = name;
+            this.path = path;
+            this.version = version;
+            this.available = available;
+            this.capabilities = capabilities;
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        static ToolStatus unknown(String name, String path) {
+            return new ToolStatus(name, path, null, false, Set.of());
+        }
+
+        public boolean has(String capability) {
+            return capabilities.contains(capability);
+        }
+    }
+
+    private static final long FIRST_PROBE_WAIT_MS = 15_000;
+    private static final long FAILURE_RECHECK_MIN_MS = 30_000;
+    private static final long PROBE_TIMEOUT_MS = 10_000;
+
+    private final String ytDlpConfigured;
+    private final String ffmpegConfigured;
+    private final BotMetrics metrics;
+    private final long probeTimeoutMs;
+    private final CountDownLatch firstProbe = new CountDownLatch(1);
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final ExecutorService prober = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "tool-prober");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile ToolStatus ytDlp;
+    private volatile ToolStatus ffmpeg;
+
+    @Autowired
+    public ToolRegistry(@Value("${downloader.ytdlp.path:yt-dlp}") String ytDlpPath,
+                        @Value("${ffmpeg.path:}") String ffmpegConfigured,
+                        BotMetrics metrics) {
+        this(ytDlpPath, ffmpegConfigured, metrics, PROBE_TIMEOUT_MS);
+    }
+
+    ToolRegistry(String ytDlpPath, String ffmpegConfigured, BotMetrics metrics, long probeTimeoutMs) {
+        this.ytDlpConfigured = ytDlpPath;
+        this.ffmpegConfigured = ffmpegConfigured;
+        this.metrics = metrics;
+        this.probeTimeoutMs = probeTimeoutMs;
+        this.ytDlp = ToolStatus.unknown(YT_DLP, ytDlpPath);
+        this.ffmpeg = ToolStatus.unknown(FFMPEG, null);
+        metrics.gauge("tools.ytdlp.available", () -> ytDlp.available ? 1 : 0);
+        metrics.gauge("tools.ffmpeg.available", () -> ffmpeg.available ? 1 : 0);
+    }
+
+    @PostConstruct
+    public void start() {
+        refreshAsync();
+    }
+
+    @Scheduled(fixedDelayString = "${tools.recheck-ms:600000}", initialDelayString = "${tools.recheck-ms:600000}")
+    public void scheduledRefresh() {
+        refreshAsync();
+    }
+
+    /**
+     * Статус yt-dlp. Сразу после старта ждёт первую проверку, но не дольше нескольких секунд.
+     */
+    public ToolStatus ytDlp() {
+        awaitFirstProbe();
+        return ytDlp;
+    }
+
+    public ToolStatus ffmpeg() {
+        awaitFirstProbe();
+        return ffmpeg;
+    }
+
+    /**
+     * Путь к yt-dlp для запуска (настроенный, даже если проверка ещё не прошла)
+     */
+    public String ytDlpPath() {
+        return ytDlp.path == null ? ytDlpConfigured : ytDlp.path;
+    }
+
+    /**
+     * Утилита не запустилась или повела себя странно — перепроверить вне расписания
+     */
+    public void reportFailure(String tool) {
+        metrics.increment("tools.failure_reports");
+        ToolStatus s = YT_DLP.equals(tool) ? ytDlp : ffmpeg;
+        if (System.currentTimeMillis() - s.checkedAt >= FAILURE_RECHECK_MIN_MS) {
+            refreshAsync();
+        }
+    }
+
+    public Map<String, ToolStatus> snapshot() {
+        Map<String, ToolStatus> m = new LinkedHashMap<>();
+        m.put(YT_DLP, ytDlp);
+        m.put(FFMPEG, ffmpeg);
+        return m;
+    }
+
+    private void refreshAsync() {
+        if (!probing.compareAndSet(false, true)) return;
+        try {
+            prober.execute(() -> {
+                try {
+                    refresh();
+                } finally {
+                    probing.set(false);
+                    firstProbe.countDown();
+                }
+            });
+        } catch (RuntimeException e) { // executor уже остановлен
+            probing.set(false);
+        }
+    }
+
+    void refresh() {
+        long start = System.currentTimeMillis();
+        ytDlp = probeYtDlp();
+        ffmpeg = probeFfmpeg();
+        metrics.increment("tools.probes");
+        metrics.recordMillis("tools.probe", System.currentTimeMillis() - start);
+        firstProbe.countDown();
+    }
+
+    private ToolStatus probeYtDlp() {
+        List<String> out = run(ytDlpConfigured, "--version");
+        if (out == null || out.isEmpty()) return ToolStatus.unknown(YT_DLP, ytDlpConfigured);
+        return new ToolStatus(YT_DLP, ytDlpConfigured, out.get(0).trim(), true, Set.of());
+    }
+
+    private ToolStatus probeFfmpeg() {
+        List<String> candidates = new ArrayList<>();
+        if (ffmpegConfigured != null && !ffmpegConfigured.isBlank()) candidates.add(ffmpegConfigured);
+        String env = System.getenv("FFMPEG_PATH");
+        if (env != null && !env.isBlank()) candidates.add(env);
+        // common locations
+        candidates.addAll(List.of("ffmpeg", "/opt/homebrew/bin/ffmpeg", "/usr/local/bin/ffmpeg", "/usr/bin/ffmpeg"));
+        for (String c : candidates) {
+            if (!c.contains("/") || fileExecutable(c)) {
+                List<String> out = run(c, "-version");
+                if (out != null && !out.isEmpty()) {
+                    return new ToolStatus(FFMPEG, c, ffmpegVersion(out.get(0)), true, ffmpegCapabilities(out));
+                }
+            }
+        }
+        return ToolStatus.unknown(FFMPEG, null);
+    }
+
+    // "ffmpeg version 6.1.1-3ubuntu5 Copyright ..." -> "6.1.1-3ubuntu5"
+    private static String ffmpegVersion(String firstLine) {
+        String[] parts = firstLine.split("\\s+");
+        return parts.length >= 3 ? parts[2] : firstLine.trim();
+    }
+
+    private static Set<String> ffmpegCapabilities(List<String> versionOutput) {
+        Set<String> caps = new TreeSet<>();
+        String all = String.join(" ", versionOutput);
+        if (all.contains("--enable-libmp3lame")) caps.add("libmp3lame");
+        if (all.contains("--enable-libopus")) caps.add("libopus");
+        if (all.contains("--enable-libfdk-aac")) caps.add("libfdk_aac");
+        return caps;
+    }
+
+    private static boolean fileExecutable(String pathStr) {
+        try {
+            Path p = Path.of(pathStr);
+            return Files.exists(p) && Files.isExecutable(p);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Вывод команды или null, если она не запустилась / завершилась с ошибкой / зависла
+    private List<String> run(String cmd, String arg) {
+        try {
+            Process p = new ProcessBuilder(cmd, arg).redirectErrorStream(true).start();
+            // Чтение stdout ждёт конца вывода, поэтому таймаут — убийство по таймеру, как в MetadataService:
+            // иначе зависшая утилита навсегда заняла бы поток проверки
+            AtomicBoolean timedOut = new AtomicBoolean();
+            CompletableFuture.delayedExecutor(probeTimeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+                if (p.isAlive()) {
+                    timedOut.set(true);
+                    metrics.increment("tools.probe_timeouts");
+                    ProcessTrees.kill(p, metrics);
+                }
+            });
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (lines.size() < 50) lines.add(line);
+                }
+            }
+            int exit = p.waitFor();
+            return exit == 0 && !timedOut.get() ? lines : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void awaitFirstProbe() {
+        try {
+            firstProbe.await(FIRST_PROBE_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prober.shutdownNow();
+    }
+}
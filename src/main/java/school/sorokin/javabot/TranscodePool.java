@@ -0,0 +1,245 @@
+package school.sorokin.javabot;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Отдельная стадия перекодирования: одновременно работает не больше ffmpeg, чем ядер
+ * (transcode.max-concurrent, 0 — по числу ядер), остальные ждут в своей очереди.
+ * Процессу задаются число потоков (-threads) и приоритет (nice), чтобы всплеск
+ * конвертаций не отнимал CPU у загрузок и обработки апдейтов.
+ */
+@Component
+public class TranscodePool {
+
+    public static class Result {
+        public final int exitCode;
+        public final long encodeMillis;
+        public final long mediaMillis; // длительность исходника по выводу ffmpeg, -1 — неизвестно
+
+        Result(int exitCode, long encodeMillis, long mediaMillis) {
+            this.exitCode = exitCode;
+            this.encodeMillis = encodeMillis;
+            this.mediaMillis = mediaMillis;
+        }
+
+        // Во сколько раз быстрее реального времени; 0 — неизвестно
+        public double realtimeFactor() {
+            return mediaMillis > 0 && encodeMillis > 0 ? (double) mediaMillis / encodeMillis : 0;
+        }
+    }
+
+    // Скорость кодирования, пока своей статистики нет: ~40x реального времени на поток
+    static final double DEFAULT_REALTIME_FACTOR = 40;
+
+    private static final long PROBE_TIMEOUT_MS = 30_000;
+    private static final List<String> NICE_PATHS = List.of("/usr/bin/nice", "/bin/nice");
+    private static final Pattern DURATION = Pattern.compile("Duration: (\\d+):(\\d{2}):(\\d{2}(?:\\.\\d+)?)");
+
+    private final int concurrency;
+    private final int ffmpegThreads;
+    private final int niceness;
+    private final String nicePath; // null — запускаем без nice
+    private final long probeTimeoutMs;
+    private final BotMetrics metrics;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder mediaMillis = new LongAdder();
+    private final LongAdder encodeMillis = new LongAdder();
+
+    @Autowired
+    public TranscodePool(@Value("${transcode.max-concurrent:0}") int maxConcurrent,
+                         @Value("${transcode.ffmpeg-threads:1}") int ffmpegThreads,
+                         @Value("${transcode.nice:10}") int niceness,
+                         BotMetrics metrics) {
+        this(maxConcurrent, ffmpegThreads, niceness, metrics, PROBE_TIMEOUT_MS);
+    }
+
+    TranscodePool(int maxConcurrent, int ffmpegThreads, int niceness, BotMetrics metrics, long probeTimeoutMs) {
+        this.concurrency = maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors();
+        this.ffmpegThreads = Math.max(0, ffmpegThreads); // 0 — на усмотрение ffmpeg
+        this.niceness = niceness;
+        // запускается ровно тот nice, который проверен, а не первый найденный в PATH
+        this.nicePath = niceness > 0
+                ? NICE_PATHS.stream().filter(p -> Files.isExecutable(Paths.get(p))).findFirst().orElse(null)
+                : null;
+        this.probeTimeoutMs = probeTimeoutMs;
+        this.metrics = metrics;
+        AtomicInteger n = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "transcode-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("transcode.max_concurrent", () -> concurrency);
+        metrics.gauge("transcode.active", executor::getActiveCount);
+        metrics.gauge("transcode.queue_depth", () -> executor.getQueue().size());
+        metrics.gauge("transcode.realtime_factor", () -> {
+            long enc = encodeMillis.sum();
+            return enc == 0 ? 0 : Math.round(mediaMillis.sum() * 100.0 / enc) / 100.0;
+        });
+    }
+
+    /**
+     * Запускает ffmpeg в пуле и ждёт результата. Вызывающий поток (загрузка) блокируется,
+     * но CPU занимают только потоки пула.
+     *
+     * @param options аргументы ffmpeg между путём к программе и выходным файлом
+     */
+    public Result run(DownloadContext ctx, String ffmpegPath, List<String> options, Path target)
+            throws IOException, InterruptedException {
+        long enqueuedAt = System.currentTimeMillis();
+        if (executor.getActiveCount() >= concurrency) {
+            ctx.progress("⏳ Ожидание очереди конвертации...");
+        }
+        Future<Result> job = executor.submit(() -> {
+            metrics.recordMillis("transcode.queue_wait", System.currentTimeMillis() - enqueuedAt);
+            if (ctx.isCancelled()) throw new CancellationException();
+            return encode(ctx, command(ffmpegPath, options, target), true);
+        });
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            job.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            if (e.getCause() instanceof CancellationException) throw new IOException("Transcode cancelled");
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Перекладка дорожки без перекодирования (-c copy): упирается в диск, а не в CPU,
+     * поэтому выполняется сразу на вызывающем потоке, без очереди
+     */
+    public Result copy(DownloadContext ctx, String ffmpegPath, List<String> options, Path target)
+            throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(ffmpegPath);
+        cmd.addAll(options);
+        cmd.add(target.toString());
+        return encode(ctx, cmd, false);
+    }
+
+    /**
+     * Дорожки исходника по выводу {@code ffmpeg -i} (без выходного файла ffmpeg завершается с ошибкой — это ожидаемо).
+     * Зависший ffmpeg убивается по таймеру: чтение вывода иначе ждало бы его вечно.
+     */
+    public CodecDecision.Probe probe(String ffmpegPath, Path source) throws IOException, InterruptedException {
+        Process p = new ProcessBuilder(ffmpegPath, "-hide_banner", "-i", source.toString())
+                .redirectErrorStream(true)
+                .start();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        CompletableFuture.delayedExecutor(probeTimeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+            if (p.isAlive()) {
+                timedOut.set(true);
+                metrics.increment("transcode.probe_timeouts");
+                ProcessTrees.kill(p, metrics);
+            }
+        });
+        String out;
+        try (InputStream in = p.getInputStream()) {
+            out = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        p.waitFor();
+        if (timedOut.get()) throw new IOException("ffmpeg probe timed out: " + source);
+        return CodecDecision.parse(out);
+    }
+
+    /**
+     * Кодирование не понадобилось: учитываем сэкономленное CPU по средней скорости наших кодирований
+     */
+    public void recordAvoided(CodecDecision.Action action, long sourceMillis) {
+        metrics.increment("transcode.avoided");
+        metrics.increment("transcode.avoided." + action.name().toLowerCase());
+        if (sourceMillis <= 0) return;
+        long enc = encodeMillis.sum();
+        double factor = enc == 0 ? DEFAULT_REALTIME_FACTOR : (double) mediaMillis.sum() / enc;
+        metrics.add("transcode.cpu_saved_ms", Math.round(sourceMillis / factor * Math.max(1, ffmpegThreads)));
+    }
+
+    List<String> command(String ffmpegPath, List<String> options, Path target) {
+        List<String> cmd = new ArrayList<>();
+        if (nicePath != null) cmd.addAll(List.of(nicePath, "-n", String.valueOf(niceness)));
+        cmd.add(ffmpegPath);
+        cmd.addAll(options);
+        if (ffmpegThreads > 0) cmd.addAll(List.of("-threads", String.valueOf(ffmpegThreads)));
+        cmd.add(target.toString());
+        return cmd;
+    }
+
+    private Result encode(DownloadContext ctx, List<String> cmd, boolean transcode) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        ctx.attach(p);
+        long duration = -1;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (duration < 0) duration = parseDuration(line);
+            }
+        }
+        int exit;
+        try {
+            exit = p.waitFor();
+        } catch (InterruptedException e) {
+            p.destroyForcibly();
+            throw e;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Result result = new Result(exit, elapsed, duration);
+        metrics.recordMillis(transcode ? "transcode.encode" : "transcode.copy", elapsed);
+        if (!transcode) return result;
+        if (exit != 0) {
+            metrics.increment("transcode.errors");
+        } else if (duration > 0) {
+            mediaMillis.add(duration);
+            encodeMillis.add(elapsed);
+            metrics.recordMillis("transcode.media", duration);
+        }
+        return result;
+    }
+
+    static long parseDuration(String line) {
+        Matcher m = DURATION.matcher(line);
+        if (!m.find()) return -1;
+        double sec = Integer.parseInt(m.group(1)) * 3600 + Integer.parseInt(m.group(2)) * 60
+                + Double.parseDouble(m.group(3));
+        return Math.round(sec * 1000);
+    }
+
+    public int concurrency() {
+        return concurrency;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,61 +1,161 @@
 package school.sorokin.javabot;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
-import org.telegram.telegrambots.client.okhttp.OkHttpTelegramClient;
-import org.telegram.telegrambots.longpolling.util.LongPollingSingleThreadUpdateConsumer;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 @Component
-public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
+public class UpdateConsumer {
 
-    private OkHttpTelegramClient telegramClient;
-    private final String ytDlpPath;
-    private String ffmpegPath; // кэшированный путь к ffmpeg или null
+    private final TelegramSender sender;
+    private final ToolRegistry toolRegistry;
     private final HostedFileService hostedFileService; // добавлено
+    private final DownloadScheduler downloadScheduler;
+    private final DownloadCache downloadCache;
+    private final TelegramFileIdCache fileIdCache;
+    private final InFlightDownloads inFlightDownloads;
+    private final JobWorkspaces jobWorkspaces;
+    private final Mp3StreamPipeline mp3StreamPipeline;
+    private final BotMetrics metrics;
+    private final ProgressReporter progressReporter;
+    private final CallbackTokenStore callbackTokens;
+    private final MetadataService metadataService;
+    private final SpeculativePrefetcher speculativePrefetcher;
+    private final TranscodePool transcodePool;
+    private final JobJournal jobJournal;
+    private final SharedStore sharedStore;
+    private final SharedJobQueue sharedJobs;
+    private final BatchDownloads batchDownloads;
+    private final boolean mp3Streaming;
+    private final boolean remuxAac;
+    private final int maxAttempts;
+    // Задача журнала для каждого ожидающего (по его Listener): стадии и завершение пишутся по ней
+    private final Map<InFlightDownloads.Listener, JobJournal.Job> jobsByListener = new ConcurrentHashMap<>();
+    private final Map<InFlightDownloads.Listener, BatchDownloads.Batch> batchByListener = new ConcurrentHashMap<>();
 
-    // Кэш соответствий короткий ID -> оригинальный URL
-    private static final Map<String, String> URL_CACHE = new ConcurrentHashMap<>();
-    private static final Pattern AUDIO_CALLBACK_PATTERN = Pattern.compile("a_(mp3|orig)_([a-zA-Z0-9]{12})");
-    private static final Map<Long, Boolean> LINK_PREFS = new ConcurrentHashMap<>(); // chatId -> showRawUrl
+    private static final String CANCEL_CALLBACK = "x_";
+    private static final String BATCH_CANCEL_CALLBACK = "xb_";
+    private static final String BATCH_KEY = "batch:"; // + токен -> ссылки пакета через \n, пока выбирается формат
+    private static final long BATCH_CHOICE_TTL_MS = 60 * 60_000L;
+    static final long TELEGRAM_FILE_LIMIT = 50L * 1024 * 1024;
+    private static final int LOG_TAIL_LINES = 40;
+    private static final long METADATA_WAIT_SEC = 20;
+    private static final String OUTPUT_MARKER = "__OUT__"; // префикс строки с итоговым путём от yt-dlp
 
-    private volatile boolean ffmpegReported = false;
+    private static final Pattern AUDIO_CALLBACK_PATTERN = Pattern.compile("a_(mp3|orig)_([a-zA-Z0-9]{12})");
+    private static final Pattern BATCH_CALLBACK_PATTERN = Pattern.compile("b_(v720|mp3|orig)_([a-zA-Z0-9]{12})");
+    private static final String LINK_PREF_KEY = "prefs:link:"; // + chatId -> "1"/"0", показывать ли ссылку текстом
 
-    public UpdateConsumer(@Value("${telegram.bot.token}") String botToken,
-                          @Value("${downloader.ytdlp.path:yt-dlp}") String ytDlpPath,
-                          @Value("${ffmpeg.path:}") String ffmpegConfigured,
-                          HostedFileService hostedFileService) { // добавлен параметр
-        this.telegramClient = new OkHttpTelegramClient(botToken);
-        this.ytDlpPath = ytDlpPath;
-        this.ffmpegPath = resolveFfmpegPath(ffmpegConfigured);
+    public UpdateConsumer(TelegramSender sender,
+                          ToolRegistry toolRegistry,
+                          @Value("${download.mp3.streaming:true}") boolean mp3Streaming,
+                          @Value("${download.audio.remux-aac:true}") boolean remuxAac,
+                          @Value("${download.jobs.max-attempts:2}") int maxAttempts,
+                          HostedFileService hostedFileService, // добавлен параметр
+                          DownloadScheduler downloadScheduler,
+                          DownloadCache downloadCache,
+                          TelegramFileIdCache fileIdCache,
+                          InFlightDownloads inFlightDownloads,
+                          JobWorkspaces jobWorkspaces,
+                          Mp3StreamPipeline mp3StreamPipeline,
+                          BotMetrics metrics,
+                          ProgressReporter progressReporter,
+                          CallbackTokenStore callbackTokens,
+                          MetadataService metadataService,
+                          SpeculativePrefetcher speculativePrefetcher,
+                          TranscodePool transcodePool,
+                          JobJournal jobJournal,
+                          SharedStore sharedStore,
+                          SharedJobQueue sharedJobs,
+                          BatchDownloads batchDownloads) {
+        this.sender = sender;
+        this.toolRegistry = toolRegistry;
         this.hostedFileService = hostedFileService; // присваивание
+        this.downloadScheduler = downloadScheduler;
+        this.downloadCache = downloadCache;
+        this.fileIdCache = fileIdCache;
+        this.inFlightDownloads = inFlightDownloads;
+        this.jobWorkspaces = jobWorkspaces;
+        this.mp3StreamPipeline = mp3StreamPipeline;
+        this.metrics = metrics;
+        this.progressReporter = progressReporter;
+        this.callbackTokens = callbackTokens;
+        this.metadataService = metadataService;
+        this.speculativePrefetcher = speculativePrefetcher;
+        this.transcodePool = transcodePool;
+        this.jobJournal = jobJournal;
+        this.sharedStore = sharedStore;
+        this.sharedJobs = sharedJobs;
+        this.batchDownloads = batchDownloads;
+        this.maxAttempts = maxAttempts;
+        this.mp3Streaming = mp3Streaming;
+        this.remuxAac = remuxAac;
     }
 
-    @Override
+    /**
+     * Задачи, прерванные прошлым запуском: очередь повторяется, прерванные загрузки
+     * перезапускаются с начала, а после исчерпания попыток пользователь получает отказ
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverJobs() {
+        for (JobJournal.Job job : jobJournal.drainRecovered()) {
+            jobJournal.finished(job);
+            if (job.attempt >= maxAttempts) {
+                metrics.increment("jobs.failed_on_restart");
+                sendMessage(job.chatId, "❌ Загрузка прервана перезапуском бота. Отправьте ссылку ещё раз:\n" + job.url);
+                continue;
+            }
+            metrics.increment(job.stage() == JobJournal.Stage.QUEUED ? "jobs.replayed" : "jobs.resumed");
+            sendMessage(job.chatId, job.stage() == JobJournal.Stage.QUEUED
+                    ? "♻️ Бот перезапускался — ваша загрузка снова в очереди."
+                    : "♻️ Бот перезапускался во время загрузки — начинаю заново.");
+            requestDownload(job.chatId, VideoRef.parse(job.url), job.url, job.format, job.attempt + 1);
+        }
+    }
+
+    /**
+     * Узел забирает задачи из общей очереди, когда у него освобождаются слоты
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startSharedJobs() {
+        sharedJobs.start(job -> startDownload(job.chatId, VideoRef.parse(job.url), job.url, job.format,
+                jobJournal.queued(job.chatId, job.url, job.format, job.attempt)));
+    }
+
+    /**
+     * Обработка одного апдейта. Вызывается из {@link StripedUpdateDispatcher}:
+     * параллельно для разных чатов, последовательно внутри чата.
+     */
     public void consume(Update update) {
         if (update.hasMessage() && update.getMessage().hasText()) {
             handleTextMessage(update);
@@ -73,9 +173,15 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
                 case "/help" -> sendHelpMessage(chatId);
                 case "/debug" -> sendDebug(chatId);
                 case "/togglelink" -> toggleLinkPreference(chatId);
+                case "/cancel" -> cancelDownloads(chatId);
                 default -> {
-                    if (isValidUrl(messageText)) {
-                        showDownloadOptions(chatId, messageText);
+                    List<String> urls = BatchDownloads.extractUrls(messageText).stream().filter(this::isValidUrl).toList();
+                    if (urls.size() > 1 || (urls.size() == 1 && BatchDownloads.isPlaylist(urls.get(0)))) {
+                        showBatchOptions(chatId, urls);
+                    } else if (urls.size() == 1) {
+                        showDownloadOptions(chatId, urls.get(0)); // без текста вокруг ссылки
+                    } else if (isValidUrl(messageText) && messageText.strip().chars().noneMatch(Character::isWhitespace)) {
+                        showDownloadOptions(chatId, messageText.strip()); // ссылка без схемы: youtu.be/...
                     } else {
                         sendMessage(chatId, "❌ Неверная ссылка. Поддерживаются YouTube и TikTok ссылки.");
                     }
@@ -89,10 +195,17 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
 
     private void sendDebug(Long chatId) {
         StringBuilder sb = new StringBuilder();
-        sb.append("yt-dlp path: ").append(ytDlpPath).append('\n');
-        sb.append("yt-dlp available: ").append(isYtDlpAvailable()).append('\n');
-        sb.append("ffmpeg configured path: ").append(ffmpegPath == null ? "<null>" : ffmpegPath).append('\n');
-        sb.append("ffmpeg available: ").append(isFfmpegAvailable()).append('\n');
+        ToolRegistry.ToolStatus ytDlp = toolRegistry.ytDlp();
+        ToolRegistry.ToolStatus ffmpeg = toolRegistry.ffmpeg();
+        sb.append("yt-dlp path: ").append(toolRegistry.ytDlpPath()).append('\n');
+        sb.append("yt-dlp available: ").append(ytDlp.available)
+                .append(ytDlp.version == null ? "" : " (" + ytDlp.version + ")").append('\n');
+        sb.append("ffmpeg path: ").append(ffmpeg.path == null ? "<null>" : ffmpeg.path).append('\n');
+        sb.append("ffmpeg available: ").append(ffmpeg.available)
+                .append(ffmpeg.version == null ? "" : " (" + ffmpeg.version + ")")
+                .append(ffmpeg.capabilities.isEmpty() ? "" : " " + ffmpeg.capabilities).append('\n');
+        sb.append("scheduler: ").append(downloadScheduler.running()).append('/').append(downloadScheduler.maxConcurrent())
+                .append(" active, ").append(downloadScheduler.queued()).append(" queued").append('\n');
         sendMessage(chatId, sb.toString());
     }
 
@@ -100,30 +213,103 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
         String callbackData = update.getCallbackQuery().getData();
         Long chatId = update.getCallbackQuery().getMessage().getChatId();
 
+        if (callbackData.startsWith(BATCH_CANCEL_CALLBACK)) {
+            cancelBatch(chatId, callbackData.substring(BATCH_CANCEL_CALLBACK.length()));
+            return;
+        }
+        Matcher batch = BATCH_CALLBACK_PATTERN.matcher(callbackData);
+        if (batch.matches()) {
+            // take атомарен: двойное нажатие, даже принятое разными узлами, запускает пакет один раз
+            String stored = sharedStore.take(BATCH_KEY + batch.group(2));
+            if (stored == null) {
+                sendMessage(chatId, "❌ Ссылки устарели. Отправьте их снова.");
+                return;
+            }
+            startBatch(chatId, MediaFormat.fromCode(batch.group(1)), List.of(stored.split("\n")));
+            return;
+        }
+        if (callbackData.startsWith(CANCEL_CALLBACK)) {
+            long waiterId;
+            try {
+                waiterId = Long.parseLong(callbackData.substring(CANCEL_CALLBACK.length()));
+            } catch (NumberFormatException e) {
+                sendMessage(chatId, "❌ Неизвестное действие.");
+                return;
+            }
+            InFlightDownloads.Waiter w = inFlightDownloads.cancel(waiterId, chatId);
+            if (w == null) {
+                sendMessage(chatId, "ℹ️ Эта загрузка уже завершена.");
+            } else {
+                confirmCancelled(w);
+            }
+            return;
+        }
         if (callbackData.startsWith("v_")) {
-            String url = extractUrlFromCallback(callbackData); // v_<id>
-            if (url == null) {
+            CallbackTokenStore.Entry link = callbackTokens.get(callbackData.substring(2)); // v_<token>
+            if (link == null) {
                 sendMessage(chatId, "❌ Ссылка устарела. Отправьте её снова.");
                 return;
             }
-            downloadVideo(chatId, url);
+            downloadVideo(chatId, link);
             return;
         }
         Matcher m = AUDIO_CALLBACK_PATTERN.matcher(callbackData);
         if (m.matches()) {
             String fmt = m.group(1); // mp3 | orig
-            String id = m.group(2);
-            String url = URL_CACHE.get(id);
-            if (url == null) {
+            CallbackTokenStore.Entry link = callbackTokens.get(m.group(2));
+            if (link == null) {
                 sendMessage(chatId, "❌ Ссылка устарела. Отправьте её снова.");
                 return;
             }
-            downloadAudio(chatId, url, fmt);
+            downloadAudio(chatId, link, fmt);
             return;
         }
         sendMessage(chatId, "❌ Неизвестное действие.");
     }
 
+    /**
+     * /cancel: останавливает все загрузки чата. Общая загрузка продолжается, если её ждёт кто-то ещё
+     */
+    private void cancelDownloads(Long chatId) {
+        int batches = batchDownloads.cancelChat(chatId); // сначала, чтобы пакеты не запускали новые задачи
+        List<InFlightDownloads.Waiter> cancelled = inFlightDownloads.cancelChat(chatId);
+        if (cancelled.isEmpty() && batches == 0) {
+            sendMessage(chatId, "ℹ️ Нет активных загрузок.");
+            return;
+        }
+        for (InFlightDownloads.Waiter w : cancelled) {
+            confirmCancelled(w);
+        }
+    }
+
+    private void confirmCancelled(InFlightDownloads.Waiter w) {
+        jobJournal.finished(jobsByListener.remove(w.listener()));
+        if (batchByListener.containsKey(w.listener())) { // об отмене пакета скажет его общий статус
+            batchChildDone(w.listener(), false);
+            return;
+        }
+        w.listener().message("🚫 Загрузка отменена.");
+        w.listener().progress("🚫 Отменено.", true); // убирает кнопку со статуса, если он показан
+    }
+
+    private void cancelBatch(Long chatId, String data) {
+        List<Long> waiters;
+        try {
+            waiters = batchDownloads.cancel(Long.parseLong(data), chatId);
+        } catch (NumberFormatException e) {
+            sendMessage(chatId, "❌ Неизвестное действие.");
+            return;
+        }
+        if (waiters == null) {
+            sendMessage(chatId, "ℹ️ Этот пакет уже завершён.");
+            return;
+        }
+        for (Long id : waiters) {
+            InFlightDownloads.Waiter w = inFlightDownloads.cancel(id, chatId);
+            if (w != null) confirmCancelled(w);
+        }
+    }
+
     private void sendWelcomeMessage(Long chatId) {
         String welcomeText = """
                 🎬 *Добро пожаловать в YouTube & TikTok Downloader!*
@@ -143,7 +329,7 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
                 .parseMode("Markdown")
                 .build();
 
-        executeMessage(message);
+        executeMessage(chatId, message);
     }
 
     private void sendHelpMessage(Long chatId) {
@@ -155,6 +341,9 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
                 3️⃣ Выберите формат скачивания:
                    • 📹 Видео - полное видео
                    • 🎵 Аудио - только звуковая дорожка
+                4️⃣ /cancel — остановить текущие загрузки
+                
+                📦 Несколько ссылок или плейлист в одном сообщении — скачаю всё, файлы приходят по мере готовности
                 
                 ⚡ *Поддерживаемые платформы:*
                 • YouTube (youtube.com)
@@ -171,278 +360,691 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
                 .parseMode("Markdown")
                 .build();
 
-        executeMessage(message);
+        executeMessage(chatId, message);
     }
 
+    /**
+     * Кнопки выбора формата. Метаданные запрашиваются сразу: если они уже в кэше, оценки
+     * размера видны сразу, иначе сообщение дополняется, когда yt-dlp ответит.
+     */
     private void showDownloadOptions(Long chatId, String url) {
-        String id = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
-        URL_CACHE.put(id, url);
+        String id = callbackTokens.issue(url);
+        VideoRef ref = VideoRef.parse(url);
+        if (ref == null) {
+            executeMessage(chatId, SendMessage.builder()
+                    .chatId(chatId.toString())
+                    .text(optionsText(url, null))
+                    .disableWebPagePreview(true)
+                    .replyMarkup(optionsKeyboard(url, id, null))
+                    .build());
+            return;
+        }
+        CompletableFuture<VideoMetadata> meta = metadataService.fetch(ref);
+        VideoMetadata known = metadataService.cached(ref);
+        if (known != null && rejectedForAll(known) != null) {
+            sendMessage(chatId, rejectedForAll(known));
+            return;
+        }
+        meta.thenAccept(loaded -> {
+            if (rejectedForAll(loaded) == null) speculate(ref, url, loaded);
+        });
+        SendMessage message = SendMessage.builder()
+                .chatId(chatId.toString())
+                .text(optionsText(url, known))
+                .disableWebPagePreview(true)
+                .replyMarkup(optionsKeyboard(url, id, known))
+                .build();
+        CompletableFuture<Message> sent = sender.submit(chatId, TelegramSender.Priority.REPLY, c -> c.execute(message));
+        if (known != null) return;
+        sent.thenAcceptBoth(meta, (m, loaded) -> {
+            if (m == null || loaded == null) return;
+            String rejected = rejectedForAll(loaded);
+            EditMessageText.EditMessageTextBuilder<?, ?> edit = EditMessageText.builder()
+                    .chatId(chatId.toString())
+                    .messageId(m.getMessageId())
+                    .disableWebPagePreview(true)
+                    .text(rejected != null ? rejected : optionsText(url, loaded));
+            if (rejected == null) edit.replyMarkup(optionsKeyboard(url, id, loaded));
+            EditMessageText request = edit.build();
+            sender.submit(chatId, TelegramSender.Priority.REPLY, c -> c.execute(request));
+        });
+    }
+
+    /**
+     * Несколько ссылок или плейлист: плейлисты раскрываются в фоне, а формат выбирается один на весь пакет
+     */
+    private void showBatchOptions(Long chatId, List<String> urls) {
+        batchDownloads.expand(urls).whenComplete((expansion, e) -> {
+            if (e != null) {
+                e.printStackTrace();
+                sendMessage(chatId, "❌ Не удалось получить список роликов плейлиста.");
+                return;
+            }
+            showBatchOptions(chatId, expansion);
+        });
+    }
+
+    private void showBatchOptions(Long chatId, BatchDownloads.Expansion expansion) {
+        List<String> items = expansion.items;
+        if (!expansion.failed.isEmpty()) {
+            sendMessage(chatId, "❌ Не удалось получить список роликов плейлиста:\n" + String.join("\n", expansion.failed));
+        }
+        if (items.isEmpty()) {
+            if (expansion.failed.isEmpty()) sendMessage(chatId, "❌ Не удалось получить список роликов плейлиста.");
+            return;
+        }
+        if (items.size() == 1) {
+            showDownloadOptions(chatId, items.get(0));
+            return;
+        }
+        String token = UUID.randomUUID().toString().replace("-", "").substring(0, CallbackTokenStore.TOKEN_LENGTH);
+        sharedStore.put(BATCH_KEY + token, String.join("\n", items), BATCH_CHOICE_TTL_MS);
+        InlineKeyboardMarkup keyboard = InlineKeyboardMarkup.builder()
+                .keyboardRow(new InlineKeyboardRow(InlineKeyboardButton.builder()
+                        .text("📹 Всё видео").callbackData("b_v720_" + token).build()))
+                .keyboardRow(new InlineKeyboardRow(
+                        InlineKeyboardButton.builder().text("🎵 Всё в MP3").callbackData("b_mp3_" + token).build(),
+                        InlineKeyboardButton.builder().text("🎵 Оригинал").callbackData("b_orig_" + token).build()))
+                .build();
+        String limited = items.size() >= batchDownloads.maxItems() ? " (больше за раз не беру)" : "";
+        executeMessage(chatId, SendMessage.builder()
+                .chatId(chatId.toString())
+                .text("📦 Ссылок в пакете: " + items.size() + limited + ". Выберите формат для всех:")
+                .replyMarkup(keyboard)
+                .build());
+    }
+
+    /**
+     * Запускает первые задачи пакета; следующие стартуют по мере завершения предыдущих
+     */
+    private void startBatch(Long chatId, MediaFormat format, List<String> urls) {
+        speculativePrefetcher.recordChoice(format);
+        ProgressReporter.Status status = progressReporter.open(chatId);
+        BatchDownloads.Batch batch = batchDownloads.create(chatId, urls, format, chatListener(chatId, status),
+                this::offerBundle);
+        status.cancelButton(BATCH_CANCEL_CALLBACK + batch.id);
+        for (String url : batchDownloads.admit(batch)) {
+            requestDownload(chatId, VideoRef.parse(url), url, format, 1, batch);
+        }
+    }
+
+    // Больше одного файла пакета ушло ссылками — даём ещё одну ссылку на всё сразу
+    private void offerBundle(BatchDownloads.Batch batch) {
+        List<String> hosted = batch.hostedIds();
+        if (hosted.size() < 2) return;
+        // CRC считаются в фоне: поток загрузки, завершивший пакет, не ждёт чтения гигабайтов
+        hostedFileService.registerBundle("batch-" + batch.id, hosted).whenComplete((id, e) -> {
+            if (e != null) {
+                e.printStackTrace(); // файлы уже истекли — отдельные ссылки пользователь получил
+                return;
+            }
+            sendLinkMessage(batch.chatId, "📦 Все большие файлы пакета одним архивом (ссылка временная):",
+                    "⬇️ Скачать ZIP", hostedFileService.buildBundleUrl(id));
+        });
+    }
 
+    // Задача пакета завершилась: на её место встают следующие
+    private void batchChildDone(InFlightDownloads.Listener listener, boolean delivered) {
+        BatchDownloads.Batch batch = batchByListener.remove(listener);
+        if (batch != null) continueBatch(batch, delivered);
+    }
+
+    private void continueBatch(BatchDownloads.Batch batch, boolean delivered) {
+        for (String url : batchDownloads.childDone(batch, delivered)) {
+            requestDownload(batch.chatId, VideoRef.parse(url), url, batch.format, 1, batch);
+        }
+    }
+
+    // Прогресс задач пакета идёт в общий статус, ошибки — отдельными сообщениями
+    private InFlightDownloads.Listener batchListener(BatchDownloads.Batch batch) {
+        return new InFlightDownloads.Listener() {
+            @Override
+            public void message(String text) {
+                sendMessage(batch.chatId, text);
+            }
+
+            @Override
+            public void progress(String text, boolean last) {
+                if (!last) batchDownloads.progress(batch, text);
+            }
+        };
+    }
+
+    // Пока пользователь выбирает, популярный формат уже может качаться в кэш
+    private void speculate(VideoRef ref, String url, VideoMetadata meta) {
+        speculativePrefetcher.speculate(ref, url, meta, (flight, format) -> runFlight(flight, ref, format, url));
+    }
+
+    // Отказ, если ни один формат не проходит по лимитам (например, ролик слишком длинный)
+    private String rejectedForAll(VideoMetadata meta) {
+        String reason = null;
+        for (MediaFormat f : MediaFormat.values()) {
+            reason = metadataService.rejectReason(meta, f);
+            if (reason == null) return null;
+        }
+        return reason;
+    }
+
+    private String optionsText(String url, VideoMetadata meta) {
+        StringBuilder sb = new StringBuilder("🔗 Ссылка получена! Выберите формат или откройте оригинал:\n");
+        if (meta != null) {
+            if (!meta.title.isBlank()) sb.append("🎬 ").append(meta.title).append('\n');
+            sb.append("⏱ ").append(meta.durationText()).append('\n');
+        }
+        return sb.append(url).toString();
+    }
+
+    private InlineKeyboardMarkup optionsKeyboard(String url, String id, VideoMetadata meta) {
         InlineKeyboardButton openUrlBtn = InlineKeyboardButton.builder()
                 .text("🔗 Открыть ссылку")
                 .url(url)
                 .build();
         InlineKeyboardButton videoBtn = InlineKeyboardButton.builder()
-                .text("📹 Видео")
+                .text(withEstimate("📹 Видео", meta, MediaFormat.VIDEO_720))
                 .callbackData("v_" + id)
                 .build();
         InlineKeyboardButton audioMp3Btn = InlineKeyboardButton.builder()
-                .text("🎵 MP3 128k")
+                .text(withEstimate("🎵 MP3 128k", meta, MediaFormat.MP3_128))
                 .callbackData("a_mp3_" + id)
                 .build();
         InlineKeyboardButton audioOrigBtn = InlineKeyboardButton.builder()
-                .text("🎵 Оригинал")
+                .text(withEstimate("🎵 Оригинал", meta, MediaFormat.AUDIO_ORIGINAL))
                 .callbackData("a_orig_" + id)
                 .build();
 
-        InlineKeyboardMarkup keyboard = InlineKeyboardMarkup.builder()
+        return InlineKeyboardMarkup.builder()
                 .keyboardRow(new InlineKeyboardRow(openUrlBtn))
                 .keyboardRow(new InlineKeyboardRow(videoBtn))
                 .keyboardRow(new InlineKeyboardRow(audioMp3Btn, audioOrigBtn))
                 .build();
+    }
 
-        String body = "🔗 Ссылка получена! Выберите формат или откройте оригинал:\n" + url;
-        SendMessage message = SendMessage.builder()
-                .chatId(chatId.toString())
-                .text(body)
-                .disableWebPagePreview(true)
-                .replyMarkup(keyboard)
-                .build();
+    // "📹 Видео (~35 МБ)"; формат сверх лимита помечается
+    private String withEstimate(String label, VideoMetadata meta, MediaFormat format) {
+        if (meta == null) return label;
+        if (metadataService.rejectReason(meta, format) != null) return label + " ⛔";
+        long size = meta.estimate(format);
+        return size > 0 ? label + " (" + VideoMetadata.humanSize(size) + ")" : label;
+    }
 
-        executeMessage(message);
+    private void downloadVideo(Long chatId, CallbackTokenStore.Entry link) {
+        requestDownload(chatId, link.ref, link.url(), MediaFormat.VIDEO_720);
     }
 
-    private void downloadVideo(Long chatId, String url) {
-        sendMessage(chatId, "⏬ Начинаю скачивание видео...");
-        CompletableFuture.runAsync(() -> {
-            try {
-                String fileName = downloadContent(chatId, url, "video");
-                if (fileName != null) {
-                    sendFile(chatId, fileName, "📹 Ваше видео готово!");
-                    File f = new File(fileName);
-                    if (f.exists() && f.length() <= 50L * 1024 * 1024) {
-                        deleteFile(fileName);
+    private void downloadAudio(Long chatId, CallbackTokenStore.Entry link, String fmt) {
+        requestDownload(chatId, link.ref, link.url(), MediaFormat.audio(fmt));
+    }
+
+    /**
+     * Одинаковые одновременные запросы (ID ролика + формат) объединяются в одну загрузку:
+     * её выполняет первый запрос, остальные получают тот же файл.
+     */
+    private void requestDownload(Long chatId, VideoRef ref, String url, MediaFormat format) {
+        speculativePrefetcher.recordChoice(format);
+        requestDownload(chatId, ref, url, format, 1);
+    }
+
+    private void requestDownload(Long chatId, VideoRef ref, String url, MediaFormat format, int attempt) {
+        requestDownload(chatId, ref, url, format, attempt, null);
+    }
+
+    /**
+     * @param batch пакет, к которому относится задача, или null. Задачи пакета не уходят
+     *              в общую очередь: окно пакета ведёт узел, где его запустили
+     */
+    private void requestDownload(Long chatId, VideoRef ref, String url, MediaFormat format, int attempt,
+                                 BatchDownloads.Batch batch) {
+        // Задача записывается в журнал сразу: если бот упадёт, пользователь не останется без ответа
+        JobJournal.Job job = jobJournal.queued(chatId, url, format, attempt);
+        if (ref == null) {
+            if (batch != null || !offload(chatId, null, url, format, job)) startDownload(chatId, null, url, format, job, batch);
+            return;
+        }
+        // Лимиты проверяются до загрузки; если метаданные ещё не пришли — ждём их недолго
+        metadataService.fetch(ref).copy()
+                .completeOnTimeout(null, METADATA_WAIT_SEC, TimeUnit.SECONDS)
+                .handle((meta, e) -> e == null ? meta : null)
+                .thenAccept(meta -> {
+                    if (batch != null && batch.cancelled()) { // пакет отменили, пока ждали метаданные
+                        jobJournal.finished(job);
+                        continueBatch(batch, false);
+                        return;
                     }
-                } else {
-                    sendMessage(chatId, "❌ Не удалось скачать видео.");
-                }
-            } catch (Exception e) {
-                sendMessage(chatId, "�� Ошибка при скачивании видео.");
-                e.printStackTrace();
-            }
+                    String reason = metadataService.rejectReason(meta, format);
+                    if (reason != null) {
+                        metrics.increment("limits.rejected");
+                        jobJournal.finished(job);
+                        sendMessage(chatId, batch == null ? reason : reason + "\n" + url);
+                        if (batch != null) continueBatch(batch, false);
+                        return;
+                    }
+                    if (batch != null || !offload(chatId, ref, url, format, job)) {
+                        startDownload(chatId, ref, url, format, job, batch);
+                    }
+                });
+    }
+
+    /**
+     * Все слоты этого узла заняты — задача уходит в общую очередь, и её возьмёт первый свободный узел.
+     * Файлы, которые уже качаются здесь или отправляются по file_id, остаются на месте.
+     */
+    private boolean offload(Long chatId, VideoRef ref, String url, MediaFormat format, JobJournal.Job job) {
+        if (!sharedJobs.shouldOffload() || inFlightDownloads.contains(flightKey(ref, url, format))
+                || fileIdCache.contains(ref, format)) {
+            return false;
+        }
+        if (!sharedJobs.offer(new SharedJobQueue.Job(chatId, url, format, job.attempt))) {
+            return false; // хранилище не ответило — задача остаётся в локальной очереди
+        }
+        jobJournal.finished(job); // дальше задачу ведёт журнал узла, который её заберёт
+        sendMessage(chatId, "⏳ Все загрузчики заняты — задачу возьмёт первый освободившийся узел.");
+        return true;
+    }
+
+    private static String flightKey(VideoRef ref, String url, MediaFormat format) {
+        return ref != null ? ref.key(format) : format.code + "|" + url;
+    }
+
+    private void startDownload(Long chatId, VideoRef ref, String url, MediaFormat format, JobJournal.Job journalJob) {
+        startDownload(chatId, ref, url, format, journalJob, null);
+    }
+
+    private void startDownload(Long chatId, VideoRef ref, String url, MediaFormat format, JobJournal.Job journalJob,
+                               BatchDownloads.Batch batch) {
+        String key = flightKey(ref, url, format);
+        ProgressReporter.Status status = batch == null ? progressReporter.open(chatId) : null;
+        InFlightDownloads.Listener listener = batch == null ? chatListener(chatId, status) : batchListener(batch);
+        jobsByListener.put(listener, journalJob); // до join: загрузка может завершиться раньше, чем он вернётся
+        if (batch != null) batchByListener.put(listener, batch);
+        // задачи пакета могут занять столько слотов чата, сколько позволяет его окно
+        int chatLimit = batch == null ? 0 : batchDownloads.parallel();
+        AtomicReference<DownloadScheduler.Job> scheduled = new AtomicReference<>();
+        InFlightDownloads.Waiter waiter = inFlightDownloads.join(key, chatId, listener, flight -> {
+            DownloadScheduler.Job job = downloadScheduler.submit(chatId, format.code,
+                    () -> runFlight(flight, ref, format, url), chatLimit);
+            flight.onCancel(() -> downloadScheduler.cancel(job));
+            scheduled.set(job);
         });
+        // Спекулятивная загрузка этого формата переходит к пользователю
+        boolean claimed = ref != null && speculativePrefetcher.claim(key);
+        if (batch != null) {
+            if (!batchDownloads.started(batch, waiter.id)) { // /cancel пришёл между проверкой и запуском
+                InFlightDownloads.Waiter w = inFlightDownloads.cancel(waiter.id, chatId);
+                if (w != null) confirmCancelled(w);
+            }
+            return;
+        }
+        status.cancelButton(CANCEL_CALLBACK + waiter.id);
+        DownloadScheduler.Job job = scheduled.get();
+        if (job != null && job.position() > 0) {
+            // позиция — первый текст статуса: кнопка отмены видна, пока задача ждёт в очереди
+            status.update("⏳ Все слоты заняты. Ваша позиция в очереди: " + job.position());
+        }
+        if (!waiter.leader && !claimed) {
+            sendMessage(chatId, "🔁 Этот файл уже скачивается по другому запросу — пришлю, как только он будет готов.");
+        }
     }
 
-    private void downloadAudio(Long chatId, String url, String fmt) {
-        sendMessage(chatId, "⏬ Аудио — начинаю...");
-        CompletableFuture.runAsync(() -> {
+    private void runFlight(InFlightDownloads.Flight flight, VideoRef ref, MediaFormat format, String url) {
+        String file = null;
+        boolean attempted = false;
+        Path workDir = null;
+        for (InFlightDownloads.Waiter w : flight.waiters()) {
+            jobJournal.stage(jobsByListener.get(w.listener()), JobJournal.Stage.RUNNING);
+        }
+        try {
+            workDir = jobWorkspaces.create();
+            // при сохранённом file_id файл, скорее всего, вообще не понадобится
+            if (!fileIdCache.contains(ref, format)) {
+                attempted = true;
+                file = produce(flight, workDir, ref, format, url);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            attempted = true;
+        }
+        List<InFlightDownloads.Waiter> waiters = inFlightDownloads.complete(flight);
+        speculativePrefetcher.finished(flight, file, workDir);
+        String caption = format == MediaFormat.VIDEO_720 ? "📹 Ваше видео готово!" : "🎵 Аудио готово!";
+        for (InFlightDownloads.Waiter w : waiters) {
+            if (speculativePrefetcher.isSpeculative(w)) continue;
+            JobJournal.Job job = jobsByListener.remove(w.listener());
+            jobJournal.stage(job, JobJournal.Stage.SENDING);
+            // у задач пакета к ошибке добавляется ссылка, иначе непонятно, какой ролик не скачался
+            BatchDownloads.Batch batch = batchByListener.get(w.listener());
+            String suffix = batch != null ? "\n" + url : "";
+            boolean delivered = false;
             try {
-                String downloaded = downloadBestAudio(chatId, url);
-                if (downloaded == null) return;
-                sendFile(chatId, downloaded, "🎵 Аудио готово!");
-                File f = new File(downloaded);
-                if (f.exists() && f.length() <= 50L * 1024 * 1024) {
-                    deleteFile(downloaded);
+                if (sendCachedFileId(w.chatId, ref, format, caption)) {
+                    delivered = true;
+                    continue;
+                }
+                if (file == null && !attempted) { // file_id отвергнут — качаем, отмена работает как обычно
+                    attempted = true;
+                    InFlightDownloads.Waiter retry = inFlightDownloads.retry(w);
+                    try {
+                        file = produce(retry.flight(), workDir, ref, format, url);
+                    } finally {
+                        inFlightDownloads.complete(retry.flight());
+                    }
+                    if (retry.flight().isCancelled()) { // отмену пользователю уже подтвердили
+                        attempted = false; // следующий ожидающий скачает сам
+                        continue;
+                    }
                 }
+                if (file == null) {
+                    sendMessage(w.chatId, (format == MediaFormat.VIDEO_720
+                            ? "❌ Не удалось скачать видео." : "❌ Не удалось скачать аудио.") + suffix);
+                    continue;
+                }
+                w.listener().progress("✅ Скачано, отправляю файл...", true);
+                String hostedId = sendFile(w.chatId, file, caption, ref, format);
+                if (hostedId != null && batch != null) batchDownloads.hosted(batch, hostedId);
+                delivered = true;
             } catch (Exception e) {
-                sendMessage(chatId, "❌ Ошибка при скачивании аудио.");
+                sendMessage(w.chatId, (format == MediaFormat.VIDEO_720
+                        ? "❌ Ошибка при скачивании видео." : "❌ Ошибка при скачивании аудио.") + suffix);
                 e.printStackTrace();
+            } finally {
+                jobJournal.finished(job);
+                batchChildDone(w.listener(), delivered);
             }
-        });
+        }
+        // Результат уже в кэше (там своё имя файла) или у HostedFileService — папку задачи удаляем целиком
+        jobWorkspaces.release(workDir);
     }
 
-    // --- ffmpeg detection helpers ---
-    private String resolveFfmpegPath(String configured) {
-        if (configured != null && !configured.isBlank()) {
-            if (fileExecutable(configured) || versionOk(configured)) return configured;
+    /**
+     * Файл из кэша или свежая загрузка через yt-dlp. null — не удалось (пользователи уже оповещены).
+     */
+    private String produce(DownloadContext ctx, Path workDir, VideoRef ref, MediaFormat format, String url) {
+        if (ctx.isCancelled()) return null;
+        String cached = cachedPath(ref, format, workDir);
+        if (cached != null) return cached;
+        if (format == MediaFormat.VIDEO_720) {
+            ctx.progress("⏬ Начинаю скачивание видео...");
+            FormatSelector.Choice choice = selectVideoFormat(ref);
+            String file = downloadContent(ctx, workDir, url, "video", choice.spec);
+            recordFormatOutcome(choice, file);
+            return cacheResult(ref, format, file);
         }
-        String env = System.getenv("FFMPEG_PATH");
-        if (env != null && !env.isBlank()) {
-            if (fileExecutable(env) || versionOk(env)) return env;
+        ctx.progress("⏬ Аудио — начинаю...");
+        String audioFormat = audioFormatFor(ref, format);
+        // Потоковый конвейер всегда кодирует; если есть дорожка без перекодирования — качаем её
+        if (format == MediaFormat.MP3_128 && audioFormat.equals("bestaudio")
+                && mp3Streaming && isYtDlpAvailable() && isFfmpegAvailable()) {
+            try {
+                Path mp3 = mp3StreamPipeline.run(ctx, toolRegistry.ytDlpPath(), toolRegistry.ffmpeg().path, url, workDir.resolve("media.mp3"));
+                return cacheResult(ref, format, mp3.toString());
+            } catch (Mp3StreamPipeline.PipelineException e) {
+                if (!e.fallback) {
+                    ctx.notify(e.getMessage());
+                    return null;
+                }
+                metrics.increment("mp3.pipe.fallback"); // дальше — обычный путь: скачать, затем ffmpeg
+            }
         }
-        // common locations
-        List<String> candidates = List.of(
-                "ffmpeg",
-                "/opt/homebrew/bin/ffmpeg",
-                "/usr/local/bin/ffmpeg",
-                "/usr/bin/ffmpeg"
-        );
-        for (String c : candidates) {
-            if (fileExecutable(c) || versionOk(c)) return c;
+        String downloaded = downloadBestAudio(ctx, workDir, url, audioFormat);
+        if (downloaded == null) return null;
+        if (format == MediaFormat.MP3_128) {
+            String mp3 = ensureMp3(ctx, downloaded);
+            if (!mp3.equals(downloaded)) deleteFile(downloaded);
+            downloaded = mp3;
         }
-        return null;
+        return cacheResult(ref, format, downloaded);
     }
 
-    private boolean fileExecutable(String pathStr) {
-        try {
-            Path p = Path.of(pathStr);
-            return java.nio.file.Files.exists(p) && java.nio.file.Files.isExecutable(p);
-        } catch (Exception e) {
-            return false;
+    /**
+     * Ошибки и предупреждения — отдельными сообщениями, прогресс — в одно редактируемое сообщение
+     */
+    private InFlightDownloads.Listener chatListener(Long chatId, ProgressReporter.Status status) {
+        return new InFlightDownloads.Listener() {
+            @Override
+            public void message(String text) {
+                status.supersede(); // неотправленные правки статуса после ошибки не нужны
+                sendMessage(chatId, text);
+            }
+
+            @Override
+            public void progress(String text, boolean last) {
+                if (last) {
+                    status.finish(text);
+                } else {
+                    status.update(text);
+                }
+            }
+        };
+    }
+
+    // Формат под лимит прямой отправки по метаданным, полученным при показе кнопок
+    private FormatSelector.Choice selectVideoFormat(VideoRef ref) {
+        VideoMetadata meta = ref == null ? null : metadataService.cached(ref);
+        FormatSelector.Choice choice = FormatSelector.select(meta, 720, TELEGRAM_FILE_LIMIT, isFfmpegAvailable());
+        if (meta == null) {
+            metrics.increment("format.no_metadata");
+        } else if (choice.fits) {
+            metrics.increment("format.selected." + choice.height + "p");
+            if (choice.avoidsHosting) metrics.increment("format.hosting_avoided");
+        } else {
+            metrics.increment("format.no_fit");
         }
+        return choice;
+    }
+
+    // Оценка промахнулась — файл всё равно уйдёт на хостинг
+    private void recordFormatOutcome(FormatSelector.Choice choice, String file) {
+        if (file == null || !choice.fits) return;
+        if (new File(file).length() > TELEGRAM_FILE_LIMIT) metrics.increment("format.estimate_missed");
+    }
+
+    // Ссылка на файл кэша в папке задачи: вытеснение из кэша во время отправки её не затронет
+    private String cachedPath(VideoRef ref, MediaFormat format, Path workDir) {
+        Path p = downloadCache.checkout(ref, format, workDir);
+        return p == null ? null : p.toString();
     }
 
-    private boolean versionOk(String cmd) {
+    // Кладёт результат в общий кэш. Файлы больше лимита Telegram не кэшируем: они сразу
+    // регистрируются в HostedFileService — переживают удаление папки задачи и не остаются
+    // в каталоге раздачи без учёта, если до отправки ссылки дело не дойдёт.
+    private String cacheResult(VideoRef ref, MediaFormat format, String fileName) {
+        if (fileName == null) return null;
         try {
-            Process p = new ProcessBuilder(cmd, "-version").start();
-            boolean ok = p.waitFor(4, java.util.concurrent.TimeUnit.SECONDS) && p.exitValue() == 0;
-            if (!ok) p.destroyForcibly();
-            return ok;
+            Path p = Paths.get(fileName);
+            if (Files.size(p) > TELEGRAM_FILE_LIMIT) return hostedFileService.host(p, hostedName(ref, p)).path.toString();
+            if (ref == null) return fileName;
+            return downloadCache.share(ref, format, p).toString();
         } catch (Exception e) {
-            return false;
+            e.printStackTrace();
+            return fileName;
         }
     }
 
+    // Имя для скачивания по ссылке и внутри ZIP: название ролика, без метаданных — его ID
+    private String hostedName(VideoRef ref, Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String ext = dot > 0 ? name.substring(dot + 1) : "";
+        if (ref == null) return HostedFileService.downloadName(null, ext);
+        VideoMetadata meta = metadataService.cached(ref);
+        String title = meta != null && !meta.title.isBlank() ? meta.title : ref.key();
+        return HostedFileService.downloadName(title, ext);
+    }
+
+    // --- внешние утилиты: состояние берётся из ToolRegistry, процессы здесь не запускаются ---
     private boolean isFfmpegAvailable() {
-        if (ffmpegPath != null) return true;
-        ffmpegPath = resolveFfmpegPath(null);
-        if (ffmpegPath != null && !ffmpegReported) {
-            ffmpegReported = true; // можно при первом обнаружении вывести отладку; отключено чтобы не шуметь
-        }
-        return ffmpegPath != null;
+        boolean ok = toolRegistry.ffmpeg().available;
+        if (!ok) toolRegistry.reportFailure(ToolRegistry.FFMPEG); // вдруг уже установили
+        return ok;
     }
 
-    private String ensureMp3(Long chatId, String fileName) {
+    private boolean isYtDlpAvailable() {
+        boolean ok = toolRegistry.ytDlp().available;
+        if (!ok) toolRegistry.reportFailure(ToolRegistry.YT_DLP);
+        return ok;
+    }
+
+    private String ensureMp3(DownloadContext ctx, String fileName) {
         if (fileName.endsWith(".mp3")) return fileName;
         if (!isFfmpegAvailable()) {
-            sendMessage(chatId, "⚠️ ffmpeg недоступен, отправляю исходный формат.");
+            ctx.notify("⚠️ ffmpeg недоступен, отправляю исходный формат.");
             return fileName;
         }
+        String base = fileName.replaceFirst("\\.[^.]+$", "");
         try {
-            String target = fileName.replaceFirst("\\.[^.]+$", "") + "_conv.mp3";
-            ProcessBuilder pb = new ProcessBuilder(
-                    ffmpegPath, "-y", "-i", fileName, "-vn", "-ac", "2", "-ar", "44100", "-b:a", "128k", target
-            );
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) { while (br.readLine() != null) {} }
-            p.waitFor();
-            if (p.exitValue() == 0 && Files.exists(Paths.get(target))) {
+            // Сначала смотрим дорожку: MP3 (и AAC, если разрешено) отдаём без перекодирования
+            CodecDecision.Probe probe = transcodePool.probe(toolRegistry.ffmpeg().path, Paths.get(fileName));
+            CodecDecision decision = CodecDecision.decide(probe, fileName, remuxAac);
+            if (decision.action == CodecDecision.Action.KEEP) {
+                transcodePool.recordAvoided(decision.action, probe.durationMillis);
+                return fileName;
+            }
+            if (decision.action == CodecDecision.Action.COPY) {
+                Path copy = Paths.get(base + "_copy." + decision.ext);
+                TranscodePool.Result r = transcodePool.copy(ctx, toolRegistry.ffmpeg().path,
+                        List.of("-y", "-i", fileName, "-vn", "-c:a", "copy"), copy);
+                if (r.exitCode == 0 && Files.exists(copy)) {
+                    transcodePool.recordAvoided(decision.action, probe.durationMillis);
+                    return copy.toString();
+                }
+                Files.deleteIfExists(copy); // не вышло — кодируем как обычно
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        try {
+            String target = base + "_conv.mp3";
+            // ffmpeg запускается в пуле перекодирования: не больше процессов, чем ядер
+            TranscodePool.Result r = transcodePool.run(ctx, toolRegistry.ffmpeg().path,
+                    List.of("-y", "-i", fileName, "-vn", "-ac", "2", "-ar", "44100", "-b:a", "128k"), Paths.get(target));
+            if (r.exitCode == 0 && Files.exists(Paths.get(target))) {
                 return target;
             } else {
-                sendMessage(chatId, "⚠️ Не удалось конвертировать в mp3 (ffmpeg ошибка). Отправляю исходный файл.");
+                ctx.notify("⚠️ Не удалось конвертировать в mp3 (ffmpeg ошибка). Отправляю исходный файл.");
                 return fileName;
             }
         } catch (Exception e) {
-            sendMessage(chatId, "⚠️ Ошибка конвертации в mp3, отправляю исходный файл.");
+            toolRegistry.reportFailure(ToolRegistry.FFMPEG);
+            ctx.notify("⚠️ Ошибка конвертации в mp3, отправляю исходный файл.");
             return fileName;
         }
     }
 
-    private String downloadContent(Long chatId, String url, String type) {
+    private String downloadContent(DownloadContext ctx, Path workDir, String url, String type, String videoFormat) {
         try {
             if (!isYtDlpAvailable()) {
-                sendMessage(chatId, "⚠️ yt-dlp не установлен или недоступен.");
+                ctx.notify("⚠️ yt-dlp не установлен или недоступен.");
                 return null;
             }
             boolean needMp3 = "audio".equals(type);
             boolean ffmpegAvailable = !needMp3 || isFfmpegAvailable();
             if (needMp3 && !ffmpegAvailable) {
-                sendMessage(chatId, "⚠️ ffmpeg не найден — будет загружен исходный аудио-файл без конвертации.");
+                ctx.notify("⚠️ ffmpeg не найден — будет загружен исходный аудио-файл без конвертации.");
             }
 
-            String baseName = "download_" + System.currentTimeMillis();
-            String targetFile = baseName + ("video".equals(type) ? ".mp4" : ".mp3");
-
-            Set<String> before = snapshotFiles();
-            ProcessBuilder pb = new ProcessBuilder(buildCommandEnhanced(url, type, targetFile, ffmpegAvailable));
+            ProcessBuilder pb = new ProcessBuilder(buildCommandEnhanced(url, type, videoFormat, workDir, ffmpegAvailable));
             pb.redirectErrorStream(true);
             Process process = pb.start();
-            StringBuilder log = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    log.append(line).append('\n');
-                }
-            }
+            ctx.attach(process);
+            LogTail log = new LogTail(LOG_TAIL_LINES);
+            String reported = readYtDlpOutput(ctx, process, log);
             boolean finished = process.waitFor(Duration.ofMinutes(7).toMillis(), java.util.concurrent.TimeUnit.MILLISECONDS);
             if (!finished) {
-                process.destroyForcibly();
-                sendMessage(chatId, "⏱ Превышено время ожидания.");
+                ProcessTrees.kill(process, metrics); // вместе с ffmpeg и загрузчиками фрагментов
+                ctx.notify("⏱ Превышено время ожидания.");
                 return null;
             }
             int exit = process.exitValue();
             if (exit != 0) {
-                String logStr = log.toString();
-                if (logStr.toLowerCase().contains("ffmpeg")) {
-                    sendMessage(chatId, "⚠️ Требуется ffmpeg для конвертации в mp3: установите ffmpeg.");
+                System.err.println("yt-dlp exit " + exit + ":\n" + log.text());
+                if (log.containsIgnoreCase("ffmpeg")) {
+                    ctx.notify("⚠️ Требуется ffmpeg для конвертации в mp3: установите ffmpeg.");
                 } else {
-                    sendMessage(chatId, "❌ Ошибка скачивания (код " + exit + ").");
+                    ctx.notify("❌ Ошибка скачивания (код " + exit + ").");
                 }
                 return null;
             }
-            // Прямой файл (для видео или mp3 после конвертации)
-            if (Files.exists(Paths.get(targetFile))) {
-                // если аудио без ffmpeg: имя будет baseName.<origExt>; targetFile (mp3) не существует — обработка ниже
-            }
-            Set<String> after = snapshotFiles();
-            after.removeAll(before);
-            String chosen = after.stream().filter(f -> f.startsWith(baseName + ".")).findFirst().orElse(null);
+            Path chosen = resolveOutput(workDir, reported);
             if (chosen != null) {
-                if (needMp3 && ffmpegAvailable && !chosen.endsWith(".mp3")) {
-                    sendMessage(chatId, "⚠️ Получен файл без конвертации в mp3.");
+                if (needMp3 && ffmpegAvailable && !chosen.toString().endsWith(".mp3")) {
+                    ctx.notify("⚠️ Получен файл без конвертации в mp3.");
                 }
-                return chosen;
+                return chosen.toString();
             }
-            sendMessage(chatId, "❌ Файл не найден после скачивания.");
+            ctx.notify("❌ Файл не найден после скачивания.");
         } catch (Exception e) {
             e.printStackTrace();
-            sendMessage(chatId, "❌ Внутренняя ошибка при скачивании.");
+            toolRegistry.reportFailure(ToolRegistry.YT_DLP);
+            ctx.notify("❌ Внутренняя ошибка при скачивании.");
         }
         return null;
     }
 
-    private boolean isYtDlpAvailable() {
-        try {
-            Process p = new ProcessBuilder(ytDlpPath, "--version").start();
-            boolean finished = p.waitFor(3, java.util.concurrent.TimeUnit.SECONDS);
-            if (!finished) {
-                p.destroyForcibly();
-                return false;
+    /**
+     * Читает вывод yt-dlp: прогресс — в статус, итоговый путь — в результат, остальное — в хвост лога
+     */
+    private String readYtDlpOutput(DownloadContext ctx, Process process, LogTail log) throws java.io.IOException {
+        String reported = null;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(OUTPUT_MARKER)) {
+                    reported = line.substring(OUTPUT_MARKER.length()).trim();
+                    continue;
+                }
+                YtDlpProgress progress = YtDlpProgress.parse(line);
+                if (progress != null) {
+                    ctx.progress(progress.describe());
+                } else {
+                    log.add(line);
+                }
             }
-            return p.exitValue() == 0;
-        } catch (Exception e) {
-            return false;
         }
+        return reported;
     }
 
-    private Set<String> snapshotFiles() {
-        try (var stream = Files.list(Paths.get("."))) {
-            Set<String> set = new HashSet<>();
-            stream.filter(p -> !Files.isDirectory(p)).forEach(p -> set.add(p.getFileName().toString()));
-            return set;
-        } catch (Exception e) {
-            return new HashSet<>();
+    // Путь, который сообщил yt-dlp (--print after_move:filepath); если его нет — файл из папки задачи
+    private Path resolveOutput(Path workDir, String reported) {
+        if (reported != null && !reported.isBlank()) {
+            Path p = Paths.get(reported);
+            if (Files.isRegularFile(p)) return p;
         }
+        return jobWorkspaces.findOutput(workDir);
     }
 
-    private java.util.List<String> buildCommandEnhanced(String url, String type, String targetFile, boolean ffmpegAvailable) {
+    private java.util.List<String> buildCommandEnhanced(String url, String type, String videoFormat, Path workDir, boolean ffmpegAvailable) {
         java.util.List<String> cmd = new java.util.ArrayList<>();
-        cmd.add(ytDlpPath);
+        cmd.add(toolRegistry.ytDlpPath());
+        String pattern = workDir.resolve("media.%(ext)s").toString();
+        // --print включает тихий режим, поэтому прогресс возвращаем явно, построчно
+        cmd.addAll(java.util.List.of("--no-playlist", "--progress", "--newline",
+                "--print", "after_move:" + OUTPUT_MARKER + "%(filepath)s"));
         if ("video".equals(type)) {
-            cmd.addAll(java.util.List.of("-f", "best[height<=720]", "-o", targetFile, url));
+            cmd.addAll(java.util.List.of("-f", videoFormat, "-o", pattern));
+            if (videoFormat.contains("+")) cmd.addAll(java.util.List.of("--merge-output-format", "mp4"));
+            cmd.add(url);
         } else { // audio
-            // targetFile = baseName + ".mp3" (если ffmpegAvailable) иначе baseName + ".mp3" но потом будет другой ext
-            String base = targetFile.endsWith(".mp3") ? targetFile.substring(0, targetFile.length() - 4) : targetFile;
             if (ffmpegAvailable) {
-                cmd.addAll(java.util.List.of("-f", "bestaudio", "-x", "--audio-format", "mp3", "-o", base + ".%(ext)s", url));
+                cmd.addAll(java.util.List.of("-f", "bestaudio", "-x", "--audio-format", "mp3", "-o", pattern, url));
             } else {
-                // без ffmpeg: просто bestaudio в формате исходника, но имя всё равно baseName.ext чтобы обнаружить
-                cmd.addAll(java.util.List.of("-f", "bestaudio", "-o", base + ".%(ext)s", url));
+                // без ffmpeg: просто bestaudio в формате исходника
+                cmd.addAll(java.util.List.of("-f", "bestaudio", "-o", pattern, url));
             }
         }
         return cmd;
     }
 
-    private void sendFile(Long chatId, String fileName, String caption) {
+    /**
+     * Возвращает ID временной ссылки, если файл больше лимита Telegram и отдан ею, иначе null
+     */
+    private String sendFile(Long chatId, String fileName, String caption, VideoRef ref, MediaFormat format) {
         try {
             File file = new File(fileName);
             long fileSize = file.length();
-            if (fileSize > 50 * 1024 * 1024) { // 50MB limit -> выдаём локальную ссылку
+            if (fileSize > TELEGRAM_FILE_LIMIT) { // 50MB limit -> выдаём локальную ссылку
                 String id = hostedFileService.register(file);
                 String url = hostedFileService.buildUrl(id);
                 sendLinkMessage(chatId, "Файл >50МБ. Нажмите кнопку для скачивания (ссылка временная):", "⬇️ Скачать", url);
-                return;
+                return id;
             }
 
             SendDocument document = SendDocument.builder()
@@ -451,22 +1053,67 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
                     .caption(caption)
                     .build();
 
-            telegramClient.execute(document);
+            Message sent = sender.execute(chatId, TelegramSender.Priority.FILE, c -> c.execute(document));
+            if (format != null) {
+                fileIdCache.put(ref, format, extractFileId(sent));
+            }
+        } catch (IOException e) {
+            sendMessage(chatId, "❌ Не удалось подготовить ссылку на файл.");
+            e.printStackTrace();
         } catch (TelegramApiException e) {
             sendMessage(chatId, "❌ Ошибка при отправке файла.");
             e.printStackTrace();
         }
+        return null;
+    }
+
+    /**
+     * Повторная отправка по сохранённому file_id — без диска и yt-dlp.
+     * Возвращает false, если file_id нет или Telegram его отверг.
+     */
+    private boolean sendCachedFileId(Long chatId, VideoRef ref, MediaFormat format, String caption) {
+        String fileId = fileIdCache.get(ref, format);
+        if (fileId == null) return false;
+        SendDocument document = SendDocument.builder()
+                .chatId(chatId.toString())
+                .document(new InputFile(fileId))
+                .caption(caption)
+                .build();
+        try {
+            sender.execute(chatId, TelegramSender.Priority.FILE, c -> c.execute(document));
+            return true;
+        } catch (TelegramApiRequestException e) {
+            // 400: устаревший или чужой file_id — забываем и качаем заново
+            if (e.getErrorCode() != null && e.getErrorCode() == 400) {
+                fileIdCache.invalidate(ref, format);
+            }
+            return false;
+        } catch (TelegramApiException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private String extractFileId(Message message) {
+        if (message == null) return null;
+        if (message.getDocument() != null) return message.getDocument().getFileId();
+        if (message.getAudio() != null) return message.getAudio().getFileId();
+        if (message.getVideo() != null) return message.getVideo().getFileId();
+        return null;
     }
 
     private void toggleLinkPreference(Long chatId) {
-        boolean current = LINK_PREFS.getOrDefault(chatId, true);
-        boolean next = !current;
-        LINK_PREFS.put(chatId, next);
+        boolean next = !showRawLink(chatId);
+        sharedStore.put(LINK_PREF_KEY + chatId, next ? "1" : "0", 0);
         sendMessage(chatId, next ? "Теперь ссылка будет дублироваться текстом." : "Теперь показываю только кнопку без текстовой ссылки.");
     }
 
+    private boolean showRawLink(Long chatId) {
+        return !"0".equals(sharedStore.get(LINK_PREF_KEY + chatId));
+    }
+
     private void sendLinkMessage(Long chatId, String text, String buttonText, String url) {
-        boolean showRaw = LINK_PREFS.getOrDefault(chatId, true);
+        boolean showRaw = showRawLink(chatId);
         if (!isValidButtonUrl(url)) {
             // Fallback: просто текстовая ссылка без inline-кнопки (иначе Telegram вернёт 400)
             String body = showRaw ? text + "\n" + url : text;
@@ -475,7 +1122,7 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
                     .text(body)
                     .disableWebPagePreview(true)
                     .build();
-            executeMessage(msg);
+            executeMessage(chatId, msg);
             return;
         }
         InlineKeyboardButton btn = InlineKeyboardButton.builder().text(buttonText).url(url).build();
@@ -490,7 +1137,7 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
                 .replyMarkup(markup)
                 .disableWebPagePreview(true)
                 .build();
-        executeMessage(message);
+        executeMessage(chatId, message);
     }
 
     private boolean isValidButtonUrl(String url) {
@@ -639,55 +1286,63 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
         return url.contains("youtube.com") || url.contains("youtu.be") || url.contains("tiktok.com");
     }
 
-    private String extractUrlFromCallback(String callbackData) {
-        int idx = callbackData.indexOf('_');
-        if (idx < 0 || idx == callbackData.length() - 1) return null;
-        String id = callbackData.substring(idx + 1);
-        return URL_CACHE.get(id);
-    }
-
     private void deleteFile(String fileName) {
         try {
-            Files.deleteIfExists(Paths.get(fileName));
+            Path p = Paths.get(fileName);
+            // файлами кэша и раздачи владеют они сами, удалят при вытеснении
+            if (downloadCache.owns(p) || hostedFileService.owns(p)) return;
+            Files.deleteIfExists(p);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private String downloadBestAudio(Long chatId, String url) {
+    // Для MP3 предпочитаем дорожку, которую можно отдать без кодирования: mp3, затем AAC
+    private String audioFormatFor(VideoRef ref, MediaFormat format) {
+        if (format != MediaFormat.MP3_128 || ref == null) return "bestaudio";
+        VideoMetadata meta = metadataService.cached(ref);
+        if (meta == null) return "bestaudio";
+        if (meta.hasAudioOnly("mp3")) return "bestaudio[acodec=mp3]/bestaudio";
+        if (remuxAac && meta.hasAudioOnly("mp4a")) return "bestaudio[acodec^=mp4a]/bestaudio";
+        return "bestaudio";
+    }
+
+    private String downloadBestAudio(DownloadContext ctx, Path workDir, String url, String audioFormat) {
         try {
             if (!isYtDlpAvailable()) {
-                sendMessage(chatId, "⚠️ yt-dlp недоступен.");
+                ctx.notify("⚠️ yt-dlp недоступен.");
                 return null;
             }
-            String baseName = "download_" + System.currentTimeMillis();
-            String pattern = baseName + ".%(ext)s";
-            Set<String> before = snapshotFiles();
-            ProcessBuilder pb = new ProcessBuilder(ytDlpPath, "-f", "bestaudio", "-o", pattern, url);
+            String pattern = workDir.resolve("media.%(ext)s").toString();
+            ProcessBuilder pb = new ProcessBuilder(toolRegistry.ytDlpPath(), "--no-playlist", "--progress", "--newline",
+                    "--print", "after_move:" + OUTPUT_MARKER + "%(filepath)s",
+                    "-f", audioFormat, "-o", pattern, url);
             pb.redirectErrorStream(true);
             Process p = pb.start();
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-                while (br.readLine() != null) {}
-            }
+            ctx.attach(p);
+            LogTail log = new LogTail(LOG_TAIL_LINES);
+            String reported = readYtDlpOutput(ctx, p, log);
             boolean finished = p.waitFor(6, java.util.concurrent.TimeUnit.MINUTES);
             if (!finished) {
-                p.destroyForcibly();
-                sendMessage(chatId, "⏱ Таймаут скачивания аудио.");
+                ProcessTrees.kill(p, metrics);
+                ctx.notify("⏱ Таймаут скачивания аудио.");
                 return null;
             }
             if (p.exitValue() != 0) {
-                sendMessage(chatId, "❌ Ошибка скачивания аудио (код " + p.exitValue() + ").");
+                System.err.println("yt-dlp exit " + p.exitValue() + ":\n" + log.text());
+                ctx.notify("❌ Ошибка скачивания аудио (код " + p.exitValue() + ").");
                 return null;
             }
-            Set<String> after = snapshotFiles();
-            after.removeAll(before);
-            return after.stream().filter(f -> f.startsWith(baseName + ".")).findFirst().orElseGet(() -> {
-                sendMessage(chatId, "❌ Аудио файл не найден.");
+            Path out = resolveOutput(workDir, reported);
+            if (out == null) {
+                ctx.notify("❌ Аудио файл не найден.");
                 return null;
-            });
+            }
+            return out.toString();
         } catch (Exception e) {
             e.printStackTrace();
-            sendMessage(chatId, "❌ Внутренняя ошибка при скачивании аудио.");
+            toolRegistry.reportFailure(ToolRegistry.YT_DLP);
+            ctx.notify("❌ Внутренняя ошибка при скачивании аудио.");
             return null;
         }
     }
@@ -700,18 +1355,18 @@ public class UpdateConsumer implements LongPollingSingleThreadUpdateConsumer {
                 .chatId(chatId.toString())
                 .text(text)
                 .build();
-        executeMessage(message);
+        executeMessage(chatId, message);
     }
 
     /**
-     * Выполнение отправки сообщения через Telegram API
+     * Отправка сообщения через очередь {@link TelegramSender}, не дожидаясь результата
      */
-    private void executeMessage(SendMessage message) {
-        try {
-            telegramClient.execute(message);
-        } catch (TelegramApiException e) {
-            e.printStackTrace();
-        }
+    private void executeMessage(Long chatId, SendMessage message) {
+        sender.submit(chatId, TelegramSender.Priority.REPLY, c -> c.execute(message))
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    return null;
+                });
     }
 
     private boolean isOk0x0(String url) {
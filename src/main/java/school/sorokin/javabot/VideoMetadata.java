@@ -0,0 +1,124 @@
+package school.sorokin.javabot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Метаданные ролика из {@code yt-dlp -J}: название, длительность и форматы.
+ * Размеры — оценки: yt-dlp знает точный размер не для всех форматов.
+ */
+public class VideoMetadata {
+
+    public static class FormatInfo {
+        public final String formatId;
+        public final String ext;
+        public final String acodec; // "none" — без звука
+        public final int height; // 0 — неизвестно или аудио
+        public final boolean hasVideo;
+        public final boolean hasAudio;
+        public final long size; // байты, -1 — неизвестно
+        public final double tbr; // кбит/с, 0 — неизвестно
+
+        FormatInfo(String formatId, String ext, String acodec, int height, boolean hasVideo, boolean hasAudio, long size, double tbr) {
+            this.formatId = formatId;
+            this.ext = ext;
+            this.acodec = acodec;
+            this.height = height;
+            this.hasVideo = hasVideo;
+            this.hasAudio = hasAudio;
+            this.size = size;
+            this.tbr = tbr;
+        }
+    }
+
+    public static final int MP3_KBPS = 128;
+
+    public final String id;
+    public final String title;
+    public final long durationSec; // -1 — неизвестно (например, прямой эфир)
+    public final List<FormatInfo> formats; // в порядке yt-dlp: от худшего к лучшему
+
+    VideoMetadata(String id, String title, long durationSec, List<FormatInfo> formats) {
+        this.id = id;
+        this.title = title;
+        this.durationSec = durationSec;
+        this.formats = Collections.unmodifiableList(formats);
+    }
+
+    public static VideoMetadata from(JsonNode root) {
+        List<FormatInfo> formats = new ArrayList<>();
+        long duration = root.path("duration").isNumber() ? Math.round(root.path("duration").asDouble()) : -1;
+        for (JsonNode f : root.path("formats")) {
+            String vcodec = f.path("vcodec").asText("none");
+            String acodec = f.path("acodec").asText("none");
+            long size = f.path("filesize").asLong(-1);
+            if (size <= 0) size = f.path("filesize_approx").asLong(-1);
+            double tbr = f.path("tbr").asDouble(0);
+            if (size <= 0 && tbr > 0 && duration > 0) size = (long) (tbr * 1000 / 8 * duration);
+            formats.add(new FormatInfo(f.path("format_id").asText(""), f.path("ext").asText(""), acodec,
+                    f.path("height").asInt(0), !"none".equals(vcodec), !"none".equals(acodec),
+                    size > 0 ? size : -1, tbr));
+        }
+        return new VideoMetadata(root.path("id").asText(""), root.path("title").asText(""), duration, formats);
+    }
+
+    /**
+     * Оценка размера результата в байтах или -1. Учитывает те же форматы, что и загрузчик:
+     * видео — {@code best[height<=720]}, аудио — {@code bestaudio}, MP3 — по битрейту.
+     */
+    public long estimate(MediaFormat format) {
+        if (format == MediaFormat.MP3_128) {
+            return durationSec > 0 ? durationSec * MP3_KBPS * 1000 / 8 : -1;
+        }
+        FormatInfo f = format == MediaFormat.VIDEO_720 ? bestProgressive(720) : bestAudio();
+        return f == null ? -1 : f.size;
+    }
+
+    FormatInfo bestProgressive(int maxHeight) {
+        FormatInfo best = null;
+        for (FormatInfo f : formats) {
+            if (f.hasVideo && f.hasAudio && f.height <= maxHeight) best = f;
+        }
+        return best;
+    }
+
+    FormatInfo bestAudio() {
+        FormatInfo best = null;
+        for (FormatInfo f : formats) {
+            if (!f.hasVideo && f.hasAudio) best = f;
+        }
+        return best;
+    }
+
+    /**
+     * Есть ли отдельная аудиодорожка с кодеком, который Telegram проигрывает без перекодирования
+     */
+    public boolean hasAudioOnly(String codecPrefix) {
+        for (FormatInfo f : formats) {
+            if (!f.hasVideo && f.hasAudio && f.acodec.startsWith(codecPrefix)) return true;
+        }
+        return false;
+    }
+
+    public String durationText() {
+        return durationSec < 0 ? "?" : formatDuration(durationSec);
+    }
+
+    static String formatDuration(long sec) {
+        long h = sec / 3600;
+        long m = sec % 3600 / 60;
+        long s = sec % 60;
+        return h > 0 ? String.format("%d:%02d:%02d", h, m, s) : String.format("%d:%02d", m, s);
+    }
+
+    // "~35 МБ", "~1.2 ГБ"
+    static String humanSize(long bytes) {
+        double mb = bytes / (1024.0 * 1024.0);
+        if (mb >= 1024) return String.format("~%.1f ГБ", mb / 1024);
+        if (mb >= 10) return String.format("~%.0f МБ", mb);
+        return String.format("~%.1f МБ", mb);
+    }
+}
@@ -0,0 +1,112 @@
+package school.sorokin.javabot;
+
+import java.net.URI;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Нормализованная ссылка на ролик: платформа + ID.
+ * Разные формы одной ссылки (youtu.be, watch?v=, shorts, m.tiktok и т.п.)
+ * дают один и тот же {@link #key()}.
+ */
+public final class VideoRef {
+
+    private static final Pattern YT_ID = Pattern.compile("[A-Za-z0-9_-]{11}");
+    private static final Pattern YT_PATH = Pattern.compile("^/(?:shorts|embed|live|v)/([A-Za-z0-9_-]{11})");
+    private static final Pattern TIKTOK_VIDEO = Pattern.compile("/(?:video|photo)/(\\d+)");
+    private static final Pattern TIKTOK_SHORT = Pattern.compile("^/(?:t/)?([A-Za-z0-9]+)/?$");
+
+    public final String platform; // yt | tt | tts (короткая ссылка TikTok)
+    public final String id;
+    public final String url;
+
+    private VideoRef(String platform, String id, String url) {
+        this.platform = platform;
+        this.id = id;
+        this.url = url;
+    }
+
+    /**
+     * Разбирает ссылку. Возвращает null, если ID извлечь не удалось.
+     */
+    public static VideoRef parse(String url) {
+        if (url == null) return null;
+        String trimmed = url.trim();
+        URI uri;
+        try {
+            uri = URI.create(trimmed.contains("://") ? trimmed : "https://" + trimmed);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        String host = uri.getHost();
+        if (host == null) return null;
+        host = host.toLowerCase();
+        if (host.startsWith("www.")) host = host.substring(4);
+        String path = uri.getPath() == null ? "" : uri.getPath();
+
+        if (host.equals("youtu.be")) {
+            String id = path.startsWith("/") ? path.substring(1) : path;
+            int slash = id.indexOf('/');
+            if (slash >= 0) id = id.substring(0, slash);
+            return YT_ID.matcher(id).matches() ? new VideoRef("yt", id, trimmed) : null;
+        }
+        if (isDomain(host, "youtube.com") || isDomain(host, "youtube-nocookie.com")) {
+            String v = queryParam(uri.getRawQuery(), "v");
+            if (v != null && YT_ID.matcher(v).matches()) return new VideoRef("yt", v, trimmed);
+            Matcher m = YT_PATH.matcher(path);
+            return m.find() ? new VideoRef("yt", m.group(1), trimmed) : null;
+        }
+        if (isDomain(host, "tiktok.com")) {
+            Matcher m = TIKTOK_VIDEO.matcher(path);
+            if (m.find()) return new VideoRef("tt", m.group(1), trimmed);
+            if (host.startsWith("vm.") || host.startsWith("vt.") || path.startsWith("/t/")) {
+                Matcher s = TIKTOK_SHORT.matcher(path);
+                if (s.find()) return new VideoRef("tts", s.group(1), trimmed);
+            }
+        }
+        return null;
+    }
+
+    // Сам домен или его поддомен: notyoutube.com не подходит
+    private static boolean isDomain(String host, String domain) {
+        return host.equals(domain) || host.endsWith("." + domain);
+    }
+
+    private static String queryParam(String rawQuery, String name) {
+        if (rawQuery == null) return null;
+        for (String part : rawQuery.split("&")) {
+            int eq = part.indexOf('=');
+            if (eq > 0 && part.substring(0, eq).equals(name)) return part.substring(eq + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Ключ, безопасный для имени файла: платформа_ID
+     */
+    public String key() {
+        return platform + "_" + id;
+    }
+
+    public String key(MediaFormat format) {
+        return key() + "__" + format.code;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof VideoRef other)) return false;
+        return platform.equals(other.platform) && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(platform, id);
+    }
+
+    @Override
+    public String toString() {
+        return key();
+    }
+}
@@ -0,0 +1,83 @@
+package school.sorokin.javabot;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Приём апдейтов через webhook (telegram.mode=webhook) вместо long polling.
+ * Запрос проверяется по секрету из заголовка X-Telegram-Bot-Api-Secret-Token,
+ * апдейт ставится в {@link StripedUpdateDispatcher}, и Telegram сразу получает 200 —
+ * обработка идёт асинхронно.
+ */
+@RestController
+@ConditionalOnProperty(name = "telegram.mode", havingValue = "webhook")
+public class WebhookController {
+
+    static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    private final StripedUpdateDispatcher dispatcher;
+    private final TelegramClient telegramClient;
+    private final BotMetrics metrics;
+    private final byte[] secret;
+    private final String publicUrl;
+
+    public WebhookController(StripedUpdateDispatcher dispatcher,
+                             TelegramClient telegramClient,
+                             BotMetrics metrics,
+                             @Value("${telegram.webhook.secret}") String secret,
+                             @Value("${telegram.webhook.url:}") String publicUrl) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalStateException("telegram.webhook.secret must be set in webhook mode");
+        }
+        this.dispatcher = dispatcher;
+        this.telegramClient = telegramClient;
+        this.metrics = metrics;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.publicUrl = publicUrl;
+    }
+
+    /**
+     * Регистрирует webhook в Telegram, если задан публичный адрес; иначе считается, что он настроен снаружи
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void register() {
+        if (publicUrl == null || publicUrl.isBlank()) return;
+        try {
+            telegramClient.execute(SetWebhook.builder()
+                    .url(publicUrl)
+                    .secretToken(new String(secret, StandardCharsets.UTF_8))
+                    .build());
+        } catch (TelegramApiException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @PostMapping("${telegram.webhook.path:/telegram/webhook}")
+    public ResponseEntity<Void> receive(@RequestHeader(value = SECRET_HEADER, required = false) String token,
+                                        @RequestBody Update update) {
+        long start = System.currentTimeMillis();
+        if (token == null || !MessageDigest.isEqual(secret, token.getBytes(StandardCharsets.UTF_8))) {
+            metrics.increment("webhook.rejected");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        metrics.increment("webhook.received");
+        dispatcher.dispatch(update);
+        metrics.recordMillis("webhook.ack", System.currentTimeMillis() - start);
+        return ResponseEntity.ok().build();
+    }
+}
@@ -0,0 +1,57 @@
+package school.sorokin.javabot;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Разбор строк прогресса yt-dlp (нужен флаг --newline), например:
+ * {@code [download]  45.3% of ~ 10.00MiB at 1.23MiB/s ETA 00:05 (frag 3/20)}
+ */
+public final class YtDlpProgress {
+
+    private static final Pattern LINE = Pattern.compile(
+            "^\\[download]\\s+(\\d+(?:\\.\\d+)?)%\\s+of\\s+~?\\s*(\\S+)"
+                    + "(?:\\s+in\\s+\\S+)?"
+                    + "(?:\\s+at\\s+(\\S+))?"
+                    + "(?:\\s+ETA\\s+(\\S+))?");
+
+    public final double percent;
+    public final String total;
+    public final String speed; // null, если yt-dlp ещё не знает
+    public final String eta;
+
+    private YtDlpProgress(double percent, String total, String speed, String eta) {
+        this.percent = percent;
+        this.total = total;
+        this.speed = speed;
+        this.eta = eta;
+    }
+
+    /**
+     * null, если строка — не прогресс
+     */
+    public static YtDlpProgress parse(String line) {
+        if (line == null || !line.startsWith("[download]")) return null;
+        Matcher m = LINE.matcher(line);
+        if (!m.find()) return null;
+        return new YtDlpProgress(Double.parseDouble(m.group(1)), m.group(2),
+                known(m.group(3)), known(m.group(4)));
+    }
+
+    private static String known(String v) {
+        return v == null || v.startsWith("Unknown") || v.equals("N/A") ? null : v;
+    }
+
+    /**
+     * Текст для статусного сообщения
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder("⏬ Скачивание: ")
+                .append(String.format(Locale.ROOT, "%.0f%%", percent))
+                .append(" из ").append(total);
+        if (speed != null) sb.append(" • ").append(speed);
+        if (eta != null) sb.append(" • осталось ").append(eta);
+        return sb.toString();
+    }
+}
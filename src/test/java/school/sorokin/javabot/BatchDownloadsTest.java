@@ -0,0 +1,123 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class BatchDownloadsTest {
+
+    private final BotMetrics metrics = new BotMetrics();
+    private final BatchDownloads batches = new BatchDownloads(3, 2, 1, null, metrics);
+    private final List<String> progress = new ArrayList<>();
+    private final List<String> finals = new ArrayList<>();
+    private final List<BatchDownloads.Batch> finished = new ArrayList<>();
+
+    private final InFlightDownloads.Listener status = new InFlightDownloads.Listener() {
+        @Override
+        public void message(String text) {
+        }
+
+        @Override
+        public void progress(String text, boolean last) {
+            (last ? finals : progress).add(text);
+        }
+    };
+
+    @Test
+    void extractsLinksAndPlaylists() {
+        assertEquals(List.of("https://youtu.be/a", "https://www.tiktok.com/@x/video/1"),
+                BatchDownloads.extractUrls("вот https://youtu.be/a и\nhttps://www.tiktok.com/@x/video/1 https://youtu.be/a"));
+        assertTrue(BatchDownloads.isPlaylist("https://www.youtube.com/playlist?list=PL123"));
+        assertFalse(BatchDownloads.isPlaylist("https://www.youtube.com/watch?v=dQw4w9WgXcQ&list=PL123"));
+    }
+
+    @Test
+    void expandDropsDuplicateVideosAndCapsSize() throws Exception {
+        List<String> items = batches.expand(List.of("https://youtu.be/dQw4w9WgXcQ",
+                "https://www.youtube.com/watch?v=dQw4w9WgXcQ", "https://youtu.be/aaaaaaaaaaa",
+                "https://youtu.be/bbbbbbbbbbb", "https://youtu.be/ccccccccccc")).get(5, TimeUnit.SECONDS).items;
+        assertEquals(List.of("https://youtu.be/dQw4w9WgXcQ", "https://youtu.be/aaaaaaaaaaa",
+                "https://youtu.be/bbbbbbbbbbb"), items);
+    }
+
+    @Test
+    void keepsWindowFullAsChildrenFinishOutOfOrder() {
+        BatchDownloads.Batch batch = batches.create(1L, List.of("u1", "u2", "u3", "u4"), MediaFormat.MP3_128, status,
+                finished::add);
+        assertEquals(List.of("u1", "u2"), batches.admit(batch));
+        assertEquals(List.of(), batches.admit(batch)); // окно занято
+
+        assertEquals(List.of("u3"), batches.childDone(batch, true));
+        assertEquals(List.of("u4"), batches.childDone(batch, false));
+        assertTrue(progress.get(progress.size() - 1).startsWith("📦 Пакет: 1/4 готово · ⏬ 2 в работе · ❌ 1"));
+        batches.childDone(batch, true);
+        assertEquals(List.of(), finals);
+        batches.childDone(batch, true);
+
+        assertEquals(List.of("📦 Пакет завершён: 3/4 готово · ❌ 1"), finals);
+        assertEquals(List.of(batch), finished);
+        assertEquals(0, batches.active());
+    }
+
+    @Test
+    void cancelStopsAdmittingAndReportsOnce() {
+        BatchDownloads.Batch batch = batches.create(7L, List.of("u1", "u2", "u3"), MediaFormat.VIDEO_720, status, b -> { });
+        batches.admit(batch);
+        batches.started(batch, 41);
+        batches.started(batch, 42);
+
+        assertEquals(null, batches.cancel(batch.id, 8L)); // чужой чат
+        assertEquals(List.of(41L, 42L), batches.cancel(batch.id, 7L));
+        assertEquals(List.of(), batches.childDone(batch, true));
+        assertEquals(List.of(), batches.childDone(batch, false));
+
+        assertEquals(List.of("📦 Пакет завершён: 1/3 готово · 🚫 2 отменено"), finals);
+        assertEquals(0, batches.cancelChat(7L));
+    }
+
+    @Test
+    void repeatedCancelIsNotCountedAndLateChildIsRejected() {
+        BatchDownloads.Batch batch = batches.create(9L, List.of("u1", "u2", "u3"), MediaFormat.MP3_128, status, b -> { });
+        batches.admit(batch);
+        assertTrue(batches.started(batch, 51));
+
+        assertEquals(1, batches.cancelChat(9L));
+        assertEquals(0, batches.cancelChat(9L)); // уже отменён
+        assertEquals(List.of(), batches.cancel(batch.id, 9L));
+        assertFalse(batches.started(batch, 52)); // вторая задача дошла до запуска после отмены
+    }
+
+    @Test
+    void failedOrTimedOutListingIsNotPartialSuccess(@TempDir Path dir) throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        Path ytDlp = dir.resolve("yt-dlp");
+        // печатает часть списка, затем падает (или зависает — для второго плейлиста)
+        Files.writeString(ytDlp, "#!/bin/sh\necho https://youtu.be/aaaaaaaaaaa\n"
+                + "case \"$*\" in *PLslow*) sleep 30 ;; *) exit 1 ;; esac\n");
+        assertTrue(ytDlp.toFile().setExecutable(true));
+        BatchDownloads expanding = new BatchDownloads(10, 2, 1,
+                new ToolRegistry(ytDlp.toString(), "", metrics, 5000), metrics);
+
+        String broken = "https://www.youtube.com/playlist?list=PLbroken";
+        String slow = "https://www.youtube.com/playlist?list=PLslow";
+        BatchDownloads.Expansion result = expanding.expand(List.of("https://youtu.be/bbbbbbbbbbb", broken, slow))
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(List.of("https://youtu.be/bbbbbbbbbbb"), result.items);
+        assertEquals(List.of(broken, slow), result.failed);
+        assertEquals(2, metrics.counter("batch.expand_failed"));
+        assertEquals(1, metrics.counter("batch.expand_timeouts"));
+        assertEquals(0, metrics.counter("batch.playlists_expanded"));
+        expanding.shutdown();
+    }
+}
@@ -0,0 +1,118 @@
+package school.sorokin.javabot;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.annotation.AnnotationConfigUtils;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * /dl/bundle (ZIP на лету) против скачивания тех же файлов по одному через /dl.
+ * Запуск: mvn test -Dbenchmark=true -Dtest=BundleThroughputBenchmark
+ * Параметры: -Dbenchmark.files=20 -Dbenchmark.size-mb=64 -Dbenchmark.rounds=3
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class BundleThroughputBenchmark {
+
+    @EnableWebMvc
+    static class WebConfig {
+    }
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void bundleVersusOneByOne() throws Exception {
+        int files = Integer.getInteger("benchmark.files", 20);
+        int sizeMb = Integer.getInteger("benchmark.size-mb", 64);
+        int rounds = Integer.getInteger("benchmark.rounds", 3);
+
+        HostedFileService hosted = new HostedFileService(60, "", dir.resolve("hosted").toString(),
+                dir.resolve("hosted.tsv").toString(), 1L << 20, new BotMetrics());
+        hosted.load();
+        byte[] chunk = new byte[1024 * 1024];
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            Path f = dir.resolve("clip" + i + ".mp4");
+            ThreadLocalRandom.current().nextBytes(chunk); // несжимаемые данные, как у медиа
+            try (var out = Files.newOutputStream(f)) {
+                for (int m = 0; m < sizeMb; m++) out.write(chunk);
+            }
+            ids.add(hosted.register(f.toFile()));
+        }
+        long crcStart = System.nanoTime();
+        String bundle = hosted.registerBundle("batch", ids).get();
+        double crcSeconds = (System.nanoTime() - crcStart) / 1e9;
+        long total = (long) files * sizeMb * 1024 * 1024;
+
+        GenericWebApplicationContext ctx = new GenericWebApplicationContext();
+        AnnotationConfigUtils.registerAnnotationConfigProcessors(ctx);
+        ctx.registerBean(WebConfig.class);
+        ctx.registerBean(HostedFileService.class, () -> hosted);
+        ctx.registerBean(DownloadController.class);
+
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(dir.resolve("tomcat").toString());
+        Connector connector = new Connector();
+        connector.setPort(0);
+        tomcat.setConnector(connector);
+        Context context = tomcat.addContext("", dir.toString());
+        Tomcat.addServlet(context, "dispatcher", new DispatcherServlet(ctx));
+        context.addServletMappingDecoded("/", "dispatcher");
+        tomcat.start();
+        try {
+            String base = "http://localhost:" + connector.getLocalPort() + "/dl/";
+            HttpClient client = HttpClient.newHttpClient();
+            System.out.printf("files=%d size=%dMB total=%dMB crc-once=%.2fs (%.0f MB/s)%n",
+                    files, sizeMb, total >> 20, crcSeconds, (total >> 20) / crcSeconds);
+            for (int round = 1; round <= rounds; round++) {
+                long start = System.nanoTime();
+                long got = 0;
+                for (String id : ids) got += drain(client, URI.create(base + id));
+                double oneByOne = (System.nanoTime() - start) / 1e9;
+                assertEquals(total, got);
+
+                start = System.nanoTime();
+                long zipped = drain(client, URI.create(base + "bundle/" + bundle));
+                double zip = (System.nanoTime() - start) / 1e9;
+
+                System.out.printf("round %d: one-by-one %d requests %.2fs %.1f MB/s | bundle 1 request %.2fs %.1f MB/s, zip overhead %d bytes%n",
+                        round, files, oneByOne, (total >> 20) / oneByOne, zip, (total >> 20) / zip, zipped - total);
+            }
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    private static long drain(HttpClient client, URI uri) throws Exception {
+        HttpResponse<InputStream> resp = client.send(HttpRequest.newBuilder(uri).build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals(200, resp.statusCode());
+        byte[] buf = new byte[256 * 1024];
+        long n = 0;
+        try (InputStream in = resp.body()) {
+            int r;
+            while ((r = in.read(buf)) > 0) n += r;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,57 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CallbackTokenStoreTest {
+
+    @Test
+    void storesParsedReference() {
+        CallbackTokenStore store = new CallbackTokenStore(10, 60, new BotMetrics());
+        String token = store.issue("https://youtu.be/dQw4w9WgXcQ");
+        assertEquals(CallbackTokenStore.TOKEN_LENGTH, token.length());
+        CallbackTokenStore.Entry e = store.get(token);
+        assertEquals("yt_dQw4w9WgXcQ", e.ref.key());
+        assertEquals("https://youtu.be/dQw4w9WgXcQ", e.url());
+    }
+
+    @Test
+    void sameVideoReusesToken() {
+        CallbackTokenStore store = new CallbackTokenStore(10, 60, new BotMetrics());
+        String a = store.issue("https://youtu.be/dQw4w9WgXcQ");
+        String b = store.issue("https://www.youtube.com/watch?v=dQw4w9WgXcQ");
+        assertEquals(a, b);
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void evictsOldestWhenFull() {
+        BotMetrics metrics = new BotMetrics();
+        CallbackTokenStore store = new CallbackTokenStore(2, 60, metrics);
+        String first = store.issue("https://youtu.be/aaaaaaaaaaa");
+        String second = store.issue("https://youtu.be/bbbbbbbbbbb");
+        store.issue("https://youtu.be/aaaaaaaaaaa"); // освежает первую
+        String third = store.issue("https://youtu.be/ccccccccccc");
+
+        assertNotNull(store.get(first));
+        assertNull(store.get(second));
+        assertNotNull(store.get(third));
+        assertEquals(2, store.size());
+        assertEquals(1, metrics.counter("callbacks.evicted"));
+    }
+
+    @Test
+    void expiredTokenIsGone() {
+        BotMetrics metrics = new BotMetrics();
+        CallbackTokenStore store = new CallbackTokenStore(10, 0, metrics);
+        String token = store.issue("https://youtu.be/dQw4w9WgXcQ");
+        long until = System.currentTimeMillis() + 5;
+        while (System.currentTimeMillis() <= until) Thread.onSpinWait();
+        assertNull(store.get(token));
+        assertEquals(0, store.size());
+        assertEquals(1, metrics.counter("callbacks.expired"));
+    }
+}
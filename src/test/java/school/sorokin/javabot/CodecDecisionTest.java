@@ -0,0 +1,57 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CodecDecisionTest {
+
+    private static final String M4A = """
+            Input #0, mov,mp4,m4a,3gp,3g2,mj2, from 'media.m4a':
+              Duration: 00:03:32.07, start: 0.000000, bitrate: 130 kb/s
+              Stream #0:0[0x1](und): Audio: aac (LC) (mp4a / 0x6134706D), 44100 Hz, stereo, fltp, 129 kb/s (default)
+            At least one output file must be specified
+            """;
+
+    private static final String WEBM = """
+            Input #0, matroska,webm, from 'media.webm':
+              Duration: 00:01:00.00, start: -0.007000, bitrate: 140 kb/s
+              Stream #0:0(eng): Audio: opus, 48000 Hz, stereo, fltp (default)
+            """;
+
+    @Test
+    void parsesAudioStream() {
+        CodecDecision.Probe p = CodecDecision.parse(M4A);
+        assertEquals("aac", p.codec);
+        assertEquals(44100, p.sampleRate);
+        assertEquals(129, p.bitrateKbps);
+        assertEquals(212_070, p.durationMillis);
+
+        CodecDecision.Probe opus = CodecDecision.parse(WEBM);
+        assertEquals("opus", opus.codec);
+        assertEquals(0, opus.bitrateKbps);
+        assertNull(CodecDecision.parse("media.bin: Invalid data found").codec);
+    }
+
+    @Test
+    void copiesWhenTelegramCanPlayTheSource() {
+        CodecDecision.Probe aac = CodecDecision.parse(M4A);
+        assertEquals(CodecDecision.Action.KEEP, CodecDecision.decide(aac, "media.m4a", true).action);
+        CodecDecision remux = CodecDecision.decide(aac, "media.mp4", true);
+        assertEquals(CodecDecision.Action.COPY, remux.action);
+        assertEquals("m4a", remux.ext);
+        assertEquals(CodecDecision.Action.TRANSCODE, CodecDecision.decide(aac, "media.m4a", false).action);
+
+        CodecDecision.Probe mp3 = new CodecDecision.Probe("mp3", 44100, 128, 1000);
+        assertEquals(CodecDecision.Action.COPY, CodecDecision.decide(mp3, "media.mkv", false).action);
+        assertEquals(CodecDecision.Action.KEEP, CodecDecision.decide(mp3, "media.mp3", false).action);
+    }
+
+    @Test
+    void transcodesEverythingElse() {
+        CodecDecision d = CodecDecision.decide(CodecDecision.parse(WEBM), "media.webm", true);
+        assertEquals(CodecDecision.Action.TRANSCODE, d.action);
+        assertEquals("mp3", d.ext);
+    }
+}
@@ -0,0 +1,77 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadCacheTest {
+
+    private static final int SIZE = 600 * 1024; // два файла не влезают в 1 МБ
+
+    @TempDir
+    Path dir;
+
+    private static VideoRef ref(String id) {
+        return VideoRef.parse("https://youtu.be/" + id);
+    }
+
+    private Path file(Path workDir, String name) throws Exception {
+        Files.createDirectories(workDir);
+        return Files.write(workDir.resolve(name), new byte[SIZE]);
+    }
+
+    private DownloadCache cache(BotMetrics metrics) {
+        DownloadCache cache = new DownloadCache(dir.resolve("cache").toString(), 1, metrics);
+        cache.load();
+        return cache;
+    }
+
+    @Test
+    void checkedOutFileSurvivesEviction() throws Exception {
+        BotMetrics metrics = new BotMetrics();
+        DownloadCache cache = cache(metrics);
+        cache.store(ref("aaaaaaaaaaa"), MediaFormat.MP3_128, file(dir.resolve("w1"), "media.mp3"));
+
+        Path job = Files.createDirectories(dir.resolve("job"));
+        Path mine = cache.checkout(ref("aaaaaaaaaaa"), MediaFormat.MP3_128, job);
+        assertEquals(job, mine.getParent());
+        assertEquals(1, metrics.counter("cache.hit"));
+
+        // параллельная задача кладёт в кэш другой файл — первый вытесняется
+        cache.store(ref("bbbbbbbbbbb"), MediaFormat.MP3_128, file(dir.resolve("w2"), "media.mp3"));
+        assertEquals(1, metrics.counter("cache.evicted"));
+        assertNull(cache.lookup(ref("aaaaaaaaaaa"), MediaFormat.MP3_128));
+        assertEquals(SIZE, Files.size(mine)); // ссылка в папке задачи цела
+    }
+
+    @Test
+    void sharedFileStaysInWorkspace() throws Exception {
+        BotMetrics metrics = new BotMetrics();
+        DownloadCache cache = cache(metrics);
+        Path downloaded = file(dir.resolve("w1"), "media.mp4");
+        assertEquals(downloaded, cache.share(ref("aaaaaaaaaaa"), MediaFormat.VIDEO_720, downloaded));
+        Path cached = cache.lookup(ref("aaaaaaaaaaa"), MediaFormat.VIDEO_720);
+        assertNotEquals(downloaded, cached);
+        assertTrue(cache.owns(cached));
+        assertEquals(SIZE, cache.totalBytes());
+
+        cache.share(ref("bbbbbbbbbbb"), MediaFormat.VIDEO_720, file(dir.resolve("w2"), "media.mp4"));
+        assertFalse(Files.exists(cached));
+        assertEquals(SIZE, Files.size(downloaded));
+        assertEquals(1, cache.size());
+        assertEquals(SIZE, cache.totalBytes());
+
+        // после перезапуска запись находится по имени в кэше
+        DownloadCache reloaded = cache(new BotMetrics());
+        assertTrue(Files.exists(reloaded.lookup(ref("bbbbbbbbbbb"), MediaFormat.VIDEO_720)));
+        assertEquals(0, metrics.counter("cache.link_failed"));
+    }
+}
@@ -0,0 +1,132 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class DownloadControllerTest {
+
+    @TempDir
+    Path dir;
+
+    private HostedFileService hosted;
+    private MockMvc mvc;
+    private String id;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path file = dir.resolve("clip.mp4");
+        Files.writeString(file, "0123456789", StandardCharsets.US_ASCII);
+        hosted = new HostedFileService(60, "", dir.resolve("hosted").toString(),
+                dir.resolve("hosted.tsv").toString(), 10240, new BotMetrics());
+        hosted.load();
+        id = hosted.register(file.toFile());
+        mvc = MockMvcBuilders.standaloneSetup(new DownloadController(hosted)).build();
+    }
+
+    @Test
+    void servesWholeFile() throws Exception {
+        MvcResult r = mvc.perform(get("/dl/" + id))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Accept-Ranges", "bytes"))
+                .andExpect(header().string("Content-Length", "10"))
+                .andReturn();
+        assertEquals("0123456789", r.getResponse().getContentAsString());
+    }
+
+    @Test
+    void servesSingleRange() throws Exception {
+        MvcResult r = mvc.perform(get("/dl/" + id).header("Range", "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 2-5/10"))
+                .andExpect(header().string("Content-Length", "4"))
+                .andReturn();
+        assertEquals("2345", r.getResponse().getContentAsString());
+
+        r = mvc.perform(get("/dl/" + id).header("Range", "bytes=-3"))
+                .andExpect(status().isPartialContent())
+                .andReturn();
+        assertEquals("789", r.getResponse().getContentAsString());
+    }
+
+    @Test
+    void rejectsUnsatisfiableRange() throws Exception {
+        mvc.perform(get("/dl/" + id).header("Range", "bytes=20-30"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Content-Range", "bytes */10"));
+    }
+
+    @Test
+    void ignoresRangeWhenIfRangeDoesNotMatch() throws Exception {
+        mvc.perform(get("/dl/" + id).header("Range", "bytes=2-5").header("If-Range", "\"other\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Length", "10"));
+    }
+
+    @Test
+    void answersNotModifiedForSameEtag() throws Exception {
+        String etag = hosted.get(id).etag;
+        mvc.perform(get("/dl/" + id).header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    void headSendsHeadersOnly() throws Exception {
+        MvcResult r = mvc.perform(head("/dl/" + id))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Length", "10"))
+                .andReturn();
+        assertEquals(0, r.getResponse().getContentAsByteArray().length);
+    }
+
+    @Test
+    void unknownIdIsNotFound() throws Exception {
+        mvc.perform(get("/dl/nope")).andExpect(status().isNotFound());
+    }
+
+    @Test
+    void servesBundleAsStoredZip() throws Exception {
+        Path other = Files.createDirectories(dir.resolve("other")).resolve("clip.mp4");
+        Files.writeString(other, "abc", StandardCharsets.US_ASCII);
+        String bundle = hosted.registerBundle("batch", List.of(id, hosted.register(other.toFile()))).get();
+
+        MvcResult r = mvc.perform(get("/dl/bundle/" + bundle))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "application/zip"))
+                .andReturn();
+        byte[] body = r.getResponse().getContentAsByteArray();
+        assertEquals(body.length, r.getResponse().getContentLengthLong());
+
+        List<String> names = new ArrayList<>();
+        List<String> contents = new ArrayList<>();
+        try (ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(body))) {
+            ZipEntry e;
+            while ((e = zin.getNextEntry()) != null) { // ZipInputStream сверяет CRC сам
+                assertEquals(ZipEntry.STORED, e.getMethod());
+                names.add(e.getName());
+                contents.add(new String(zin.readAllBytes(), StandardCharsets.US_ASCII));
+            }
+        }
+        assertEquals(List.of("clip.mp4", "clip (2).mp4"), names);
+        assertEquals(List.of("0123456789", "abc"), contents);
+        mvc.perform(get("/dl/bundle/nope")).andExpect(status().isNotFound());
+    }
+}
@@ -0,0 +1,61 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadSchedulerTest {
+
+    @Test
+    void heavyChatDoesNotStarveOthers() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1, new BotMetrics());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        scheduler.submit(1L, "a1", () -> {
+            await(gate);
+            order.add("a1");
+            done.countDown();
+        });
+        scheduler.submit(1L, "a2", () -> { order.add("a2"); done.countDown(); });
+        scheduler.submit(1L, "a3", () -> { order.add("a3"); done.countDown(); });
+        DownloadScheduler.Job b = scheduler.submit(2L, "b1", () -> { order.add("b1"); done.countDown(); });
+
+        assertTrue(b.position() > 0);
+        assertEquals(3, scheduler.queued());
+        gate.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("a1", "b1", "a2", "a3"), order);
+        scheduler.shutdown();
+    }
+
+    @Test
+    void batchJobsUseTheirOwnChatLimit() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(3, 1, new BotMetrics());
+        CountDownLatch gate = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(1L, "b" + i, () -> await(gate), 2);
+        }
+        assertEquals(2, scheduler.running()); // окно пакета — 2 слота, а не maxPerChat = 1
+        assertEquals(1, scheduler.queued());
+        scheduler.submit(1L, "single", () -> { });
+        assertEquals(2, scheduler.queued());
+        gate.countDown();
+        scheduler.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
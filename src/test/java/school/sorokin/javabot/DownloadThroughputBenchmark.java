@@ -0,0 +1,109 @@
+package school.sorokin.javabot;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.annotation.AnnotationConfigUtils;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Пропускная способность /dl при параллельных больших загрузках.
+ * Запуск: mvn test -Dbenchmark=true -Dtest=DownloadThroughputBenchmark
+ * Параметры: -Dbenchmark.size-mb=256 -Dbenchmark.clients=8
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class DownloadThroughputBenchmark {
+
+    @EnableWebMvc
+    static class WebConfig {
+    }
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentLargeDownloads() throws Exception {
+        int sizeMb = Integer.getInteger("benchmark.size-mb", 256);
+        int clients = Integer.getInteger("benchmark.clients", 8);
+
+        Path file = dir.resolve("big.mp4");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(sizeMb * 1024L * 1024L);
+        }
+        HostedFileService hosted = new HostedFileService(60, "", dir.resolve("hosted").toString(),
+                dir.resolve("hosted.tsv").toString(), 10240, new BotMetrics());
+        hosted.load();
+        String id = hosted.register(file.toFile());
+
+        GenericWebApplicationContext ctx = new GenericWebApplicationContext();
+        AnnotationConfigUtils.registerAnnotationConfigProcessors(ctx);
+        ctx.registerBean(WebConfig.class);
+        ctx.registerBean(HostedFileService.class, () -> hosted);
+        ctx.registerBean(DownloadController.class);
+
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(dir.resolve("tomcat").toString());
+        Connector connector = new Connector();
+        connector.setPort(0);
+        tomcat.setConnector(connector);
+        Context context = tomcat.addContext("", dir.toString());
+        Tomcat.addServlet(context, "dispatcher", new DispatcherServlet(ctx));
+        context.addServletMappingDecoded("/", "dispatcher");
+        tomcat.start();
+        try {
+            URI uri = URI.create("http://localhost:" + connector.getLocalPort() + "/dl/" + id);
+            HttpClient client = HttpClient.newHttpClient();
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            long start = System.nanoTime();
+            List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                results.add(pool.submit(() -> drain(client, uri)));
+            }
+            long total = 0;
+            for (Future<Long> f : results) {
+                long got = f.get();
+                assertEquals(sizeMb * 1024L * 1024L, got);
+                total += got;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            pool.shutdown();
+            System.out.printf("clients=%d size=%dMB total=%.0fMB time=%.2fs throughput=%.1f MB/s%n",
+                    clients, sizeMb, total / 1048576.0, seconds, total / 1048576.0 / seconds);
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    private static long drain(HttpClient client, URI uri) throws Exception {
+        HttpResponse<InputStream> resp = client.send(HttpRequest.newBuilder(uri).build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        byte[] buf = new byte[256 * 1024];
+        long n = 0;
+        try (InputStream in = resp.body()) {
+            int r;
+            while ((r = in.read(buf)) > 0) n += r;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,52 @@
+package school.sorokin.javabot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FormatSelectorTest {
+
+    private static final long LIMIT = 50L * 1024 * 1024;
+
+    private static final String JSON = """
+            {"id":"x","title":"t","duration":600,"formats":[
+              {"format_id":"140","ext":"m4a","vcodec":"none","acodec":"mp4a","filesize":10000000},
+              {"format_id":"18","ext":"mp4","vcodec":"avc1","acodec":"mp4a","height":360,"filesize":30000000},
+              {"format_id":"135","ext":"mp4","vcodec":"avc1","acodec":"none","height":480,"filesize":35000000},
+              {"format_id":"22","ext":"mp4","vcodec":"avc1","acodec":"mp4a","height":720,"filesize":90000000},
+              {"format_id":"136","ext":"mp4","vcodec":"avc1","acodec":"none","height":720,"filesize":70000000},
+              {"format_id":"137","ext":"mp4","vcodec":"avc1","acodec":"none","height":1080,"filesize":20000000}
+            ]}""";
+
+    private VideoMetadata meta() throws Exception {
+        return VideoMetadata.from(new ObjectMapper().readTree(JSON));
+    }
+
+    @Test
+    void stepsDownToBestFittingCombination() throws Exception {
+        FormatSelector.Choice c = FormatSelector.select(meta(), 720, LIMIT, true);
+        assertTrue(c.fits);
+        assertEquals("135+140", c.spec);
+        assertEquals(480, c.height);
+        assertTrue(c.merged());
+        assertTrue(c.avoidsHosting); // 720p по умолчанию — 90 МБ
+    }
+
+    @Test
+    void withoutFfmpegUsesProgressiveOnly() throws Exception {
+        FormatSelector.Choice c = FormatSelector.select(meta(), 720, LIMIT, false);
+        assertEquals("18", c.spec);
+        assertEquals(360, c.height);
+    }
+
+    @Test
+    void fallsBackToDefaultWhenNothingFits() throws Exception {
+        FormatSelector.Choice c = FormatSelector.select(meta(), 720, 10L * 1024 * 1024, true);
+        assertFalse(c.fits);
+        assertEquals(FormatSelector.DEFAULT_VIDEO, c.spec);
+        assertEquals(FormatSelector.DEFAULT_VIDEO, FormatSelector.select(null, 720, LIMIT, true).spec);
+    }
+}
@@ -0,0 +1,185 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HostedFileServiceTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private HostedFileService service(long maxMb, BotMetrics metrics) {
+        HostedFileService s = new HostedFileService(60, "", dir.resolve("hosted").toString(),
+                dir.resolve("data/hosted.tsv").toString(), maxMb, metrics);
+        s.load();
+        return s;
+    }
+
+    private File file(String name, int size) throws Exception {
+        Path p = dir.resolve(name);
+        Files.write(p, new byte[size]);
+        return p.toFile();
+    }
+
+    @Test
+    void linksSurviveRestart() throws Exception {
+        HostedFileService first = service(100, new BotMetrics());
+        String id = first.register(file("movie.mp4", 1000));
+        first.recordDownload(first.get(id));
+        first.close();
+
+        HostedFileService second = service(100, new BotMetrics());
+        HostedFileService.HostedFile hf = second.get(id);
+        assertNotNull(hf);
+        assertEquals("movie.mp4", hf.originalName);
+        assertEquals(1000, hf.size);
+        assertEquals(1, hf.downloads());
+        assertEquals(1000, second.totalBytes());
+    }
+
+    @Test
+    void journalIsCompactedWhileRunning() throws Exception {
+        BotMetrics metrics = new BotMetrics();
+        HostedFileService s = service(100, metrics);
+        String id = s.register(file("movie.mp4", 1000));
+        for (int i = 0; i < 10_000; i++) s.recordDownload(s.get(id));
+        assertEquals(1, metrics.counter("hosted.journal_compactions"));
+        assertTrue(Files.readAllLines(dir.resolve("data/hosted.tsv")).size() < 100);
+        s.recordDownload(s.get(id)); // после сжатия журнал пишется дальше
+        s.close();
+
+        HostedFileService restarted = service(100, new BotMetrics());
+        assertEquals(10_001, restarted.get(id).downloads());
+    }
+
+    @Test
+    void sameFileKeepsItsId() throws Exception {
+        HostedFileService s = service(100, new BotMetrics());
+        String id = s.register(file("a.mp4", 10));
+        Path hosted = s.get(id).path;
+        assertEquals(id, s.register(hosted.toFile()));
+    }
+
+    @Test
+    void hostedFileIsNamedAfterTitle() throws Exception {
+        assertEquals("Клип_ часть 1_2.mp4", HostedFileService.downloadName("Клип: часть 1/2", "mp4"));
+        assertEquals("media.mp3", HostedFileService.downloadName("  ", "mp3"));
+        assertEquals(100 + ".webm".length(), HostedFileService.downloadName("x".repeat(300), "webm").length());
+
+        HostedFileService s = service(100, new BotMetrics());
+        HostedFileService.HostedFile hf = s.host(file("media_conv.mp3", 10).toPath(),
+                HostedFileService.downloadName("Песня", "mp3"));
+        assertEquals("Песня.mp3", hf.originalName);
+        s.close();
+        assertEquals("Песня.mp3", service(100, new BotMetrics()).get(hf.id).originalName);
+    }
+
+    @Test
+    void hostedFileIsTrackedBeforeLinkIsSent() throws Exception {
+        HostedFileService s = service(100, new BotMetrics());
+        // результат загрузки переносится из папки задачи ещё до отправки
+        HostedFileService.HostedFile hf = s.host(file("big.mp4", 1000).toPath());
+        assertTrue(s.owns(hf.path));
+        assertEquals(1000, s.totalBytes());
+        assertEquals(hf.id, s.register(hf.path.toFile()));
+        assertEquals(1000, s.totalBytes());
+    }
+
+    @Test
+    void quotaEvictsLeastDownloadedAndDeletesFile() throws Exception {
+        BotMetrics metrics = new BotMetrics();
+        HostedFileService s = service(2, metrics);
+        String popular = s.register(file("popular.mp4", MB));
+        s.recordDownload(s.get(popular));
+        String idle = s.register(file("idle.mp4", MB / 2));
+        Path idlePath = s.get(idle).path;
+
+        String fresh = s.register(file("fresh.mp4", MB));
+
+        assertNull(s.get(idle));
+        assertFalse(Files.exists(idlePath));
+        assertNotNull(s.get(popular));
+        assertNotNull(s.get(fresh));
+        assertEquals(1, metrics.counter("hosted.evictions"));
+        assertTrue(s.totalBytes() <= 2L * MB);
+    }
+
+    @Test
+    void expiresAtDeadlineAndDeletesFile() throws Exception {
+        Path file = dir.resolve("hosted/abc_soon.mp4");
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[10]);
+        long now = System.currentTimeMillis();
+        Files.createDirectories(dir.resolve("data"));
+        Files.writeString(dir.resolve("data/hosted.tsv"), String.join("\t", "R", "soon", file.toString(),
+                String.valueOf(now), String.valueOf(now + 300), "10", "video/mp4", String.valueOf(now), "0", "soon.mp4") + "\n");
+
+        BotMetrics metrics = new BotMetrics();
+        HostedFileService s = service(100, metrics);
+        assertNotNull(s.get("soon"));
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (metrics.counter("hosted.expired") == 0 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+
+        assertFalse(Files.exists(file));
+        assertNull(s.get("soon"));
+        assertEquals(1, metrics.counter("hosted.expired"));
+        s.close();
+    }
+
+    @Test
+    void removesFilesMissingFromJournal() throws Exception {
+        Path orphan = dir.resolve("hosted/abc_left.mp4");
+        Files.createDirectories(orphan.getParent());
+        Files.write(orphan, new byte[10]);
+        service(100, new BotMetrics());
+        assertFalse(Files.exists(orphan));
+    }
+
+    @Test
+    void bundleAndChecksumsSurviveRestart() throws Exception {
+        HostedFileService first = service(100, new BotMetrics());
+        String a = first.register(file("a.mp4", 1000));
+        String b = first.register(file("b.mp4", 2000));
+        String bundle = first.registerBundle("batch", List.of(a, b)).get(5, TimeUnit.SECONDS);
+        first.close();
+
+        BotMetrics metrics = new BotMetrics();
+        HostedFileService second = service(100, metrics);
+        StoredZip zip = second.zip(second.bundle(bundle));
+        assertEquals(2, zip.entries());
+        assertEquals(0, metrics.timer("hosted.crc").count()); // CRC взяты из журнала
+        assertNull(second.bundle("nope"));
+    }
+
+    @Test
+    void bundleGoesAwayWithItsLastFile() throws Exception {
+        BotMetrics metrics = new BotMetrics();
+        HostedFileService s = service(100, metrics);
+        String a = s.register(file("a.mp4", 10));
+        String b = s.register(file("b.mp4", 20));
+        String bundle = s.registerBundle("batch", List.of(a, b)).get(5, TimeUnit.SECONDS);
+
+        s.missing(s.get(a));
+        assertNotNull(s.bundle(bundle)); // второй файл ещё раздаётся
+        s.missing(s.get(b));
+        assertNull(s.bundle(bundle));
+        assertEquals(1, metrics.counter("hosted.bundles_expired"));
+        s.close();
+
+        assertNull(service(100, new BotMetrics()).bundle(bundle));
+    }
+}
@@ -0,0 +1,119 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class InFlightDownloadsTest {
+
+    private static final InFlightDownloads.Listener LISTENER = new InFlightDownloads.Listener() {
+        @Override
+        public void message(String text) {
+        }
+
+        @Override
+        public void progress(String text, boolean last) {
+        }
+    };
+
+    @Test
+    void identicalRequestsShareOneFlight() {
+        InFlightDownloads inFlight = new InFlightDownloads(new BotMetrics());
+        AtomicInteger started = new AtomicInteger();
+
+        InFlightDownloads.Waiter a = inFlight.join("yt_x__mp3", 1L, LISTENER, f -> started.incrementAndGet());
+        InFlightDownloads.Waiter b = inFlight.join("yt_x__mp3", 2L, LISTENER, f -> started.incrementAndGet());
+
+        assertEquals(1, started.get());
+        assertTrue(a.leader);
+        assertFalse(b.leader);
+        assertEquals(List.of(a, b), inFlight.complete(a.flight()));
+        assertEquals(0, inFlight.active());
+    }
+
+    @Test
+    void sharedJobIsCancelledOnlyWhenLastWaiterLeaves() {
+        InFlightDownloads inFlight = new InFlightDownloads(new BotMetrics());
+        AtomicInteger cancelled = new AtomicInteger();
+
+        InFlightDownloads.Waiter a = inFlight.join("k", 1L, LISTENER, f -> f.onCancel(cancelled::incrementAndGet));
+        InFlightDownloads.Waiter b = inFlight.join("k", 2L, LISTENER, f -> { });
+
+        assertFalse(a.cancel());
+        assertFalse(a.flight().isCancelled());
+        assertTrue(b.cancel());
+        assertTrue(a.flight().isCancelled());
+        assertEquals(1, cancelled.get());
+        assertTrue(inFlight.complete(a.flight()).isEmpty());
+    }
+
+    @Test
+    void cancelCommandKillsProcessTreeAndFreesQueuedJob() throws Exception {
+        BotMetrics metrics = new BotMetrics();
+        InFlightDownloads inFlight = new InFlightDownloads(metrics);
+        AtomicInteger dequeued = new AtomicInteger();
+
+        InFlightDownloads.Waiter a = inFlight.join("k", 1L, LISTENER, f -> f.onCancel(dequeued::incrementAndGet));
+        InFlightDownloads.Waiter other = inFlight.join("other", 2L, LISTENER, f -> { });
+        assumeTrue(new java.io.File("/bin/sh").canExecute());
+        // как yt-dlp: родитель с дочерним процессом
+        Process p = new ProcessBuilder("/bin/sh", "-c", "sleep 30 & wait").start();
+        a.flight().attach(p);
+        Thread.sleep(200);
+        List<ProcessHandle> children = p.descendants().toList();
+
+        assertNull(inFlight.cancel(a.id, 2L)); // чужая кнопка
+        assertEquals(List.of(a), inFlight.cancelChat(1L));
+        assertTrue(p.waitFor(5, TimeUnit.SECONDS));
+        for (ProcessHandle h : children) {
+            h.onExit().get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(1, dequeued.get());
+        assertFalse(children.isEmpty());
+        assertEquals(children.size(), metrics.counter("process.orphans_killed"));
+        assertEquals(1, metrics.counter("jobs.cancelled"));
+        assertFalse(other.flight().isCancelled());
+        assertEquals(other, inFlight.cancel(other.id, 2L));
+    }
+
+    @Test
+    void retryAfterCompletionStaysCancellable() {
+        InFlightDownloads inFlight = new InFlightDownloads(new BotMetrics());
+        InFlightDownloads.Waiter a = inFlight.join("k", 1L, LISTENER, f -> { });
+        inFlight.complete(a.flight());
+
+        // file_id отвергнут — повторная загрузка под тем же ID кнопки
+        InFlightDownloads.Waiter retry = inFlight.retry(a);
+        assertEquals(a.id, retry.id);
+        assertFalse(inFlight.contains("k")); // новые запросы её не подхватывают
+        assertEquals(retry, inFlight.cancel(a.id, 1L));
+        assertTrue(retry.flight().isCancelled());
+        assertTrue(inFlight.complete(retry.flight()).isEmpty());
+        assertEquals(0, inFlight.active());
+    }
+
+    @Test
+    void cancelAfterCompletionIsNotReported() {
+        BotMetrics metrics = new BotMetrics();
+        InFlightDownloads inFlight = new InFlightDownloads(metrics);
+        InFlightDownloads.Waiter a = inFlight.join("k", 1L, LISTENER, f -> { });
+        InFlightDownloads.Waiter b = inFlight.join("k", 1L, LISTENER, f -> { });
+
+        assertFalse(a.cancel()); // отписан, b ждёт дальше
+        assertEquals(List.of(b), inFlight.complete(b.flight()));
+        // нажатие, опоздавшее к завершению, — не отмена
+        assertFalse(b.cancel());
+        assertNull(inFlight.cancel(b.id, 1L));
+        assertTrue(inFlight.cancelChat(1L).isEmpty());
+        assertEquals(0, metrics.counter("jobs.cancelled"));
+        assertEquals(0, metrics.counter("singleflight.cancelled"));
+    }
+}
@@ -0,0 +1,61 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Накладные расходы журнала задач: полный цикл задачи (Q, S RUNNING, S SENDING, D)
+ * из нескольких потоков — без fsync и с fsync на каждую запись.
+ * Запуск: mvn test -Dbenchmark=true -Dtest=JobJournalBenchmark
+ * Параметры: -Dbenchmark.jobs=20000 -Dbenchmark.threads=8
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class JobJournalBenchmark {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void jobLifecycleThroughput() throws Exception {
+        int jobs = Integer.getInteger("benchmark.jobs", 20000);
+        int threads = Integer.getInteger("benchmark.threads", 8);
+
+        run("warmup", false, jobs / 4, threads);
+        run("no-fsync", false, jobs, threads);
+        run("fsync", true, Math.max(1, jobs / 20), threads); // fsync на порядки медленнее
+    }
+
+    private void run(String name, boolean fsync, int jobs, int threads) throws Exception {
+        JobJournal journal = new JobJournal(dir.resolve(name + ".tsv").toString(), fsync, new BotMetrics());
+        journal.load();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long chat = t;
+            results.add(pool.submit(() -> {
+                for (int i = 0; i < jobs / threads; i++) {
+                    JobJournal.Job job = journal.queued(chat, "https://youtu.be/dQw4w9WgXcQ", MediaFormat.MP3_128, 1);
+                    journal.stage(job, JobJournal.Stage.RUNNING);
+                    journal.stage(job, JobJournal.Stage.SENDING);
+                    journal.finished(job);
+                }
+            }));
+        }
+        for (Future<?> f : results) f.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        journal.close();
+        int done = jobs / threads * threads;
+        System.out.printf("%s: jobs=%d threads=%d time=%.2fs throughput=%.0f jobs/s per-job=%.1f us%n",
+                name, done, threads, seconds, done / seconds, seconds * 1e6 / done);
+    }
+}
@@ -0,0 +1,88 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobJournalTest {
+
+    @TempDir
+    Path dir;
+
+    private JobJournal open(BotMetrics metrics) {
+        JobJournal journal = new JobJournal(dir.resolve("jobs.tsv").toString(), false, metrics);
+        journal.load();
+        return journal;
+    }
+
+    @Test
+    void unfinishedJobsSurviveCrash() throws Exception {
+        JobJournal journal = open(new BotMetrics());
+        JobJournal.Job queued = journal.queued(1L, "https://youtu.be/aaaaaaaaaaa", MediaFormat.MP3_128, 1);
+        JobJournal.Job running = journal.queued(2L, "https://youtu.be/bbbbbbbbbbb", MediaFormat.VIDEO_720, 1);
+        JobJournal.Job done = journal.queued(3L, "https://youtu.be/ccccccccccc", MediaFormat.AUDIO_ORIGINAL, 1);
+        journal.stage(running, JobJournal.Stage.RUNNING);
+        journal.finished(done);
+        // «падение»: close() не вызывается, последняя запись оборвана
+        Files.writeString(dir.resolve("jobs.tsv"), "S\t2\tSEND", StandardOpenOption.APPEND);
+
+        BotMetrics metrics = new BotMetrics();
+        JobJournal restarted = open(metrics);
+        List<JobJournal.Job> recovered = restarted.drainRecovered();
+
+        assertEquals(2, recovered.size());
+        assertEquals(queued.id, recovered.get(0).id);
+        assertEquals(JobJournal.Stage.QUEUED, recovered.get(0).stage());
+        assertEquals(MediaFormat.MP3_128, recovered.get(0).format);
+        assertEquals(JobJournal.Stage.RUNNING, recovered.get(1).stage());
+        assertEquals("https://youtu.be/bbbbbbbbbbb", recovered.get(1).url);
+        assertEquals(1, metrics.counter("jobs.journal_corrupt"));
+        assertTrue(restarted.drainRecovered().isEmpty());
+
+        // после обработки восстановленных задач следующий запуск начинается с чистого журнала
+        recovered.forEach(restarted::finished);
+        JobJournal.Job next = restarted.queued(1L, "https://youtu.be/ddddddddddd", MediaFormat.MP3_128, 2);
+        assertTrue(next.id > running.id);
+        restarted.finished(next);
+        restarted.close();
+        assertTrue(open(new BotMetrics()).drainRecovered().isEmpty());
+    }
+
+    @Test
+    void controlCharactersInUrlDoNotSplitRecord() {
+        JobJournal journal = open(new BotMetrics());
+        journal.queued(1L, "https://youtu.be/aaaaaaaaaaa\nсмотри\tвсе", MediaFormat.MP3_128, 1);
+        journal.close();
+
+        BotMetrics metrics = new BotMetrics();
+        List<JobJournal.Job> recovered = open(metrics).drainRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals("https://youtu.be/aaaaaaaaaaa%0Aсмотри%09все", recovered.get(0).url);
+        assertEquals(0, metrics.counter("jobs.journal_corrupt"));
+    }
+
+    @Test
+    void failedCompactionKeepsJournalWritable() throws Exception {
+        // временный файл сжатия не создать: на его месте непустой каталог
+        Path blocker = Files.createDirectories(dir.resolve("jobs.tsv.tmp"));
+        Files.writeString(blocker.resolve("x"), "x");
+        BotMetrics metrics = new BotMetrics();
+        JobJournal journal = open(metrics);
+        for (int i = 0; i < 5_001; i++) {
+            journal.finished(journal.queued(1L, "https://youtu.be/aaaaaaaaaaa", MediaFormat.MP3_128, 1));
+        }
+        assertEquals(0, metrics.counter("jobs.journal_compactions"));
+
+        JobJournal.Job pending = journal.queued(2L, "https://youtu.be/bbbbbbbbbbb", MediaFormat.VIDEO_720, 1);
+        List<JobJournal.Job> recovered = open(new BotMetrics()).drainRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals(pending.url, recovered.get(0).url);
+    }
+}
@@ -0,0 +1,69 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobWorkspacesTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void createdWorkspaceIsRemovedWithContents() throws Exception {
+        JobWorkspaces workspaces = new JobWorkspaces(root.toString(), new BotMetrics());
+        Path a = workspaces.create();
+        Path b = workspaces.create();
+        assertNotEquals(a, b);
+        assertEquals(root, a.getParent());
+        assertTrue(a.getFileName().toString().startsWith("job_"));
+
+        Files.createDirectories(a.resolve("sub"));
+        Files.writeString(a.resolve("sub/clip.mp4"), "data");
+        workspaces.release(a);
+        assertFalse(Files.exists(a));
+        assertTrue(Files.isDirectory(b)); // соседняя задача не задета
+    }
+
+    @Test
+    void releaseIgnoresPathsOutsideRoot(@TempDir Path other) throws Exception {
+        JobWorkspaces workspaces = new JobWorkspaces(root.toString(), new BotMetrics());
+        Path foreign = Files.createDirectory(other.resolve("job_foreign"));
+        workspaces.release(foreign);
+        workspaces.release(root.resolve("../" + other.getFileName()));
+        assertTrue(Files.isDirectory(foreign));
+    }
+
+    @Test
+    void startupRemovesOnlyStaleJobDirectories() throws Exception {
+        Path stale = Files.createDirectories(root.resolve("job_123"));
+        Files.writeString(stale.resolve("clip.mp4.part"), "partial");
+        Path keep = Files.createDirectories(root.resolve("cache"));
+        Path file = Files.writeString(root.resolve("job_notes.txt"), "not a workspace");
+
+        BotMetrics metrics = new BotMetrics();
+        new JobWorkspaces(root.toString(), metrics).cleanupOrphans();
+
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.isDirectory(keep));
+        assertTrue(Files.exists(file));
+        assertEquals(1, metrics.counter("workspace.orphans_removed"));
+    }
+
+    @Test
+    void findOutputSkipsPartialFiles() throws Exception {
+        JobWorkspaces workspaces = new JobWorkspaces(root.toString(), new BotMetrics());
+        Path ws = workspaces.create();
+        Files.writeString(ws.resolve("clip.mp4.part"), "a much longer partial download");
+        Files.writeString(ws.resolve("clip.f137.mp4.part-Frag3"), "fragment of the download");
+        Files.writeString(ws.resolve("clip.mp4"), "done");
+        assertEquals(ws.resolve("clip.mp4"), workspaces.findOutput(ws));
+    }
+}
@@ -0,0 +1,154 @@
+package school.sorokin.javabot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Встроенная замена Redis для тестов: подмножество команд, которое использует {@link RespSharedStore}.
+ */
+class MiniRespServer implements AutoCloseable {
+
+    private final ServerSocket server;
+    private final Map<String, String> values = new HashMap<>();
+    private final Map<String, Long> expiresAt = new HashMap<>();
+    private final Map<String, ArrayDeque<String>> lists = new HashMap<>();
+    private volatile long replyDelayMillis; // команда выполняется сразу, ответ задерживается
+    private volatile String password = "";
+    private final AtomicInteger connections = new AtomicInteger();
+
+    MiniRespServer() throws IOException {
+        this(0);
+    }
+
+    MiniRespServer(int port) throws IOException {
+        server = new ServerSocket(port);
+        Thread acceptor = new Thread(this::acceptLoop, "mini-resp");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    void delayReplies(long millis) {
+        replyDelayMillis = millis;
+    }
+
+    void requirePassword(String password) {
+        this.password = password;
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                connections.incrementAndGet();
+                Thread t = new Thread(() -> serve(s), "mini-resp-conn");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (s) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            while (!server.isClosed()) {
+                Object[] cmd = (Object[]) RespSharedStore.read(in);
+                String reply = execute(cmd);
+                if (replyDelayMillis > 0) Thread.sleep(replyDelayMillis);
+                out.write(reply.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // клиент отключился
+        }
+    }
+
+    private synchronized String execute(Object[] cmd) {
+        String name = ((String) cmd[0]).toUpperCase(Locale.ROOT);
+        String key = cmd.length > 1 ? (String) cmd[1] : null;
+        Long deadline = key == null ? null : expiresAt.get(key);
+        if (deadline != null && System.currentTimeMillis() > deadline) {
+            values.remove(key);
+            expiresAt.remove(key);
+        }
+        switch (name) {
+            case "PING":
+                return "+OK\r\n";
+            case "AUTH":
+                return password.equals(key) ? "+OK\r\n" : "-WRONGPASS invalid username-password pair\r\n";
+            case "GET":
+                return bulk(values.get(key));
+            case "GETDEL":
+                expiresAt.remove(key);
+                return bulk(values.remove(key));
+            case "SET": {
+                boolean nx = false;
+                long px = 0;
+                for (int i = 3; i < cmd.length; i++) {
+                    String opt = ((String) cmd[i]).toUpperCase(Locale.ROOT);
+                    if (opt.equals("NX")) nx = true;
+                    if (opt.equals("PX")) px = Long.parseLong((String) cmd[++i]);
+                }
+                if (nx && values.containsKey(key)) return "$-1\r\n";
+                values.put(key, (String) cmd[2]);
+                if (px > 0) {
+                    expiresAt.put(key, System.currentTimeMillis() + px);
+                } else {
+                    expiresAt.remove(key);
+                }
+                return "+OK\r\n";
+            }
+            case "DEL": {
+                boolean removed = values.remove(key) != null | lists.remove(key) != null;
+                expiresAt.remove(key);
+                return ":" + (removed ? 1 : 0) + "\r\n";
+            }
+            case "RPUSH": {
+                ArrayDeque<String> list = lists.computeIfAbsent(key, k -> new ArrayDeque<>());
+                for (int i = 2; i < cmd.length; i++) list.addLast((String) cmd[i]);
+                return ":" + list.size() + "\r\n";
+            }
+            case "LPOP": {
+                ArrayDeque<String> list = lists.get(key);
+                return bulk(list == null ? null : list.pollFirst());
+            }
+            case "LLEN": {
+                ArrayDeque<String> list = lists.get(key);
+                return ":" + (list == null ? 0 : list.size()) + "\r\n";
+            }
+            default:
+                return "-ERR unknown command '" + name + "'\r\n";
+        }
+    }
+
+    private static String bulk(String value) {
+        if (value == null) return "$-1\r\n";
+        return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,84 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisabledOnOs(OS.WINDOWS)
+class Mp3StreamPipelineTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void pipesStdoutIntoEncoder() throws Exception {
+        Path ytdlp = script("ytdlp.sh", "head -c 300000 /dev/zero");
+        Path ffmpeg = script("ffmpeg.sh", "for last; do :; done; cat > \"$last\"");
+        Mp3StreamPipeline pipeline = new Mp3StreamPipeline(4, 1, new BotMetrics());
+
+        Path out = pipeline.run(new NoopContext(), ytdlp.toString(), ffmpeg.toString(), "u", dir.resolve("a.mp3"));
+
+        assertEquals(300000, Files.size(out));
+    }
+
+    @Test
+    void encoderFailureAllowsFallbackAndCleansUp() throws Exception {
+        Path ytdlp = script("ytdlp.sh", "head -c 300000 /dev/zero");
+        Path ffmpeg = script("ffmpeg.sh", "exit 1");
+        Mp3StreamPipeline pipeline = new Mp3StreamPipeline(4, 1, new BotMetrics());
+        Path target = dir.resolve("b.mp3");
+
+        Mp3StreamPipeline.PipelineException e = assertThrows(Mp3StreamPipeline.PipelineException.class,
+                () -> pipeline.run(new NoopContext(), ytdlp.toString(), ffmpeg.toString(), "u", target));
+
+        assertTrue(e.fallback);
+        assertFalse(Files.exists(target));
+    }
+
+    @Test
+    void downloaderFailureAfterDataIsReported() throws Exception {
+        Path ytdlp = script("ytdlp.sh", "head -c 1000 /dev/zero; exit 2");
+        Path ffmpeg = script("ffmpeg.sh", "for last; do :; done; cat > \"$last\"");
+        Mp3StreamPipeline pipeline = new Mp3StreamPipeline(4, 1, new BotMetrics());
+
+        Mp3StreamPipeline.PipelineException e = assertThrows(Mp3StreamPipeline.PipelineException.class,
+                () -> pipeline.run(new NoopContext(), ytdlp.toString(), ffmpeg.toString(), "u", dir.resolve("c.mp3")));
+
+        assertFalse(e.fallback);
+    }
+
+    private Path script(String name, String body) throws Exception {
+        Path p = dir.resolve(name);
+        Files.writeString(p, "#!/bin/sh\n" + body + "\n");
+        assertTrue(p.toFile().setExecutable(true));
+        return p;
+    }
+
+    static class NoopContext implements DownloadContext {
+        @Override
+        public void notify(String text) {
+        }
+
+        @Override
+        public void progress(String text) {
+        }
+
+        @Override
+        public void attach(Process process) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class RespSharedStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private MiniRespServer server;
+    private final BotMetrics metrics = new BotMetrics();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new MiniRespServer();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.close();
+    }
+
+    private RespSharedStore node() {
+        return new RespSharedStore("localhost", server.port(), "", "test:", 2000, metrics);
+    }
+
+    @Test
+    void speaksRedisProtocol() throws Exception {
+        RespSharedStore store = node();
+        store.put("k", "значение", 0);
+        assertEquals("значение", store.get("k"));
+        assertEquals("значение", store.putIfAbsent("k", "other", 0));
+        assertNull(store.putIfAbsent("fresh", "v", 0));
+        store.delete("k");
+        assertNull(store.get("k"));
+        store.put("once", "v", 0);
+        assertEquals("v", node().take("once"));
+        assertNull(store.take("once"));
+
+        store.put("short", "v", 50);
+        Thread.sleep(100);
+        assertNull(store.get("short"));
+
+        assertTrue(store.push("q", "a"));
+        assertTrue(store.push("q", "b"));
+        assertEquals(2, store.size("q"));
+        assertEquals("a", store.poll("q"));
+        assertEquals("b", store.poll("q"));
+        assertNull(store.poll("q"));
+        store.close();
+    }
+
+    @Test
+    void unreachableServerDegradesToMisses() {
+        RespSharedStore store = new RespSharedStore("localhost", 1, "", "test:", 200, metrics);
+        assertNull(store.get("k"));
+        store.put("k", "v", 0); // не бросает
+        assertEquals(2, metrics.counter("store.errors"));
+        assertFalse(store.available());
+    }
+
+    @Test
+    void rejectedPasswordBacksOff() {
+        server.requirePassword("secret");
+        RespSharedStore store = new RespSharedStore("localhost", server.port(), "wrong", "test:", 2000, metrics);
+        assertNull(store.get("k"));
+        assertFalse(store.available());
+        assertNull(store.get("k")); // без нового подключения и AUTH
+        assertEquals(1, server.connections());
+        assertEquals(2, metrics.counter("store.errors"));
+    }
+
+    @Test
+    void timedOutPopIsNotResent() throws Exception {
+        RespSharedStore store = new RespSharedStore("localhost", server.port(), "", "test:", 100, metrics);
+        for (String v : List.of("a", "b", "c")) assertTrue(store.push("q", v));
+        server.delayReplies(300);
+        long start = System.currentTimeMillis();
+        assertNull(store.poll("q")); // LPOP выполнен, ответ не дождались
+        assertFalse(store.available());
+        assertNull(store.get("k")); // отказ сразу, без ожидания таймаута
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        server.delayReplies(0);
+        Thread.sleep(RespSharedStore.RETRY_AFTER_MS + 50);
+        // повторный LPOP снял бы ещё и "b"
+        assertEquals(2, store.size("q"));
+        assertEquals("b", store.poll("q"));
+        store.close();
+    }
+
+    @Test
+    void jobStaysLocalWhenStoreIsDown() {
+        DownloadScheduler busy = new DownloadScheduler(1, 1, metrics);
+        busy.submit(1L, "mp3", () -> sleep(300));
+        SharedJobQueue queue = new SharedJobQueue(
+                new RespSharedStore("localhost", 1, "", "test:", 200, metrics), busy, 10, metrics);
+        // хранилище ещё не пробовали — считается доступным, но задачу не принимает
+        assertTrue(queue.shouldOffload());
+        assertFalse(queue.offer(new SharedJobQueue.Job(2L, "https://youtu.be/dQw4w9WgXcQ", MediaFormat.MP3_128, 1)));
+        assertEquals(1, metrics.counter("jobs.shared_offer_failed"));
+        assertEquals(0, metrics.counter("jobs.shared_offered"));
+        // после отказа новые задачи туда не отдаются
+        assertFalse(queue.shouldOffload());
+        busy.shutdown();
+    }
+
+    @Test
+    void callbackPressedOnAnotherNode() {
+        CallbackTokenStore a = new CallbackTokenStore(10, 60, metrics, node());
+        CallbackTokenStore b = new CallbackTokenStore(10, 60, metrics, node());
+        String token = a.issue("https://youtu.be/dQw4w9WgXcQ");
+
+        CallbackTokenStore.Entry e = b.get(token);
+        assertNotNull(e);
+        assertEquals("yt_dQw4w9WgXcQ", e.ref.key());
+        assertEquals(1, metrics.counter("callbacks.remote_hit"));
+        // та же ссылка на втором узле получает тот же токен
+        assertEquals(token, b.issue("https://www.youtube.com/watch?v=dQw4w9WgXcQ"));
+    }
+
+    @Test
+    void fileIdAndHostedLinkAreShared() throws Exception {
+        TelegramFileIdCache ids = new TelegramFileIdCache(dir.resolve("a.tsv").toString(), metrics, node());
+        TelegramFileIdCache otherIds = new TelegramFileIdCache(dir.resolve("b.tsv").toString(), metrics, node());
+        VideoRef ref = VideoRef.parse("https://youtu.be/dQw4w9WgXcQ");
+        ids.put(ref, MediaFormat.MP3_128, "file-1");
+        assertEquals("file-1", otherIds.get(ref, MediaFormat.MP3_128));
+
+        Path file = dir.resolve("clip.mp4");
+        Files.writeString(file, "0123456789", StandardCharsets.US_ASCII);
+        HostedFileService owner = new HostedFileService(60, "http://node-a:8080", dir.resolve("ha").toString(),
+                dir.resolve("ha.tsv").toString(), 10240, metrics, node());
+        HostedFileService other = new HostedFileService(60, "http://node-b:8080", dir.resolve("hb").toString(),
+                dir.resolve("hb.tsv").toString(), 10240, metrics, node());
+        owner.load();
+        other.load();
+        String id = owner.register(file.toFile());
+
+        MockMvc mvc = MockMvcBuilders.standaloneSetup(new DownloadController(other)).build();
+        mvc.perform(get("/dl/" + id))
+                .andExpect(status().isTemporaryRedirect())
+                .andExpect(header().string("Location", "http://node-a:8080/dl/" + id));
+        mvc.perform(get("/dl/unknown")).andExpect(status().isNotFound());
+    }
+
+    @Test
+    void busyNodeHandsJobsToFreeNode() {
+        DownloadScheduler busy = new DownloadScheduler(1, 1, metrics);
+        DownloadScheduler idle = new DownloadScheduler(2, 1, metrics);
+        SharedJobQueue busyQueue = new SharedJobQueue(node(), busy, 10, metrics);
+        SharedJobQueue idleQueue = new SharedJobQueue(node(), idle, 10, metrics);
+        busy.submit(1L, "mp3", () -> sleep(300));
+
+        assertEquals(true, busyQueue.shouldOffload());
+        assertEquals(false, idleQueue.shouldOffload());
+        for (long chat = 2; chat <= 4; chat++) {
+            busyQueue.offer(new SharedJobQueue.Job(chat, "https://youtu.be/dQw4w9WgXcQ", MediaFormat.MP3_128, 1));
+        }
+        List<SharedJobQueue.Job> taken = new ArrayList<>();
+        assertEquals(2, idleQueue.takeWhileFree(taken::add)); // по числу свободных слотов
+        assertEquals(2L, taken.get(0).chatId);
+        assertEquals(MediaFormat.MP3_128, taken.get(0).format);
+        assertEquals(0, busyQueue.takeWhileFree(taken::add));
+        busy.shutdown();
+        idle.shutdown();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
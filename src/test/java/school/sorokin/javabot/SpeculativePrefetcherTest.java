@@ -0,0 +1,108 @@
+package school.sorokin.javabot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpeculativePrefetcherTest {
+
+    private static final String JSON = """
+            {"id":"x","duration":60,"formats":[
+              {"format_id":"140","vcodec":"none","acodec":"mp4a","filesize":1000000},
+              {"format_id":"22","vcodec":"avc1","acodec":"mp4a","height":720,"filesize":9000000}
+            ]}""";
+
+    @TempDir
+    Path dir;
+
+    private final BotMetrics metrics = new BotMetrics();
+    private final InFlightDownloads inFlight = new InFlightDownloads(metrics);
+    private final DownloadScheduler scheduler = new DownloadScheduler(4, 1, metrics);
+
+    private SpeculativePrefetcher prefetcher(long windowSec) {
+        DownloadCache cache = new DownloadCache(dir.resolve("cache").toString(), 100, metrics);
+        cache.load();
+        TelegramFileIdCache fileIds = new TelegramFileIdCache(dir.resolve("ids.tsv").toString(), metrics);
+        fileIds.load();
+        return new SpeculativePrefetcher(true, 0.5, windowSec, inFlight, scheduler, cache, fileIds, metrics);
+    }
+
+    private VideoMetadata meta() throws Exception {
+        return VideoMetadata.from(new ObjectMapper().readTree(JSON));
+    }
+
+    @Test
+    void userJoinsRunningSpeculation() throws Exception {
+        SpeculativePrefetcher prefetcher = prefetcher(30);
+        VideoRef ref = VideoRef.parse("https://youtu.be/aaaaaaaaaaa");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<List<InFlightDownloads.Waiter>> delivered = new AtomicReference<>();
+
+        prefetcher.speculate(ref, ref.url, meta(), (flight, format) -> {
+            await(release);
+            delivered.set(inFlight.complete(flight));
+            prefetcher.finished(flight, null, dir);
+            done.countDown();
+        });
+        assertEquals(1, prefetcher.activeCount());
+
+        String key = ref.key(MediaFormat.VIDEO_720);
+        InFlightDownloads.Waiter user = inFlight.join(key, 42L, null, f -> {
+            throw new AssertionError("speculation should be reused");
+        });
+        assertFalse(user.leader);
+        assertTrue(prefetcher.claim(key));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(List.of(user), delivered.get()); // служебный ожидающий уже ушёл
+        assertEquals(1, metrics.counter("speculative.hit"));
+        assertEquals(100, metrics.snapshot().get("speculative.hit_rate_pct").longValue());
+        prefetcher.shutdown();
+    }
+
+    @Test
+    void unclaimedSpeculationIsCancelledAndCountedAsWaste() throws Exception {
+        SpeculativePrefetcher prefetcher = prefetcher(1);
+        VideoRef ref = VideoRef.parse("https://youtu.be/bbbbbbbbbbb");
+        Path work = Files.createDirectories(dir.resolve("job"));
+        Files.write(work.resolve("media.part"), new byte[4096]);
+        CountDownLatch done = new CountDownLatch(1);
+
+        prefetcher.speculate(ref, ref.url, meta(), (flight, format) -> {
+            while (!flight.isCancelled()) {
+                Thread.onSpinWait();
+            }
+            inFlight.complete(flight);
+            prefetcher.finished(flight, null, work);
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, metrics.counter("speculative.expired"));
+        assertEquals(4096, metrics.counter("speculative.wasted_bytes"));
+        assertEquals(0, prefetcher.activeCount());
+        assertEquals(0, inFlight.active());
+        prefetcher.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
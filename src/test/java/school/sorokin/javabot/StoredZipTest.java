@@ -0,0 +1,113 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StoredZipTest {
+
+    private static final long MAX32 = 0xFFFFFFFFL;
+
+    // Раскладка без чтения файлов: размеры заданы, самих файлов нет
+    private static StoredZip.Entry entry(String name, long size) {
+        return new StoredZip.Entry(name, Path.of("/nonexistent"), size, 0x12345678L, 0);
+    }
+
+    @Test
+    void largeEntriesAndOffsetsUseZip64() throws Exception {
+        StoredZip zip = new StoredZip(List.of(
+                entry("a.mp4", 3_000_000_000L), // обычная запись
+                entry("b.mp4", 5_000_000_000L), // размер больше 4 ГБ
+                entry("c.mp4", 10))); // смещение больше 4 ГБ
+
+        long offsetB = 30 + 5 + 3_000_000_000L;
+        long offsetC = offsetB + 30 + 5 + 20 + 5_000_000_000L; // + ZIP64 extra в локальном заголовке
+        long centralOffset = offsetC + 30 + 5 + 10;
+        long centralSize = (46 + 5) + (46 + 5 + 4 + 16) + (46 + 5 + 4 + 8);
+        assertEquals(centralOffset + centralSize + 56 + 20 + 22, zip.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        zip.writeDirectory(Channels.newChannel(out));
+        ByteBuffer dir = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(zip.size() - centralOffset, dir.capacity());
+
+        // a: всё помещается в 32 бита
+        assertEquals(0x02014b50, dir.getInt(0));
+        assertEquals(20, dir.getShort(6));
+        assertEquals(3_000_000_000L, Integer.toUnsignedLong(dir.getInt(20)));
+        assertEquals(0, dir.getShort(30));
+        assertEquals(0, dir.getInt(42));
+        assertEquals("a.mp4", name(dir, 46, 5));
+
+        // b: размеры — в ZIP64 extra
+        int b = 46 + 5;
+        assertEquals(45, dir.getShort(b + 6));
+        assertEquals(MAX32, Integer.toUnsignedLong(dir.getInt(b + 20)));
+        assertEquals(MAX32, Integer.toUnsignedLong(dir.getInt(b + 24)));
+        assertEquals(20, dir.getShort(b + 30));
+        assertEquals(offsetB, Integer.toUnsignedLong(dir.getInt(b + 42)));
+        int extra = b + 46 + 5;
+        assertEquals(1, dir.getShort(extra));
+        assertEquals(16, dir.getShort(extra + 2));
+        assertEquals(5_000_000_000L, dir.getLong(extra + 4));
+        assertEquals(5_000_000_000L, dir.getLong(extra + 12));
+
+        // c: смещение — в ZIP64 extra
+        int c = b + 46 + 5 + 20;
+        assertEquals(0x02014b50, dir.getInt(c));
+        assertEquals(10, dir.getInt(c + 20));
+        assertEquals(12, dir.getShort(c + 30));
+        assertEquals(MAX32, Integer.toUnsignedLong(dir.getInt(c + 42)));
+        extra = c + 46 + 5;
+        assertEquals(8, dir.getShort(extra + 2));
+        assertEquals(offsetC, dir.getLong(extra + 4));
+
+        // ZIP64 end of central directory, locator, обычный EOCD
+        int end64 = (int) centralSize;
+        assertEquals(0x06064b50, dir.getInt(end64));
+        assertEquals(44, dir.getLong(end64 + 4));
+        assertEquals(3, dir.getLong(end64 + 24));
+        assertEquals(3, dir.getLong(end64 + 32));
+        assertEquals(centralSize, dir.getLong(end64 + 40));
+        assertEquals(centralOffset, dir.getLong(end64 + 48));
+        int locator = end64 + 56;
+        assertEquals(0x07064b50, dir.getInt(locator));
+        assertEquals(centralOffset + centralSize, dir.getLong(locator + 8));
+        assertEquals(1, dir.getInt(locator + 16));
+        int eocd = locator + 20;
+        assertEquals(0x06054b50, dir.getInt(eocd));
+        assertEquals(3, dir.getShort(eocd + 10));
+        assertEquals(centralSize, dir.getInt(eocd + 12));
+        assertEquals(MAX32, Integer.toUnsignedLong(dir.getInt(eocd + 16)));
+    }
+
+    @Test
+    void smallArchiveHasNoZip64Records() throws Exception {
+        StoredZip zip = new StoredZip(List.of(entry("клип.mp4", 100), entry("клип.mp4", 200)));
+        int name = "клип.mp4".getBytes(StandardCharsets.UTF_8).length;
+        int renamed = "клип (2).mp4".getBytes(StandardCharsets.UTF_8).length;
+        long central = 46 + name + 46 + renamed;
+        assertEquals(30 + name + 100 + 30 + renamed + 200 + central + 22, zip.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        zip.writeDirectory(Channels.newChannel(out));
+        ByteBuffer dir = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(central + 22, dir.capacity());
+        assertEquals("клип (2).mp4", name(dir, 46 + name + 46, renamed));
+        assertEquals(0x06054b50, dir.getInt((int) central));
+    }
+
+    private static String name(ByteBuffer buf, int offset, int length) {
+        byte[] b = new byte[length];
+        buf.get(offset, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,88 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.chat.Chat;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StripedUpdateDispatcherTest {
+
+    private static Update message(long chatId, int updateId) {
+        Message m = new Message();
+        m.setChat(new Chat(chatId, "private"));
+        m.setMessageId(updateId);
+        Update u = new Update();
+        u.setUpdateId(updateId);
+        u.setMessage(m);
+        return u;
+    }
+
+    // Два чата в разных полосах
+    private static long[] chatsOnDifferentStripes(int stripes) {
+        long a = 1;
+        long b = 2;
+        while (StripedUpdateDispatcher.stripeOf(a, stripes) == StripedUpdateDispatcher.stripeOf(b, stripes)) b++;
+        return new long[]{a, b};
+    }
+
+    @Test
+    void keepsOrderWithinChat() throws Exception {
+        Map<Long, List<Integer>> seen = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(300);
+        StripedUpdateDispatcher d = new StripedUpdateDispatcher(u -> {
+            seen.computeIfAbsent(u.getMessage().getChatId(), k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(u.getUpdateId());
+            done.countDown();
+        }, 4, new BotMetrics());
+        List<Update> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            for (long chat = 1; chat <= 3; chat++) batch.add(message(chat, i));
+        }
+        d.consume(batch);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (List<Integer> ids : seen.values()) {
+            List<Integer> sorted = new ArrayList<>(ids);
+            Collections.sort(sorted);
+            assertEquals(sorted, ids);
+        }
+        d.shutdown();
+    }
+
+    @Test
+    void slowChatDoesNotBlockOthers() throws Exception {
+        long[] chats = chatsOnDifferentStripes(4);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(1);
+        StripedUpdateDispatcher d = new StripedUpdateDispatcher(u -> {
+            try {
+                if (u.getMessage().getChatId() == chats[0]) release.await(5, TimeUnit.SECONDS);
+                else fastDone.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 4, new BotMetrics());
+        d.consume(List.of(message(chats[0], 1), message(chats[1], 2)));
+        assertTrue(fastDone.await(2, TimeUnit.SECONDS));
+        release.countDown();
+        d.shutdown();
+    }
+
+    @Test
+    void stripeStaysInRangeForAnyChatId() {
+        for (long id = -50; id < 50; id++) {
+            int s = StripedUpdateDispatcher.stripeOf(id, 4);
+            assertTrue(s >= 0 && s < 4);
+        }
+    }
+}
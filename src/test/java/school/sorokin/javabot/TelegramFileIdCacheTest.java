@@ -0,0 +1,72 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TelegramFileIdCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private static VideoRef ref(String id) {
+        return VideoRef.parse("https://youtu.be/" + id);
+    }
+
+    private TelegramFileIdCache open(int maxEntries) {
+        TelegramFileIdCache cache = new TelegramFileIdCache(dir.resolve("ids.tsv").toString(), maxEntries, new BotMetrics());
+        cache.load();
+        return cache;
+    }
+
+    @Test
+    void persistsAcrossRestartAndForgetsInvalidated() throws Exception {
+        TelegramFileIdCache cache = open(100);
+        cache.put(ref("aaaaaaaaaaa"), MediaFormat.VIDEO_720, "file-a");
+        cache.put(ref("aaaaaaaaaaa"), MediaFormat.MP3_128, "file-a-mp3");
+        cache.put(ref("bbbbbbbbbbb"), MediaFormat.VIDEO_720, "file-b");
+        cache.put(ref("bbbbbbbbbbb"), MediaFormat.VIDEO_720, "file-b2"); // перезапись
+        cache.invalidate(ref("aaaaaaaaaaa"), MediaFormat.VIDEO_720);
+        cache.close();
+
+        TelegramFileIdCache reloaded = open(100);
+        assertNull(reloaded.get(ref("aaaaaaaaaaa"), MediaFormat.VIDEO_720));
+        assertEquals("file-a-mp3", reloaded.get(ref("aaaaaaaaaaa"), MediaFormat.MP3_128));
+        assertEquals("file-b2", reloaded.get(ref("bbbbbbbbbbb"), MediaFormat.VIDEO_720));
+        assertEquals(2, reloaded.size());
+        // журнал сжат при старте: по строке на запись
+        assertEquals(2, Files.readAllLines(dir.resolve("ids.tsv")).size());
+        reloaded.close();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedOverLimit() {
+        BotMetrics metrics = new BotMetrics();
+        TelegramFileIdCache cache = new TelegramFileIdCache(dir.resolve("ids.tsv").toString(), 2, metrics);
+        cache.load();
+        cache.put(ref("aaaaaaaaaaa"), MediaFormat.VIDEO_720, "file-a");
+        cache.put(ref("bbbbbbbbbbb"), MediaFormat.VIDEO_720, "file-b");
+        cache.get(ref("aaaaaaaaaaa"), MediaFormat.VIDEO_720); // освежает первую
+        cache.put(ref("ccccccccccc"), MediaFormat.VIDEO_720, "file-c");
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(ref("aaaaaaaaaaa"), MediaFormat.VIDEO_720));
+        assertFalse(cache.contains(ref("bbbbbbbbbbb"), MediaFormat.VIDEO_720));
+        assertEquals(1, metrics.counter("fileid.evicted"));
+        cache.close();
+
+        // вытесненная запись не воскресает из журнала
+        TelegramFileIdCache reloaded = open(2);
+        assertEquals(2, reloaded.size());
+        assertNull(reloaded.get(ref("bbbbbbbbbbb"), MediaFormat.VIDEO_720));
+        assertEquals("file-c", reloaded.get(ref("ccccccccccc"), MediaFormat.VIDEO_720));
+        reloaded.close();
+    }
+}
@@ -0,0 +1,161 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.api.objects.ResponseParameters;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TelegramSenderTest {
+
+    private final BotMetrics metrics = new BotMetrics();
+    private TelegramSender sender;
+
+    @AfterEach
+    void tearDown() {
+        if (sender != null) sender.shutdown();
+    }
+
+    private static TelegramApiRequestException tooManyRequests(int retryAfter) {
+        ResponseParameters params = new ResponseParameters();
+        params.setRetryAfter(retryAfter);
+        return new TelegramApiRequestException("429", new ApiResponse<>(false, 429, "Too Many Requests", params, null));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void filesGoBeforeChatterWhenWorkersAreBusy() throws Exception {
+        sender = new TelegramSender(null, metrics, 1000, 1000, 10, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CompletableFuture<Object> blocker = sender.submit(1L, TelegramSender.Priority.REPLY, c -> {
+            await(gate);
+            return null;
+        });
+        Thread.sleep(50); // единственный поток занят
+        sender.submit(2L, TelegramSender.Priority.STATUS, c -> order.add("status"));
+        sender.submit(3L, TelegramSender.Priority.REPLY, c -> order.add("reply"));
+        CompletableFuture<Boolean> file = sender.submit(4L, TelegramSender.Priority.FILE, c -> order.add("file"));
+        gate.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        file.get(5, TimeUnit.SECONDS);
+        while (order.size() < 3) Thread.sleep(10);
+        assertEquals(List.of("file", "reply", "status"), order);
+    }
+
+    @Test
+    void pendingStatusWithSameKeyIsReplaced() throws Exception {
+        sender = new TelegramSender(null, metrics, 1000, 1000, 10, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+        sender.submit(1L, TelegramSender.Priority.REPLY, c -> {
+            await(gate);
+            return null;
+        });
+        Thread.sleep(50);
+        AtomicInteger executed = new AtomicInteger();
+        CompletableFuture<String> first = sender.submit(7L, TelegramSender.Priority.STATUS, "status:1", c -> {
+            executed.incrementAndGet();
+            return "first";
+        });
+        CompletableFuture<String> second = sender.submit(7L, TelegramSender.Priority.STATUS, "status:1", c -> {
+            executed.incrementAndGet();
+            return "second";
+        });
+        gate.countDown();
+        assertNull(first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, executed.get());
+        assertEquals(1, metrics.counter("sender.coalesced"));
+    }
+
+    @Test
+    void retriesAfterTooManyRequests() throws Exception {
+        sender = new TelegramSender(null, metrics, 1000, 1000, 10, 2);
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        String r = sender.execute(5L, TelegramSender.Priority.REPLY, c -> {
+            if (attempts.incrementAndGet() == 1) throw tooManyRequests(1);
+            return "ok";
+        });
+        assertEquals("ok", r);
+        assertEquals(2, attempts.get());
+        assertTrue(System.currentTimeMillis() - start >= 900);
+        assertEquals(1, metrics.counter("sender.retry_after"));
+    }
+
+    @Test
+    void perChatRateIsRespected() throws Exception {
+        sender = new TelegramSender(null, metrics, 1000, 4, 1, 4);
+        long start = System.currentTimeMillis();
+        CompletableFuture<?> last = null;
+        for (int i = 0; i < 3; i++) {
+            last = sender.submit(9L, TelegramSender.Priority.REPLY, c -> null);
+        }
+        last.get(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start >= 450); // 1 сразу + 2 по 250 мс
+    }
+
+    @Test
+    void uploadsLeaveWorkersForReplies() throws Exception {
+        sender = new TelegramSender(null, metrics, 1000, 1000, 10, 4, 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger uploading = new AtomicInteger();
+        List<CompletableFuture<Object>> uploads = new CopyOnWriteArrayList<>();
+        for (long chat = 1; chat <= 4; chat++) { // четыре долгих загрузки файлов в разные чаты
+            uploads.add(sender.submit(chat, TelegramSender.Priority.FILE, c -> {
+                uploading.incrementAndGet();
+                await(gate);
+                return null;
+            }));
+        }
+        Thread.sleep(100);
+        // ответ другому чату не ждёт, пока файлы догрузятся
+        assertEquals("ok", sender.submit(5L, TelegramSender.Priority.REPLY, c -> "ok").get(2, TimeUnit.SECONDS));
+        assertEquals(2, uploading.get());
+        gate.countDown();
+        for (CompletableFuture<Object> u : uploads) u.get(5, TimeUnit.SECONDS);
+        assertEquals(4, uploading.get());
+    }
+
+    @Test
+    void repliesAreNotStuckBehindUploadInSameChat() throws Exception {
+        sender = new TelegramSender(null, metrics, 1000, 1000, 10, 4, 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger uploads = new AtomicInteger();
+        CompletableFuture<Object> first = sender.submit(1L, TelegramSender.Priority.FILE, c -> {
+            uploads.incrementAndGet();
+            await(gate);
+            return null;
+        });
+        CompletableFuture<Object> second = sender.submit(1L, TelegramSender.Priority.FILE, c -> {
+            uploads.incrementAndGet();
+            return null;
+        });
+        Thread.sleep(100);
+        // кнопки и подтверждения того же чата не ждут конца загрузки
+        assertEquals("ok", sender.submit(1L, TelegramSender.Priority.REPLY, c -> "ok").get(2, TimeUnit.SECONDS));
+        assertEquals(1, uploads.get()); // файлы одного чата по-прежнему по одному
+        gate.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(2, uploads.get());
+    }
+}
@@ -0,0 +1,69 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ToolRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void requireShell() {
+        assumeTrue(new File("/bin/sh").canExecute());
+    }
+
+    // Исполняемый скрипт вместо настоящей утилиты
+    private String tool(String name, String body) throws Exception {
+        Path p = dir.resolve(name);
+        Files.writeString(p, "#!/bin/sh\n" + body + "\n");
+        assertTrue(p.toFile().setExecutable(true));
+        return p.toString();
+    }
+
+    @Test
+    void probeReadsVersionAndCapabilities() throws Exception {
+        String ytDlp = tool("yt-dlp", "echo 2025.01.15");
+        String ffmpeg = tool("ffmpeg", "echo 'ffmpeg version 6.1.1 Copyright (c)'; echo 'configuration: --enable-libmp3lame'");
+        BotMetrics metrics = new BotMetrics();
+        ToolRegistry tools = new ToolRegistry(ytDlp, ffmpeg, metrics, 5000);
+        tools.refresh();
+
+        assertTrue(tools.ytDlp().available);
+        assertEquals("2025.01.15", tools.ytDlp().version);
+        assertTrue(tools.ffmpeg().available);
+        assertEquals(ffmpeg, tools.ffmpeg().path);
+        assertEquals("6.1.1", tools.ffmpeg().version);
+        assertTrue(tools.ffmpeg().has("libmp3lame"));
+        assertEquals(1, metrics.counter("tools.probes"));
+
+        // утилиту сломали — следующая проверка это видит
+        tool("yt-dlp", "exit 1");
+        tools.refresh();
+        assertFalse(tools.ytDlp().available);
+        assertEquals(ytDlp, tools.ytDlpPath());
+    }
+
+    @Test
+    void hungToolIsKilledByTimeout() throws Exception {
+        String ytDlp = tool("yt-dlp", "echo 2025.01.15; sleep 30");
+        BotMetrics metrics = new BotMetrics();
+        ToolRegistry tools = new ToolRegistry(ytDlp, "", metrics, 300);
+
+        long start = System.currentTimeMillis();
+        tools.refresh();
+        assertTrue(System.currentTimeMillis() - start < 10_000);
+        assertFalse(tools.ytDlp().available);
+        assertTrue(metrics.counter("tools.probe_timeouts") >= 1);
+    }
+}
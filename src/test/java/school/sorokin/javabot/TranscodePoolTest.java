@@ -0,0 +1,109 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TranscodePoolTest {
+
+    private static final DownloadContext CTX = new DownloadContext() {
+        @Override
+        public void notify(String text) {
+        }
+
+        @Override
+        public void progress(String text) {
+        }
+
+        @Override
+        public void attach(Process process) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    @Test
+    void parsesSourceDuration() {
+        assertEquals(212_500, TranscodePool.parseDuration("  Duration: 00:03:32.50, start: 0.000000, bitrate: 129 kb/s"));
+        assertEquals(-1, TranscodePool.parseDuration("Stream #0:0: Audio: aac"));
+    }
+
+    @Test
+    void appendsThreadsBeforeOutput() {
+        TranscodePool pool = new TranscodePool(1, 2, 0, new BotMetrics());
+        assertEquals(List.of("ffmpeg", "-i", "in.m4a", "-threads", "2", "out.mp3"),
+                pool.command("ffmpeg", List.of("-i", "in.m4a"), Path.of("out.mp3")));
+        pool.shutdown();
+    }
+
+    @Test
+    void runsTheNiceItChecked() {
+        TranscodePool pool = new TranscodePool(1, 0, 10, new BotMetrics());
+        List<String> cmd = pool.command("ffmpeg", List.of("-i", "in.m4a"), Path.of("out.mp3"));
+        if (!cmd.get(0).equals("ffmpeg")) { // nice есть в системе
+            assertTrue(Files.isExecutable(Path.of(cmd.get(0))), cmd.get(0));
+            assertEquals(List.of("-n", "10", "ffmpeg"), cmd.subList(1, 4));
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    @EnabledOnOs({OS.LINUX, OS.MAC})
+    void hungProbeIsKilled(@TempDir Path dir) throws Exception {
+        Path ffmpeg = dir.resolve("ffmpeg");
+        Files.writeString(ffmpeg, "#!/bin/sh\necho 'Duration: 00:00:03.00'\nsleep 30\n");
+        assertTrue(ffmpeg.toFile().setExecutable(true));
+        BotMetrics metrics = new BotMetrics();
+        TranscodePool pool = new TranscodePool(1, 1, 0, metrics, 300);
+
+        long start = System.currentTimeMillis();
+        assertThrows(IOException.class, () -> pool.probe(ffmpeg.toString(), dir.resolve("in.m4a")));
+        assertTrue(System.currentTimeMillis() - start < 10_000);
+        assertEquals(1, metrics.counter("transcode.probe_timeouts"));
+        pool.shutdown();
+    }
+
+    @Test
+    @EnabledOnOs({OS.LINUX, OS.MAC})
+    void limitsConcurrentEncoders() throws Exception {
+        BotMetrics metrics = new BotMetrics();
+        TranscodePool pool = new TranscodePool(2, 1, 0, metrics);
+        // вместо ffmpeg — sh, печатающий строку Duration и работающий 300 мс
+        List<String> options = List.of("-c", "echo 'Duration: 00:00:03.00'; sleep 0.3", "sh");
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        long start = System.currentTimeMillis();
+        List<Future<TranscodePool.Result>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(callers.submit(() -> pool.run(CTX, "sh", options, Path.of("out.mp3"))));
+        }
+        for (Future<TranscodePool.Result> r : results) {
+            TranscodePool.Result result = r.get();
+            assertEquals(0, result.exitCode);
+            assertEquals(3000, result.mediaMillis);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue(elapsed >= 550, "4 задачи по 300 мс на 2 потоках: " + elapsed); // две волны
+        assertEquals(4, metrics.timer("transcode.encode").count());
+        assertTrue(metrics.snapshot().get("transcode.realtime_factor").doubleValue() > 1);
+        callers.shutdown();
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,54 @@
+package school.sorokin.javabot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VideoMetadataTest {
+
+    private static final String JSON = """
+            {"id":"dQw4w9WgXcQ","title":"Sample","duration":212.4,"formats":[
+              {"format_id":"140","ext":"m4a","vcodec":"none","acodec":"mp4a.40.2","filesize":3433514,"tbr":129.5},
+              {"format_id":"18","ext":"mp4","vcodec":"avc1","acodec":"mp4a","height":360,"filesize_approx":9000000},
+              {"format_id":"22","ext":"mp4","vcodec":"avc1","acodec":"mp4a","height":720,"tbr":1000},
+              {"format_id":"137","ext":"mp4","vcodec":"avc1","acodec":"none","height":1080,"filesize":80000000}
+            ]}""";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void estimatesSizesPerFormat() throws Exception {
+        VideoMetadata meta = VideoMetadata.from(mapper.readTree(JSON));
+
+        assertEquals("Sample", meta.title);
+        assertEquals(212, meta.durationSec);
+        assertEquals("3:32", meta.durationText());
+        assertEquals(3433514, meta.estimate(MediaFormat.AUDIO_ORIGINAL));
+        assertEquals(212L * 128 * 1000 / 8, meta.estimate(MediaFormat.MP3_128));
+        // у 720p нет filesize — оценка по битрейту
+        assertEquals(1000L * 1000 / 8 * 212, meta.estimate(MediaFormat.VIDEO_720));
+    }
+
+    @Test
+    void rejectsTooLongOrTooLarge() throws Exception {
+        VideoMetadata meta = VideoMetadata.from(mapper.readTree(JSON));
+        MetadataService limits = new MetadataService(null, mapper, new BotMetrics(), 60, 10, 30, 1, 3, 20);
+        try {
+            String reason = limits.rejectReason(meta, MediaFormat.MP3_128);
+            assertNotNull(reason);
+            assertTrue(reason.contains("длинный"));
+
+            MetadataService sizeOnly = new MetadataService(null, mapper, new BotMetrics(), 60, 10, 30, 1, 10, 20);
+            assertNull(sizeOnly.rejectReason(meta, MediaFormat.MP3_128));
+            assertTrue(sizeOnly.rejectReason(meta, MediaFormat.VIDEO_720).contains("большой"));
+            assertNull(sizeOnly.rejectReason(null, MediaFormat.VIDEO_720));
+            sizeOnly.shutdown();
+        } finally {
+            limits.shutdown();
+        }
+    }
+}
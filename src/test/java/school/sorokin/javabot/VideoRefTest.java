@@ -0,0 +1,42 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class VideoRefTest {
+
+    @Test
+    void youtubeVariantsShareKey() {
+        String key = "yt_dQw4w9WgXcQ";
+        assertEquals(key, VideoRef.parse("https://youtu.be/dQw4w9WgXcQ?si=abc").key());
+        assertEquals(key, VideoRef.parse("https://www.youtube.com/watch?v=dQw4w9WgXcQ&t=42").key());
+        assertEquals(key, VideoRef.parse("https://m.youtube.com/watch?feature=share&v=dQw4w9WgXcQ").key());
+        assertEquals(key, VideoRef.parse("https://youtube.com/shorts/dQw4w9WgXcQ").key());
+        assertEquals(key, VideoRef.parse("youtube.com/embed/dQw4w9WgXcQ").key());
+    }
+
+    @Test
+    void tiktokVariants() {
+        assertEquals("tt_7212345678901234567",
+                VideoRef.parse("https://www.tiktok.com/@user/video/7212345678901234567?lang=ru").key());
+        assertEquals("tt_7212345678901234567",
+                VideoRef.parse("https://m.tiktok.com/v/video/7212345678901234567").key());
+        assertEquals("tts_ZMabcDEF", VideoRef.parse("https://vm.tiktok.com/ZMabcDEF/").key());
+    }
+
+    @Test
+    void formatIsPartOfKey() {
+        VideoRef ref = VideoRef.parse("https://youtu.be/dQw4w9WgXcQ");
+        assertEquals("yt_dQw4w9WgXcQ__mp3", ref.key(MediaFormat.MP3_128));
+    }
+
+    @Test
+    void unknownLinks() {
+        assertNull(VideoRef.parse("https://www.youtube.com/"));
+        assertNull(VideoRef.parse("https://example.com/watch?v=dQw4w9WgXcQ"));
+        assertNull(VideoRef.parse("https://notyoutube.com/watch?v=dQw4w9WgXcQ"));
+        assertNull(VideoRef.parse("https://eviltiktok.com/@user/video/7212345678901234567"));
+    }
+}
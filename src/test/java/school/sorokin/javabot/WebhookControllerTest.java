@@ -0,0 +1,81 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class WebhookControllerTest {
+
+    private static final String SECRET = "s3cret-token";
+
+    private final List<Update> handled = new CopyOnWriteArrayList<>();
+    private CountDownLatch latch;
+    private BotMetrics metrics;
+    private MockMvc mvc;
+
+    // Записанные апдейты Telegram, по одному JSON на строку
+    static List<String> recordedUpdates() throws Exception {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                WebhookControllerTest.class.getResourceAsStream("/webhook/updates.jsonl"), StandardCharsets.UTF_8))) {
+            return r.lines().filter(l -> !l.isBlank()).collect(Collectors.toList());
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        latch = new CountDownLatch(recordedUpdates().size());
+        metrics = new BotMetrics();
+        StripedUpdateDispatcher dispatcher = new StripedUpdateDispatcher(u -> {
+            handled.add(u);
+            latch.countDown();
+        }, 2, metrics);
+        mvc = MockMvcBuilders.standaloneSetup(new WebhookController(dispatcher, null, metrics, SECRET, "")).build();
+    }
+
+    @Test
+    void acceptsRecordedUpdatesWithSecret() throws Exception {
+        for (String json : recordedUpdates()) {
+            mvc.perform(post("/telegram/webhook")
+                            .header(WebhookController.SECRET_HEADER, SECRET)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(json))
+                    .andExpect(status().isOk());
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(4, handled.size());
+        assertTrue(handled.stream().anyMatch(u -> u.hasCallbackQuery()
+                && "v_0123456789ab".equals(u.getCallbackQuery().getData())));
+        assertEquals(4, metrics.counter("webhook.received"));
+    }
+
+    @Test
+    void rejectsWrongOrMissingSecret() throws Exception {
+        String json = recordedUpdates().get(0);
+        mvc.perform(post("/telegram/webhook").contentType(MediaType.APPLICATION_JSON).content(json))
+                .andExpect(status().isUnauthorized());
+        mvc.perform(post("/telegram/webhook")
+                        .header(WebhookController.SECRET_HEADER, "wrong")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(json))
+                .andExpect(status().isUnauthorized());
+        assertEquals(0, handled.size());
+        assertEquals(2, metrics.counter("webhook.rejected"));
+    }
+}
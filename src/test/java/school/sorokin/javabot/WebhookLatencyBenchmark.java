@@ -0,0 +1,114 @@
+package school.sorokin.javabot;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.annotation.AnnotationConfigUtils;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Задержка webhook-режима: локальная заглушка Telegram POST-ит записанные апдейты
+ * по HTTP, меряется время до ответа 200 (ack) и до начала обработки апдейта.
+ * Для сравнения с long polling смотрите updates.queue_wait и интервал опроса в проде.
+ * Запуск: mvn test -Dbenchmark=true -Dtest=WebhookLatencyBenchmark (-Dbenchmark.rounds=500)
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class WebhookLatencyBenchmark {
+
+    private static final String SECRET = "bench-secret";
+
+    @EnableWebMvc
+    static class WebConfig {
+    }
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recordedUpdatesOverHttp() throws Exception {
+        int rounds = Integer.getInteger("benchmark.rounds", 500);
+        List<String> recorded = WebhookControllerTest.recordedUpdates();
+        int total = rounds * recorded.size();
+
+        Map<Integer, Long> sentAt = new ConcurrentHashMap<>();
+        Map<Integer, Long> handledAfter = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(total);
+        BotMetrics metrics = new BotMetrics();
+        StripedUpdateDispatcher dispatcher = new StripedUpdateDispatcher(u -> {
+            Long t0 = sentAt.get(u.getUpdateId());
+            if (t0 != null) handledAfter.put(u.getUpdateId(), System.nanoTime() - t0);
+            done.countDown();
+        }, 4, metrics);
+
+        GenericWebApplicationContext ctx = new GenericWebApplicationContext();
+        ctx.setClassLoader(getClass().getClassLoader()); // не загрузчик веб-приложения Tomcat
+        AnnotationConfigUtils.registerAnnotationConfigProcessors(ctx);
+        ctx.registerBean(WebConfig.class);
+        ctx.registerBean(WebhookController.class, () -> new WebhookController(dispatcher, null, metrics, SECRET, ""));
+
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(dir.resolve("tomcat").toString());
+        Connector connector = new Connector();
+        connector.setPort(0);
+        tomcat.setConnector(connector);
+        Context context = tomcat.addContext("", dir.toString());
+        Tomcat.addServlet(context, "dispatcher", new DispatcherServlet(ctx));
+        context.addServletMappingDecoded("/", "dispatcher");
+        tomcat.start();
+        try {
+            URI uri = URI.create("http://localhost:" + connector.getLocalPort() + "/telegram/webhook");
+            HttpClient client = HttpClient.newHttpClient();
+            long[] ack = new long[total];
+            int n = 0;
+            for (int round = 0; round < rounds; round++) {
+                for (String json : recorded) {
+                    int updateId = 1_000_000 + n;
+                    String body = json.replaceFirst("\"update_id\":\\d+", "\"update_id\":" + updateId);
+                    long t0 = System.nanoTime();
+                    sentAt.put(updateId, t0);
+                    HttpResponse<Void> resp = client.send(HttpRequest.newBuilder(uri)
+                            .header("Content-Type", "application/json")
+                            .header(WebhookController.SECRET_HEADER, SECRET)
+                            .POST(HttpRequest.BodyPublishers.ofString(body))
+                            .build(), HttpResponse.BodyHandlers.discarding());
+                    ack[n++] = System.nanoTime() - t0;
+                    assertEquals(200, resp.statusCode());
+                }
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            long[] endToEnd = handledAfter.values().stream().mapToLong(Long::longValue).toArray();
+            System.out.printf("webhook updates=%d ack p50=%.2fms p99=%.2fms; handler start p50=%.2fms p99=%.2fms%n",
+                    total, pct(ack, 50), pct(ack, 99), pct(endToEnd, 50), pct(endToEnd, 99));
+        } finally {
+            dispatcher.shutdown();
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    private static double pct(long[] nanos, int p) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)] / 1e6;
+    }
+}
@@ -0,0 +1,39 @@
+package school.sorokin.javabot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class YtDlpProgressTest {
+
+    @Test
+    void parsesRegularLine() {
+        YtDlpProgress p = YtDlpProgress.parse("[download]  45.3% of   10.00MiB at    1.23MiB/s ETA 00:05");
+        assertEquals(45.3, p.percent, 0.001);
+        assertEquals("10.00MiB", p.total);
+        assertEquals("1.23MiB/s", p.speed);
+        assertEquals("00:05", p.eta);
+    }
+
+    @Test
+    void parsesFragmentedAndUnknownValues() {
+        YtDlpProgress p = YtDlpProgress.parse("[download]   3.0% of ~  52.10MiB at  Unknown B/s ETA Unknown (frag 1/40)");
+        assertEquals(3.0, p.percent, 0.001);
+        assertEquals("52.10MiB", p.total);
+        assertNull(p.eta);
+    }
+
+    @Test
+    void parsesFinishedLine() {
+        YtDlpProgress p = YtDlpProgress.parse("[download] 100% of    4.20MiB in 00:00:02 at 1.90MiB/s");
+        assertEquals(100.0, p.percent, 0.001);
+        assertEquals("1.90MiB/s", p.speed);
+    }
+
+    @Test
+    void ignoresOtherLines() {
+        assertNull(YtDlpProgress.parse("[download] Destination: work/job_1/media.webm"));
+        assertNull(YtDlpProgress.parse("[youtube] dQw4w9WgXcQ: Downloading webpage"));
+    }
+}